@@ -0,0 +1,441 @@
+import java.io.IOException;
+
+/**
+ * Runs a whole network of servers in one JVM on an {@link InMemoryNetwork}.
+ * Every server gets its own routing table and updater, and they all share
+ * one event loop. The harness measures how long the network takes to
+ * converge, which is when every routing table shows the shortest path
+ * costs found by Dijkstra's algorithm, and how many datagrams and bytes
+ * were sent until then. It can then fail a link and measure again.
+ * Neighbors time out after three update intervals, so the interval has to
+ * be long enough for the one event loop to handle a round of the whole
+ * network; the default of 1000 milliseconds is enough for 1000 servers.
+ * <pre>
+ * java ClusterHarness -t network.txt [-i millis] [-timeout seconds] [-fail a b] [-maxmetric cost] [-splithorizon mode] [-wire 1|2|mixed] [-jitter x] [-periodiconly]
+ * java ClusterHarness -n servers [-d degree] [-seed seed] [-i millis] [-timeout seconds] [-fail a b] [-maxmetric cost] [-splithorizon mode] [-wire 1|2|mixed] [-jitter x] [-periodiconly]
+ * </pre>
+ * The file network-count-to-infinity.txt is a triangle with one more
+ * server on it, where failing link 3-4 leaves server 4 unreachable. This
+ * is where servers count to infinity, so it is used to compare the split
+ * horizon modes and the max metric:
+ * <pre>
+ * java ClusterHarness -t network-count-to-infinity.txt -i 100 -timeout 10 -fail 3 4 -splithorizon none
+ * java ClusterHarness -t network-count-to-infinity.txt -i 100 -timeout 10 -fail 3 4 -splithorizon none -maxmetric 16
+ * </pre>
+ * With -periodiconly the servers send only full periodic updates, like RIP
+ * without triggered updates, and -jitter 0 sends them every round in the
+ * same order.
+ * <p>
+ * runRounds and failLinkRounds run the network in rounds instead of in
+ * real time: every server sends a full update and then every datagram is
+ * delivered, so the result does not depend on timing. CountToInfinityTest
+ * uses them and fails if the split horizon and the max metric do not
+ * converge within its bound, or if plain distance vector does.
+ * <p>
+ * The -wire option chooses the newest version of the update format the
+ * servers can read. With mixed, every other server only reads version 1,
+ * so the others have to use version 1 with those neighbors.
+ * @see NetworkTopology
+ */
+public class ClusterHarness {
+    private static final int CHECK_INTERVAL_MILLIS = 10;
+
+    private final NetworkTopology topology;
+    private final InMemoryNetwork network;
+    private final Server[] servers;
+    private final int maxMetric;
+    private int[][] expectedCosts;
+
+    private long convergenceMillis = -1;
+    private long convergenceDatagrams = -1;
+    private boolean stepped;
+    private long startTime;
+    private long startMessages;
+    private long startBytes;
+    private long deadline;
+
+    /**
+     * Creates a server for every server in the topology. The
+     * servers are not started yet.
+     * @param topology The topology of the network
+     * @param updateIntervalMillis The number of milliseconds between routing updates
+     * @param maxMetric The cost at which routes become unreachable
+     * @param splitHorizon How routes are hidden from the neighbor they were learned from
+     */
+    public ClusterHarness(NetworkTopology topology, int updateIntervalMillis, int maxMetric, SplitHorizon splitHorizon) {
+        this.topology = topology;
+        this.network = new InMemoryNetwork();
+        this.servers = new Server[topology.size()];
+        this.maxMetric = maxMetric;
+        for(int i = 0; i < servers.length; i++) {
+            servers[i] = new Server(new InMemoryTransport(network), updateIntervalMillis);
+            servers[i].printMessages = false;
+            servers[i].maxMetric = maxMetric;
+            servers[i].updater.splitHorizon = splitHorizon;
+            String status = servers[i].loadNetwork(topology, topology.idAt(i));
+            if(!status.equals("SUCCESS")) {
+                System.err.println(status);
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Sets the newest version of the update format the servers can read.
+     * Must be called before the servers are started.
+     * @param version VERSION_1 or VERSION_2
+     * @param mixed True to make every other server only read version 1
+     */
+    public void setWireVersion(int version, boolean mixed) {
+        for(int i = 0; i < servers.length; i++) {
+            servers[i].wireVersion = (mixed && i % 2 == 1) ? RoutingUpdateMessage.VERSION_1 : version;
+        }
+    }
+
+    /**
+     * Changes when the servers send updates. Must be called before the
+     * servers are started. Periodic only is how RIP without triggered
+     * updates behaves: every route is sent once per round and nothing in
+     * between, which makes servers count to infinity after a failure.
+     * @param jitter The fraction the periodic interval is varied by, 0 to send every round in the same order
+     * @param periodicOnly True to send only full periodic updates, with no triggered or delta updates
+     */
+    public void setUpdateTiming(double jitter, boolean periodicOnly) {
+        for(Server server : servers) {
+            server.updater.periodicJitter = jitter;
+            server.updater.triggeredUpdates = !periodicOnly;
+            if(periodicOnly) server.updater.fullUpdateInterval = 0;
+        }
+    }
+
+    /**
+     * Returns how long the network took to converge the last time.
+     * @return Returns the number of milliseconds, or -1 if it did not converge
+     */
+    public long convergenceMillis() {
+        return convergenceMillis;
+    }
+
+    /**
+     * Returns how many datagrams were sent until the network converged the last time.
+     * @return Returns the number of datagrams, or -1 if it did not converge
+     */
+    public long convergenceDatagrams() {
+        return convergenceDatagrams;
+    }
+
+    /**
+     * Stops every server and the event loop.
+     */
+    public void stop() {
+        EventLoop loop = network.getEventLoop();
+        Runnable stopServers = () -> {
+            for(Server server : servers) server.stop();
+        };
+        // A loop that was never started cannot run the task, and nothing else touches the servers
+        if(stepped) stopServers.run();
+        else loop.executeAndWait(stopServers);
+        loop.shutdown();
+    }
+
+    /**
+     * Reads the options, runs the network until it converges and prints
+     * the results. Exits with status 1 if the network does not converge
+     * before the timeout.
+     * @param args The harness options
+     */
+    public static void main(String[] args) {
+        String fileName = null;
+        int servers = 0;
+        int degree = 4;
+        long seed = 1;
+        int interval = 1000;
+        int timeoutSeconds = 60;
+        int failFrom = -1;
+        int failTo = -1;
+        int maxMetric = RoutingTable.INFINITY;
+        SplitHorizon splitHorizon = SplitHorizon.POISONED_REVERSE;
+        int wireVersion = RoutingUpdateMessage.VERSION_2;
+        boolean mixedWire = false;
+        double jitter = 0.15;
+        boolean periodicOnly = false;
+        try {
+            for(int i = 0; i < args.length; i++) {
+                switch(args[i].toLowerCase()) {
+                    case "-t": fileName = args[++i]; break;
+                    case "-n": servers = Integer.parseInt(args[++i]); break;
+                    case "-d": degree = Integer.parseInt(args[++i]); break;
+                    case "-seed": seed = Long.parseLong(args[++i]); break;
+                    case "-i": interval = Integer.parseInt(args[++i]); break;
+                    case "-timeout": timeoutSeconds = Integer.parseInt(args[++i]); break;
+                    case "-fail":
+                        failFrom = Integer.parseInt(args[++i]);
+                        failTo = Integer.parseInt(args[++i]);
+                        break;
+                    case "-maxmetric": maxMetric = Integer.parseInt(args[++i]); break;
+                    case "-jitter": jitter = Double.parseDouble(args[++i]); break;
+                    case "-periodiconly": periodicOnly = true; break;
+                    case "-splithorizon":
+                        splitHorizon = SplitHorizon.fromName(args[++i]);
+                        if(splitHorizon == null) {
+                            System.err.println("Error: -splithorizon must be none, simple or poison");
+                            System.exit(1);
+                        }
+                        break;
+                    case "-wire":
+                        mixedWire = args[++i].equalsIgnoreCase("mixed");
+                        wireVersion = mixedWire ? RoutingUpdateMessage.VERSION_2 : Integer.parseInt(args[i]);
+                        if(wireVersion != RoutingUpdateMessage.VERSION_1 && wireVersion != RoutingUpdateMessage.VERSION_2) {
+                            System.err.println("Error: -wire must be 1, 2 or mixed");
+                            System.exit(1);
+                        }
+                        break;
+                    default:
+                        System.err.println("Error: unknown option " + args[i]);
+                        System.exit(1);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Error: options must be followed by a number or file name");
+            System.exit(1);
+        }
+
+        NetworkTopology topology;
+        if(fileName != null) {
+            topology = new NetworkTopology();
+            String status = topology.readTopologyFile(fileName);
+            if(!status.equals("SUCCESS")) {
+                System.err.println(status);
+                System.exit(1);
+            }
+        }
+        else if(servers > 0) {
+            topology = NetworkTopology.generate(servers, degree, 10, seed);
+        }
+        else {
+            System.err.println("Error: either -t or -n is required");
+            System.exit(1);
+            return;
+        }
+
+        System.out.println("Starting " + topology.size() + " servers with " + topology.numOfLinks + " links");
+        ClusterHarness harness = new ClusterHarness(topology, interval, maxMetric, splitHorizon);
+        harness.setWireVersion(wireVersion, mixedWire);
+        harness.setUpdateTiming(jitter, periodicOnly);
+        boolean converged = harness.run(1000L * timeoutSeconds);
+        if(converged && failFrom != -1) {
+            converged = harness.failLink(failFrom, failTo, 1000L * timeoutSeconds);
+        }
+        System.exit(converged ? 0 : 1);
+    }
+
+    /**
+     * Starts every server and waits until the network converges.
+     * @param timeoutMillis How long to wait for the network to converge
+     * @return Returns true if the network converged before the timeout
+     */
+    public boolean run(long timeoutMillis) {
+        expectedCosts = shortestPathCosts();
+        for(Server server : servers) {
+            try {
+                server.start();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        // The event loop is not running yet, so nothing has been sent
+        markStart(timeoutMillis);
+        network.getEventLoop().start();
+        return awaitConvergence("Converged");
+    }
+
+    /**
+     * Starts every server without starting the event loop and runs the
+     * network in rounds until it converges. In each round every server
+     * sends a full update to its neighbors, in the order of the topology,
+     * and then every datagram is delivered. The servers send only periodic
+     * updates with no jitter, and no timers run, so nothing is sent between
+     * rounds and neighbors never time out. Nothing is printed.
+     * @param maxRounds The most rounds to run
+     * @return Returns the number of rounds until the network converged, or -1 if it did not
+     */
+    public int runRounds(int maxRounds) {
+        setUpdateTiming(0, true);
+        expectedCosts = shortestPathCosts();
+        for(Server server : servers) {
+            try {
+                server.start();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        stepped = true;
+        network.getEventLoop().runTasks();
+        markStart(0);
+        return awaitRounds(maxRounds);
+    }
+
+    /**
+     * Fails the link between two servers in a network started by runRounds,
+     * and runs rounds until the network converges again. Without timers the
+     * second server could neither time out the first nor be sent the update
+     * that closes the link, so update inf is entered on both servers, as if
+     * both had seen the link go down.
+     * @param a The id of one server
+     * @param b The id of the other server
+     * @param maxRounds The most rounds to run
+     * @return Returns the number of rounds until the network converged, or -1 if it did not
+     */
+    public int failLinkRounds(int a, int b, int maxRounds) {
+        if(!topology.removeLink(a, b)) {
+            System.err.println("Error: there is no link between " + a + " and " + b);
+            return -1;
+        }
+        expectedCosts = shortestPathCosts();
+        markStart(0);
+        servers[indexOf(a)].updater.updateLink(a, b, "inf");
+        servers[indexOf(b)].updater.updateLink(b, a, "inf");
+        network.getEventLoop().runTasks();
+        return awaitRounds(maxRounds);
+    }
+
+    /**
+     * Runs rounds on the calling thread until every routing table
+     * matches the expected costs.
+     * @param maxRounds The most rounds to run
+     * @return Returns the number of rounds, or -1 if the network did not converge
+     */
+    private int awaitRounds(int maxRounds) {
+        EventLoop loop = network.getEventLoop();
+        int rounds = 0;
+        while(countConverged() < servers.length) {
+            if(rounds == maxRounds) return -1;
+            for(Server server : servers) server.updater.sendUpdateToNeighbors();
+            loop.runTasks();
+            rounds++;
+        }
+        convergenceDatagrams = network.getMessageCount() - startMessages;
+        return rounds;
+    }
+
+    /**
+     * Fails the link between two servers, as if update a b inf was entered
+     * on the first server, and waits until the network converges again.
+     * @param a The id of the server the link is failed on
+     * @param b The id of the other server
+     * @param timeoutMillis How long to wait for the network to converge
+     * @return Returns true if the network converged before the timeout
+     */
+    public boolean failLink(int a, int b, long timeoutMillis) {
+        if(!topology.removeLink(a, b)) {
+            System.err.println("Error: there is no link between " + a + " and " + b);
+            return false;
+        }
+        expectedCosts = shortestPathCosts();
+        Server server = servers[indexOf(a)];
+        network.getEventLoop().executeAndWait(() -> {
+            // Started in the same task, so the updates triggered by the failure are counted
+            markStart(timeoutMillis);
+            server.updater.updateLink(a, b, "inf");
+        });
+        return awaitConvergence("Converged after link " + a + "-" + b + " failed");
+    }
+
+    /**
+     * Remembers the time and the number of datagrams and bytes sent so far,
+     * which convergence is measured from. Must be called on the event loop,
+     * or before it is started, right before the change that is measured.
+     * @param timeoutMillis How long to wait for the network to converge
+     */
+    private void markStart(long timeoutMillis) {
+        convergenceMillis = -1;
+        convergenceDatagrams = -1;
+        startTime = System.nanoTime();
+        startMessages = network.getMessageCount();
+        startBytes = network.getByteCount();
+        deadline = System.currentTimeMillis() + timeoutMillis;
+    }
+
+    /**
+     * Checks every few milliseconds on the event loop whether every
+     * routing table matches the expected costs, and prints the time,
+     * datagrams and bytes since markStart was called.
+     */
+    private boolean awaitConvergence(String label) {
+        EventLoop loop = network.getEventLoop();
+        boolean[] result = new boolean[1];
+        Object done = new Object();
+        loop.execute(() -> check(label, result, done));
+        synchronized (done) {
+            while(!result[0] && System.currentTimeMillis() < deadline + 1000) {
+                try {
+                    done.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return result[0];
+    }
+
+    private void check(String label, boolean[] result, Object done) {
+        int matching = countConverged();
+        long elapsed = (System.nanoTime() - startTime) / 1_000_000L;
+        if(matching == servers.length) {
+            convergenceMillis = elapsed;
+            convergenceDatagrams = network.getMessageCount() - startMessages;
+            System.out.println(label + " in " + elapsed + " ms with "
+                    + (network.getMessageCount() - startMessages) + " datagrams and "
+                    + (network.getByteCount() - startBytes) + " bytes");
+            synchronized (done) {
+                result[0] = true;
+                done.notifyAll();
+            }
+        }
+        else if(System.currentTimeMillis() >= deadline) {
+            System.out.println("Did not converge in " + elapsed + " ms: "
+                    + matching + " of " + servers.length + " routing tables are correct");
+        }
+        else {
+            network.getEventLoop().schedule(CHECK_INTERVAL_MILLIS, () -> check(label, result, done));
+        }
+    }
+
+    /**
+     * Counts the servers whose routing table has the shortest path
+     * cost to every other server. Must be called on the event loop.
+     * @return Returns the number of converged servers
+     */
+    private int countConverged() {
+        int matching = 0;
+        for(int i = 0; i < servers.length; i++) {
+            RoutingTable table = servers[i].table;
+            boolean correct = true;
+            for(int j = 0; j < servers.length && correct; j++) {
+                correct = table.cost[table.slotOf(topology.idAt(j))] == expectedCosts[i][j];
+            }
+            if(correct) matching++;
+        }
+        return matching;
+    }
+
+    private int[][] shortestPathCosts() {
+        int[][] costs = new int[servers.length][];
+        for(int i = 0; i < servers.length; i++) {
+            costs[i] = topology.shortestPathCosts(topology.idAt(i));
+            // Paths that cost maxMetric or more are unreachable for the servers
+            for(int j = 0; j < costs[i].length; j++) {
+                if(costs[i][j] >= maxMetric) costs[i][j] = RoutingTable.INFINITY;
+            }
+        }
+        return costs;
+    }
+
+    private int indexOf(int id) {
+        for(int i = 0; i < servers.length; i++) {
+            if(topology.idAt(i) == id) return i;
+        }
+        throw new IllegalArgumentException("Server " + id + " is not in the network");
+    }
+}
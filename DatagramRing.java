@@ -0,0 +1,295 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A bounded queue of received datagrams between one receiving thread and
+ * one computing thread. The slots are allocated once as one direct buffer,
+ * and the receiving thread reads datagrams from the socket straight into
+ * the next free slot. The head is only written by the consumer and the tail
+ * only by the producer, so no locks are needed. When the queue is full the
+ * producer follows the {@link OverloadPolicy}.
+ * <p>
+ * The queue counts the datagrams it holds from each sender, which is the
+ * ip and port in the header of the datagram. With DROP_OLDEST every sender
+ * with datagrams in the queue gets an equal share of it. When the queue is
+ * full the new datagram is read into a spare buffer. If its sender already
+ * holds its share the new datagram is dropped, so a sender that floods the
+ * queue only loses its own datagrams. Otherwise the consumer is asked to
+ * skip the oldest datagrams of the senders holding more than their share
+ * until there is room, because only the consumer may move the head.
+ */
+public class DatagramRing {
+    private static final long PRODUCER_WAIT_NANOS = 50_000L;
+    private static final long CONSUMER_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long NO_SENDER = -1;
+
+    private final ByteBuffer[] slots;
+    private final int[] lengths;
+    private final int[] senders;
+    private final int mask;
+    private final OverloadPolicy policy;
+
+    // The sender indexes are only looked up and added by the producer
+    private final long[] senderKeys;
+    private final int[] senderIndexes;
+    private int senderCount = 1;
+    private final AtomicIntegerArray queuedBySender;
+    private final AtomicInteger activeSenders = new AtomicInteger();
+
+    private final ByteBuffer overflow;
+    private boolean overflowing;
+    private BooleanSupplier producerRunning;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    // The share senders are cut back to while the producer waits for room, or 0
+    private volatile int shedShare;
+    private volatile Thread waitingConsumer;
+
+    private volatile long droppedNewest;
+    private volatile long droppedOldest;
+    private volatile int maxDepth;
+
+    /**
+     * Allocates the slots of the queue. At most one sender for every slot
+     * gets its own share; the datagrams of any further senders share one.
+     * @param capacity The number of slots, rounded up to a power of two
+     * @param slotSize The size of each slot, which is the largest datagram that can be received
+     * @param policy What the producer does when the queue is full
+     */
+    public DatagramRing(int capacity, int slotSize, OverloadPolicy policy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new ByteBuffer[size];
+        this.lengths = new int[size];
+        this.senders = new int[size];
+        this.mask = size - 1;
+        this.policy = policy;
+        this.senderKeys = new long[size * 2];
+        Arrays.fill(senderKeys, NO_SENDER);
+        this.senderIndexes = new int[size * 2];
+        this.queuedBySender = new AtomicIntegerArray(size + 1);
+        ByteBuffer memory = ByteBuffer.allocateDirect((size + 1) * slotSize);
+        for(int i = 0; i <= size; i++) {
+            memory.limit((i + 1) * slotSize).position(i * slotSize);
+            if(i < size) slots[i] = memory.slice();
+        }
+        this.overflow = memory.slice(size * slotSize, slotSize);
+    }
+
+    /**
+     * Returns the next free slot for the producer to read a datagram into.
+     * If the queue is full the overload policy is followed, which can make
+     * this wait for the consumer. With DROP_OLDEST the spare buffer is
+     * returned, and publish decides what to drop once the sender is known.
+     * @param running Checked while waiting, so the producer can be stopped
+     * @return Returns the cleared slot, or null if the datagram must be dropped
+     */
+    public ByteBuffer claim(BooleanSupplier running) {
+        long t = tail.get();
+        if(t - head.get() > mask) {
+            if(policy == OverloadPolicy.DROP_NEWEST) {
+                droppedNewest++;
+                return null;
+            }
+            if(policy == OverloadPolicy.DROP_OLDEST) {
+                overflowing = true;
+                producerRunning = running;
+                overflow.clear();
+                return overflow;
+            }
+            if(!awaitRoom(t, running)) return null;
+        }
+        ByteBuffer slot = slots[(int) t & mask];
+        slot.clear();
+        return slot;
+    }
+
+    /**
+     * Hands the slot returned by claim to the consumer. A datagram that
+     * was read into the spare buffer is dropped if its sender already
+     * holds its share of the queue, and otherwise copied into the first
+     * slot the consumer frees.
+     * @param length The number of bytes that were read into the slot
+     */
+    public void publish(int length) {
+        long t = tail.get();
+        ByteBuffer slot = slots[(int) t & mask];
+        int sender = senderOf(overflowing ? overflow : slot, length);
+        if(overflowing) {
+            overflowing = false;
+            int queued = queuedBySender.get(sender);
+            int share = share(queued == 0 ? 1 : 0);
+            if(queued >= share) {
+                droppedNewest++;
+                return;
+            }
+            shedShare = share;
+            boolean room = awaitRoom(t, producerRunning);
+            shedShare = 0;
+            if(!room) return;
+            slot.clear();
+            slot.put(0, overflow, 0, length);
+        }
+        lengths[(int) t & mask] = length;
+        senders[(int) t & mask] = sender;
+        if(queuedBySender.getAndIncrement(sender) == 0) activeSenders.incrementAndGet();
+        // A full write, so a consumer that is about to park sees the datagram or is woken
+        tail.set(t + 1);
+        int depth = (int) (t + 1 - head.get());
+        if(depth > maxDepth) maxDepth = depth;
+        if(waitingConsumer != null) wakeConsumer();
+    }
+
+    /**
+     * Waits until the consumer has freed a slot.
+     * @param t The tail of the queue
+     * @param running Checked while waiting, so the producer can be stopped
+     * @return Returns false if the producer was stopped
+     */
+    private boolean awaitRoom(long t, BooleanSupplier running) {
+        wakeConsumer();
+        while(t - head.get() > mask) {
+            if(!running.getAsBoolean()) return false;
+            LockSupport.parkNanos(PRODUCER_WAIT_NANOS);
+        }
+        return true;
+    }
+
+    /**
+     * Finds the index of the sender of a datagram from the ip and port in
+     * its header, which are at the same place in both versions of the
+     * update format. Senders are added the first time they are seen;
+     * datagrams that are too short and the senders after the table is
+     * full all get index 0.
+     * @param datagram The buffer the datagram was read into
+     * @param length The number of bytes that were read
+     * @return Returns the index of the sender
+     */
+    private int senderOf(ByteBuffer datagram, int length) {
+        if(length < 8) return 0;
+        long key = ((datagram.getInt(4) & 0xFFFFFFFFL) << 16) | (datagram.getShort(2) & 0xFFFF);
+        int keyMask = senderKeys.length - 1;
+        int i = Long.hashCode(key * 0x9E3779B97F4A7C15L) & keyMask;
+        for(; senderKeys[i] != NO_SENDER; i = (i + 1) & keyMask) {
+            if(senderKeys[i] == key) return senderIndexes[i];
+        }
+        if(senderCount > mask + 1) return 0;
+        senderKeys[i] = key;
+        senderIndexes[i] = senderCount;
+        return senderCount++;
+    }
+
+    /**
+     * Returns how many datagrams each sender may hold when the queue is full.
+     * @param newSenders The number of senders about to get their first datagram in the queue
+     * @return Returns the share of one sender
+     */
+    private int share(int newSenders) {
+        return Math.max(1, (mask + 1) / Math.max(1, activeSenders.get() + newSenders));
+    }
+
+    /**
+     * Returns the oldest queued slot to the consumer. While the producer
+     * is waiting for room, the oldest datagrams of senders that hold more
+     * than their share are dropped first.
+     * @return Returns the index of the slot, or -1 if the queue is empty
+     */
+    public int poll() {
+        long h = head.get();
+        int share = shedShare;
+        if(share > 0) {
+            long t = tail.get();
+            while(h != t && queuedBySender.get(senders[(int) h & mask]) > share) {
+                dequeued(senders[(int) h & mask]);
+                h++;
+                droppedOldest++;
+                head.lazySet(h);
+            }
+        }
+        return (tail.get() == h) ? -1 : (int) h & mask;
+    }
+
+    /**
+     * Returns a queued datagram. It starts at position 0 of the buffer.
+     * @param index The index returned by poll
+     * @return Returns the buffer of the slot
+     */
+    public ByteBuffer slot(int index) {
+        return slots[index];
+    }
+
+    /**
+     * Returns the length of a queued datagram.
+     * @param index The index returned by poll
+     * @return Returns the number of bytes in the slot
+     */
+    public int length(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * Frees the slot returned by poll so the producer can reuse it.
+     */
+    public void release() {
+        long h = head.get();
+        dequeued(senders[(int) h & mask]);
+        head.lazySet(h + 1);
+    }
+
+    private void dequeued(int sender) {
+        if(queuedBySender.decrementAndGet(sender) == 0) activeSenders.decrementAndGet();
+    }
+
+    /**
+     * Makes the consumer wait until a datagram is queued or a short
+     * timeout passes, so that it can check whether it should stop.
+     */
+    public void awaitDatagram() {
+        waitingConsumer = Thread.currentThread();
+        if(tail.get() == head.get() && shedShare == 0) LockSupport.parkNanos(this, CONSUMER_WAIT_NANOS);
+        waitingConsumer = null;
+    }
+
+    private void wakeConsumer() {
+        Thread consumer = waitingConsumer;
+        if(consumer != null) LockSupport.unpark(consumer);
+    }
+
+    /**
+     * Returns the number of datagrams waiting in the queue.
+     * @return Returns the queue depth
+     */
+    public int depth() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Returns the largest number of datagrams that have been waiting at once.
+     * @return Returns the largest queue depth
+     */
+    public int maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the number of new datagrams dropped because the queue was full.
+     * @return Returns the number of dropped datagrams
+     */
+    public long droppedNewest() {
+        return droppedNewest;
+    }
+
+    /**
+     * Returns the number of queued datagrams dropped to make room for new ones.
+     * @return Returns the number of dropped datagrams
+     */
+    public long droppedOldest() {
+        return droppedOldest;
+    }
+}
@@ -1,7 +1,16 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.net.BindException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.Scanner;
 
 /**
@@ -9,16 +18,36 @@ import java.util.Scanner;
  */
 public class DistanceVectorRouting {
     public static int routingUpdateInterval;
+    private static Server server;
+    private static long reportedPackets;
+    private static Path topologyPath;
 
     /**
      * Takes command line arguments to get the topology
      * file name and the routing interval. This
      * method also listens for user input and calls
-     * appropriate methods for the command.
-     * @param args Includes topology name and routing interval
+     * appropriate methods for the command. The options after
+     * -t file -i seconds are:
+     * <ul>
+     * <li>-eventloop: run the server on one event loop thread instead of a receiving and a sending thread</li>
+     * <li>-maxmetric cost: the cost at which routes become unreachable, for example 16 like RIP</li>
+     * <li>-splithorizon none|simple|poison: how routes are hidden from their next hop, poison by default</li>
+     * <li>-queue n: how many received datagrams can wait to be computed, without -eventloop, 256 by default and at most 16384</li>
+     * <li>-overload block|drop-newest|drop-oldest: what happens when the queue is full, drop-oldest by default</li>
+     * <li>-wire 1|2: the newest update format that is sent and read, 1 for servers that cannot read 2</li>
+     * <li>-id n: which server of a whole network file this is, when several have this computer's ip</li>
+     * <li>-watch: reload the topology file whenever it is saved</li>
+     * <li>-persist file: save the routing table after every update and start from it after a restart</li>
+     * <li>-multipath k: keep up to k next hops for every destination</li>
+     * <li>-tolerance n: also keep paths that cost up to n more than the route</li>
+     * <li>-parallel n: compute updates with many entries on n threads, or on every core with 0</li>
+     * <li>-log debug|info|warn|error|off: the lowest level of messages that is shown, info by default</li>
+     * <li>-logfile file: write the messages to a file instead of the console</li>
+     * </ul>
+     * @param args Includes topology name, routing interval and options
      */
     public static void main(String[] args) {
-        if(args.length == 4) {
+        if(args.length >= 4) {
             if(!args[0].equalsIgnoreCase("-t")){
                 System.err.println("Error: first argument must be -t");
                 System.exit(1);
@@ -27,12 +56,90 @@ public class DistanceVectorRouting {
                 System.err.println("Error: third argument must be -i");
                 System.exit(1);
             }
-            if(isValidFile(args[1])) readTopology(args[1]);
+            routingUpdateInterval = parsePositive(args, 3, "-i");
+            boolean useEventLoop = false;
+            int maxMetric = RoutingTable.INFINITY;
+            SplitHorizon splitHorizon = SplitHorizon.POISONED_REVERSE;
+            int queueCapacity = UdpTransport.DEFAULT_QUEUE_CAPACITY;
+            OverloadPolicy overloadPolicy = OverloadPolicy.DROP_OLDEST;
+            int wireVersion = RoutingUpdateMessage.VERSION_2;
+            int serverId = -1;
+            boolean watch = false;
+            String persistFile = null;
+            int maxPaths = 1;
+            int pathTolerance = 0;
+            int parallelThreads = -1;
+            LogLevel logLevel = LogLevel.INFO;
+            String logFile = null;
+            for(int i = 4; i < args.length; i++) {
+                String option = args[i].toLowerCase();
+                boolean hasValue = i + 1 < args.length;
+                if(option.equals("-eventloop")) useEventLoop = true;
+                else if(option.equals("-watch")) watch = true;
+                else if(option.equals("-maxmetric") && hasValue) maxMetric = parsePositive(args, ++i, option);
+                else if(option.equals("-queue") && hasValue) {
+                    queueCapacity = parsePositive(args, ++i, option);
+                    if(queueCapacity > UdpTransport.MAX_QUEUE_CAPACITY) {
+                        optionError(option, "a number from 1 to " + UdpTransport.MAX_QUEUE_CAPACITY);
+                    }
+                }
+                else if(option.equals("-multipath") && hasValue) maxPaths = parsePositive(args, ++i, option);
+                else if(option.equals("-parallel") && hasValue) {
+                    parallelThreads = parseNumber(args, ++i, option, 0, "a number of threads, or 0 for every core");
+                }
+                else if(option.equals("-tolerance") && hasValue) {
+                    pathTolerance = parseNumber(args, ++i, option, 0, "a number that is not negative");
+                }
+                else if(option.equals("-id") && hasValue) serverId = parseNumber(args, ++i, option, 0, "a server id");
+                else if(option.equals("-wire") && hasValue) {
+                    wireVersion = parseNumber(args, ++i, option, RoutingUpdateMessage.VERSION_1, "1 or 2");
+                    if(wireVersion > RoutingUpdateMessage.VERSION_2) optionError(option, "1 or 2");
+                }
+                else if(option.equals("-overload") && hasValue) {
+                    overloadPolicy = OverloadPolicy.fromName(args[++i]);
+                    if(overloadPolicy == null) optionError(option, "block, drop-newest or drop-oldest");
+                }
+                else if(option.equals("-splithorizon") && hasValue) {
+                    splitHorizon = SplitHorizon.fromName(args[++i]);
+                    if(splitHorizon == null) optionError(option, "none, simple or poison");
+                }
+                else if(option.equals("-log") && hasValue) {
+                    logLevel = LogLevel.fromName(args[++i]);
+                    if(logLevel == null) optionError(option, "debug, info, warn, error or off");
+                }
+                else if(option.equals("-persist") && hasValue) persistFile = args[++i];
+                else if(option.equals("-logfile") && hasValue) logFile = args[++i];
+                else {
+                    System.err.println("Error: unknown option " + args[i]);
+                    System.exit(1);
+                }
+            }
+
+            EventLoop eventLoop = useEventLoop ? new EventLoop() : null;
+            Transport transport = useEventLoop ? new NioTransport(eventLoop) : new UdpTransport(queueCapacity, overloadPolicy);
+            if(isValidFile(args[1])) server = readTopology(args[1], serverId, transport);
             else System.exit(1);
+            server.maxMetric = maxMetric;
+            server.updater.splitHorizon = splitHorizon;
+            server.wireVersion = wireVersion;
+            server.table.setMultipath(maxPaths, pathTolerance);
+            server.log = createEventLog(logLevel, logFile);
+            if(eventLoop != null) eventLoop.setEventLog(server.log);
+            if(parallelThreads >= 0) {
+                server.parallel = new ParallelDistanceVector(server, parallelThreads, ParallelDistanceVector.DEFAULT_THRESHOLD);
+            }
+            if(persistFile != null) server.store = new RoutingTableStore(Paths.get(persistFile));
 
-            routingUpdateInterval = Integer.parseInt(args[3]);
-            RoutingUpdater ru = new RoutingUpdater(routingUpdateInterval);
-            if(Server.running && !ru.isRunning) ru.start();
+            try {
+                server.start();
+            } catch (BindException e) {
+                System.err.println("ERROR: The port " + server.port + " is already in use");
+                System.exit(1);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if(eventLoop != null) eventLoop.start();
+            if(watch) watchTopologyFile(topologyPath);
         }
         else {
             System.err.println("Error: unexpected number of arguments");
@@ -44,69 +151,171 @@ public class DistanceVectorRouting {
             System.out.print(">> ");
             String line = input.nextLine();
             String[] inputs = line.split(" ");
-            String command = inputs[0].trim().toLowerCase();
             //Alejandro Urbano 
             //Pre-validation: Validate the command and input arguments 
             if(!isValidCommand(inputs)){
                 continue;
             }
-            switch(command) {
-                case "update":
-                    if(Server.running && RoutingUpdater.isRunning) {
-                        int serverId = Integer.parseInt(inputs[1]);
-                        int neighborId = Integer.parseInt(inputs[2]);
-                        String newCost = inputs[3];
-                        RoutingUpdater.updateLink(serverId, neighborId, newCost);
-                    }
-                    else {
-                        System.out.println("update ERROR: This server is no longer running because" +
-                                " crash was called.");
-                    }
-                    break;
-                case "display":
-                    if(!Server.running) {
-                        System.out.println("display ERROR: This server is no longer running because" +
-                                " crash was called.");
-                    }
-                    else {
-                        System.out.println("display SUCCESS");
-                        Server.displayRoutingTable();
-                    }
-                    break;
-                case "packets":
-                    packets();
-                    break;
-                case "step":
-                    if(Server.running && RoutingUpdater.isRunning) {
-                        RoutingUpdater.sendUpdateToNeighbors();
-                        System.out.println("step SUCCESS");
-                    }
-                    else {
-                        System.out.println("step ERROR: This server is no longer running because crash was called.");
-                    }
-                    break;
-                case "disable":
-                    if(Server.running && RoutingUpdater.isRunning) {
-                        RoutingUpdater.disableServerLink(Integer.parseInt(inputs[1]));
-                    }
-                    else {
-                        System.out.println("disable ERROR: This server is no longer running because" +
-                                " crash was called.");
-                    }
-                    break;
-                case "crash":
-                    RoutingUpdater.CrashServer();
+            EventLoop eventLoop = server.getEventLoop();
+            if(eventLoop != null) eventLoop.executeAndWait(() -> runCommand(inputs));
+            else runCommand(inputs);
+        }
+    }
+
+    /**
+     * Reads the positive number that follows an option, and exits if it is not one.
+     * @param args The command line arguments
+     * @param i The index of the number
+     * @param option The option, for the error message
+     * @return Returns the number
+     */
+    private static int parsePositive(String[] args, int i, String option) {
+        return parseNumber(args, i, option, 1, "a positive number");
+    }
+
+    /**
+     * Reads the number that follows an option, and exits if it is not a
+     * number or is smaller than min.
+     * @param args The command line arguments
+     * @param i The index of the number
+     * @param option The option, for the error message
+     * @param min The smallest number that is allowed
+     * @param expected What the option must be followed by, for the error message
+     * @return Returns the number
+     */
+    private static int parseNumber(String[] args, int i, String option, int min, String expected) {
+        int number;
+        try {
+            number = Integer.parseInt(args[i]);
+        } catch (NumberFormatException e) {
+            number = min - 1;
+        }
+        if(number < min) optionError(option, expected);
+        return number;
+    }
+
+    /**
+     * Prints what an option must be followed by and exits.
+     * @param option The option
+     * @param expected What the option must be followed by
+     */
+    private static void optionError(String option, String expected) {
+        System.err.println("Error: " + option + " must be followed by " + expected);
+        System.exit(1);
+    }
+
+    /**
+     * Runs one console command. When the server runs on an event
+     * loop this is called on the loop thread.
+     * @param inputs The command and its arguments
+     */
+    private static void runCommand(String[] inputs) {
+        String command = inputs[0].trim().toLowerCase();
+        switch(command) {
+            case "update":
+                if(server.running && server.updater.isRunning) {
+                    int serverId = Integer.parseInt(inputs[1]);
+                    int neighborId = Integer.parseInt(inputs[2]);
+                    String newCost = inputs[3];
+                    server.updater.updateLink(serverId, neighborId, newCost);
+                }
+                else {
+                    System.out.println("update ERROR: This server is no longer running because" +
+                            " crash was called.");
+                }
+                break;
+            case "display":
+                if(!server.running) {
+                    System.out.println("display ERROR: This server is no longer running because" +
+                            " crash was called.");
+                }
+                else {
+                    System.out.println("display SUCCESS");
+                    server.displayRoutingTable();
+                }
+                break;
+            case "packets":
+                packets();
+                break;
+            case "stats":
+                System.out.println("stats SUCCESS");
+                System.out.println(server.metrics);
+                break;
+            case "step":
+                if(server.running && server.updater.isRunning) {
+                    server.updater.sendUpdateToNeighbors();
+                    System.out.println("step SUCCESS");
+                }
+                else {
+                    System.out.println("step ERROR: This server is no longer running because crash was called.");
+                }
+                break;
+            case "disable":
+                if(server.running && server.updater.isRunning) {
+                    server.updater.disableServerLink(Integer.parseInt(inputs[1]));
+                }
+                else {
+                    System.out.println("disable ERROR: This server is no longer running because" +
+                            " crash was called.");
+                }
+                break;
+            case "reload":
+                if(!server.running) {
+                    System.out.println("reload ERROR: This server is no longer running because crash was called.");
                     break;
-                case "exit":
-                    System.exit(0);
+                }
+                Path path = (inputs.length > 1) ? findTopologyFile(inputs[1]) : topologyPath;
+                if(path == null) System.out.println("reload ERROR: The file named \"" + inputs[1] + "\" was not found.");
+                else System.out.println(reload(path));
+                break;
+            case "forward":
+                if(!server.running) {
+                    System.out.println("forward ERROR: This server is no longer running because crash was called.");
                     break;
-                default:
-                    System.out.println(inputs[0] + " is not a command.");
-            }
+                }
+                int destinationId = Integer.parseInt(inputs[1]);
+                int nextHop = server.forwardingHop(destinationId, inputs[2].hashCode());
+                if(nextHop == -1) System.out.println("forward ERROR: Server " + destinationId + " cannot be reached.");
+                else {
+                    System.out.println("forward SUCCESS");
+                    System.out.println("Flow " + inputs[2] + " to server " + destinationId + " goes through server " + nextHop);
+                }
+                break;
+            case "crash":
+                server.updater.CrashServer();
+                break;
+            case "exit":
+                // Write the events that are still waiting before the process ends
+                if(server.log != null) server.log.close();
+                System.exit(0);
+                break;
+            default:
+                System.out.println(inputs[0] + " is not a command.");
         }
     }
 
 
+    /**
+     * Creates and starts the event log of the server.
+     * @param level The lowest level that is recorded
+     * @param fileName The file the events are written to, or null for the console
+     * @return Returns the started event log
+     */
+    private static EventLog createEventLog(LogLevel level, String fileName) {
+        Writer file = null;
+        if(fileName != null) {
+            try {
+                file = Files.newBufferedWriter(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.err.println("Error: The log file " + fileName + " could not be opened: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        EventLog log = new EventLog(level, EventLog.DEFAULT_CAPACITY, file);
+        log.start();
+        return log;
+    }
+
     /**
      * This method ensures that threads don't print out
      * messages at the same time.
@@ -122,13 +331,15 @@ public class DistanceVectorRouting {
 
     /**
      * Prints out the number of packets this server has
-     * received since its last call.
+     * received since its last call. Every datagram counts, including
+     * each segment of a large update and packets that were dropped.
      */
     public static void packets() {
         System.out.println("packets SUCCESS");
-        System.out.println("Number of distance vector packets received since last call: " + Server.packetCount);
-        // Reset the packet count
-        Server.packetCount = 0;
+        long received = server.metrics.getPacketsReceived();
+        System.out.println("Number of distance vector packets received since last call: " + (received - reportedPackets));
+        // The counter keeps going up, so remember where this call left off instead of resetting it
+        reportedPackets = received;
     }
 
     /**
@@ -136,29 +347,92 @@ public class DistanceVectorRouting {
      * takes the topology file path. The object will read the topology file
      * and store its values.
      * @param fileName the name of the topology file
+     * @param serverId The id of this server, or -1 to find it from the file
+     * @param transport The transport the server will use
+     * @return Returns the server, which has not been started yet
      */
-    public static void readTopology(String fileName) {
-        try {
-            URL resourceUrl = DistanceVectorRouting.class.getResource(fileName);
-            if(resourceUrl == null) {
-                System.err.println("The file with named \"" +fileName+"\" was not found.");
-                System.exit(1);
-            }
+    public static Server readTopology(String fileName, int serverId, Transport transport) {
+        Path filePath = findTopologyFile(fileName);
+        if(filePath == null) {
+            System.err.println("The file with named \"" +fileName+"\" was not found.");
+            System.exit(1);
+        }
+        topologyPath = filePath;
+        Server server = new Server(transport, 1000*routingUpdateInterval);
+        String status = server.readTopologyFile(filePath.toString(), serverId);
 
-            Path filePath = Paths.get(resourceUrl.toURI());
-            Server server = new Server();
-            String status = server.readTopologyFile(filePath.toString());
+        if(!status.equals("SUCCESS")) {
+            System.err.println(status);
+            System.exit(1);
+        }
+        return server;
+    }
 
-            if(!status.equals("SUCCESS")) {
-                System.err.println(status);
-                System.exit(1);
-            }
-            server.start();
+    /**
+     * Finds a topology file next to the program's classes.
+     * @param fileName the name of the topology file
+     * @return Returns the path of the file, or null if it was not found
+     */
+    private static Path findTopologyFile(String fileName) {
+        try {
+            URL resourceUrl = DistanceVectorRouting.class.getResource(fileName);
+            return (resourceUrl == null) ? null : Paths.get(resourceUrl.toURI());
         } catch(URISyntaxException e) {
             e.printStackTrace();
+            return null;
         }
     }
 
+    /**
+     * Reloads a topology file and applies only what changed.
+     * @param path The path of the topology file
+     * @return Returns the message for the console
+     * @see Server#reloadTopology(String)
+     */
+    private static String reload(Path path) {
+        String status = server.reloadTopology(path.toString());
+        if(status.startsWith("ERROR")) return "reload " + status;
+        return "reload SUCCESS\n" + status;
+    }
+
+    /**
+     * Starts a thread that reloads the topology file whenever it is saved.
+     * Editors often write a file in several steps, so the thread waits a
+     * moment after the first change and reloads the file once.
+     * @param path The path of the topology file
+     */
+    private static void watchTopologyFile(Path path) {
+        Path file = path.toAbsolutePath();
+        Thread watcher = new Thread(() -> {
+            try (WatchService watchService = file.getFileSystem().newWatchService()) {
+                file.getParent().register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                while(true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = false;
+                    for(WatchEvent<?> event : key.pollEvents()) {
+                        if(file.getFileName().equals(event.context())) changed = true;
+                    }
+                    key.reset();
+                    if(!changed || !server.running) continue;
+
+                    Thread.sleep(200);
+                    for(WatchKey extra = watchService.poll(); extra != null; extra = watchService.poll()) {
+                        extra.pollEvents();
+                        extra.reset();
+                    }
+                    printMessageFromThread(reload(file));
+                }
+            } catch (IOException e) {
+                printMessageFromThread("reload ERROR: The topology file cannot be watched: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "topology-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
      // Validate that the file name is not null or empty
      private static boolean isValidFile(String fileName) {
         if (fileName == null || fileName.isEmpty()) {
@@ -201,8 +475,30 @@ public class DistanceVectorRouting {
             }
         }
 
-        // Validate the 'crash', 'display', and 'packets' commands
-        if ("crash".equals(inputs[0]) || "display".equals(inputs[0]) || "packets".equals(inputs[0]) || "step".equals(inputs[0])) {
+        // Validate the 'forward' command
+        if ("forward".equals(inputs[0])) {
+            if (inputs.length != 3) {
+                System.out.println("forward ERROR: Wrong usage" +
+                        "\nUsage: forward <server-id> <flow>");
+                return false;
+            }
+            try {
+                Integer.parseInt(inputs[1]); // Server ID
+            } catch (NumberFormatException e) {
+                System.out.println("forward ERROR: Server ID must be an integer.");
+                return false;
+            }
+        }
+
+        // Validate the 'reload' command
+        if ("reload".equals(inputs[0]) && inputs.length > 2) {
+            System.out.println("reload ERROR: Wrong usage" +
+                    "\nUsage: reload [topology-file]");
+            return false;
+        }
+
+        // Validate the 'crash', 'display', 'packets' and 'stats' commands
+        if ("crash".equals(inputs[0]) || "display".equals(inputs[0]) || "packets".equals(inputs[0]) || "step".equals(inputs[0]) || "stats".equals(inputs[0])) {
             if (inputs.length != 1) {
                 System.out.println(inputs[0] + " ERROR: Wrong usage"+"\nUsage: " + inputs[0]);
                 return false;
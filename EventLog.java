@@ -0,0 +1,236 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records events from the receiving, sending and timer threads without
+ * making them wait for the console or a file. The events are kept in a
+ * ring of slots that are allocated once, and each event is only a type,
+ * a level, a time and a number, or a string that was already built, so
+ * recording one does not create objects. A background thread turns the
+ * events into text and writes them. When the ring is full the event is
+ * dropped and counted instead of waiting.
+ * <p>
+ * Any thread may record. Each slot has a sequence number that tells
+ * whether it is free, being written or ready to be written out, so the
+ * threads claim slots with one compare-and-set and no locks.
+ */
+public class EventLog {
+    public static final int DEFAULT_CAPACITY = 4096;
+    private static final long DRAIN_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * The kinds of events. The text of an event is its prefix, its number
+     * and its suffix, or only its message for MESSAGE.
+     */
+    public enum Event {
+        MESSAGE("", ""),
+        UPDATE_RECEIVED("RECEIVED A MESSAGE FROM SERVER ", ""),
+        NEIGHBOR_TIMED_OUT("Node ", " has timed out.");
+
+        private final String prefix;
+        private final String suffix;
+
+        Event(String prefix, String suffix) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        /**
+         * Returns the text of an event of this kind.
+         * @param argument The number of the event
+         * @param message The message of a MESSAGE event
+         * @return Returns the text
+         */
+        public String format(int argument, String message) {
+            return (this == MESSAGE) ? message : prefix + argument + suffix;
+        }
+    }
+
+    private static final Event[] EVENTS = Event.values();
+    private static final LogLevel[] LEVELS = LogLevel.values();
+
+    private volatile LogLevel level;
+    private final Writer file;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] times;
+    private final int[] events;
+    private final int[] levels;
+    private final int[] arguments;
+    private final String[] messages;
+
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean running;
+    private Thread drainer;
+
+    /**
+     * Allocates the ring of the log.
+     * @param level The lowest level that is recorded
+     * @param capacity The number of slots, rounded up to a power of two
+     * @param file Where the events are written, or null to print them on the console
+     */
+    public EventLog(LogLevel level, int capacity, Writer file) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.level = level;
+        this.file = file;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) sequences.set(i, i);
+        this.times = new long[size];
+        this.events = new int[size];
+        this.levels = new int[size];
+        this.arguments = new int[size];
+        this.messages = new String[size];
+    }
+
+    /**
+     * Starts the thread that writes the events.
+     */
+    public void start() {
+        running = true;
+        drainer = new Thread(this::drain, "event-log");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Stops the writing thread after it has written the events that are
+     * in the ring, and closes the file.
+     */
+    public void close() {
+        running = false;
+        if(drainer == null) return;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Changes the lowest level that is recorded.
+     * @param level The new level
+     */
+    public void setLevel(LogLevel level) {
+        this.level = level;
+    }
+
+    /**
+     * Checks if events of a level are recorded, so that callers can skip
+     * building a message that would not be used.
+     * @param level The level of the event
+     * @return Returns true if the event would be recorded
+     */
+    public boolean isEnabled(LogLevel level) {
+        return level.compareTo(this.level) >= 0 && level != LogLevel.OFF;
+    }
+
+    /**
+     * Records an event with a number, such as the id of a server. This
+     * does not create objects and never waits.
+     * @param level The level of the event
+     * @param event The kind of event
+     * @param argument The number of the event
+     */
+    public void record(LogLevel level, Event event, int argument) {
+        if(isEnabled(level)) record(level, event, argument, null);
+    }
+
+    /**
+     * Records a message that was already built.
+     * @param level The level of the event
+     * @param message The text of the event
+     */
+    public void record(LogLevel level, String message) {
+        if(isEnabled(level)) record(level, Event.MESSAGE, 0, message);
+    }
+
+    private void record(LogLevel level, Event event, int argument, String message) {
+        long t;
+        int slot;
+        while(true) {
+            t = tail.get();
+            slot = (int) t & mask;
+            long sequence = sequences.get(slot);
+            if(sequence == t) {
+                if(tail.compareAndSet(t, t + 1)) break;
+            }
+            else if(sequence < t) {
+                // The slot still holds an event from the previous lap, so the ring is full
+                dropped.increment();
+                return;
+            }
+        }
+        times[slot] = System.currentTimeMillis();
+        events[slot] = event.ordinal();
+        levels[slot] = level.ordinal();
+        arguments[slot] = argument;
+        messages[slot] = message;
+        sequences.set(slot, t + 1);
+    }
+
+    /**
+     * Returns the number of events that were dropped because the ring was full.
+     * @return Returns the number of dropped events
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    private void drain() {
+        while(true) {
+            boolean stopping = !running;
+            int written = 0;
+            while(true) {
+                int slot = (int) head & mask;
+                if(sequences.get(slot) != head + 1) break;
+                write(slot);
+                messages[slot] = null;
+                sequences.set(slot, head + mask + 1);
+                head++;
+                written++;
+            }
+            if(written > 0) flush();
+            if(stopping) break;
+            if(written == 0) LockSupport.parkNanos(this, DRAIN_WAIT_NANOS);
+        }
+        if(file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.err.println("ERROR: The log file could not be closed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void write(int slot) {
+        String text = EVENTS[events[slot]].format(arguments[slot], messages[slot]);
+        if(file == null) {
+            DistanceVectorRouting.printMessageFromThread(text);
+            return;
+        }
+        try {
+            file.write(Instant.ofEpochMilli(times[slot]) + " " + LEVELS[levels[slot]] + " " + text + "\n");
+        } catch (IOException e) {
+            dropped.increment();
+        }
+    }
+
+    private void flush() {
+        if(file == null) return;
+        try {
+            file.flush();
+        } catch (IOException e) {
+            System.err.println("ERROR: The log file could not be written: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A single thread that does all the work of one or more servers. It waits on
+ * a selector for datagrams on non-blocking channels, runs timers, and runs
+ * tasks handed to it by other threads such as the console. Because only this
+ * thread touches the routing state, receiving, computing routes, checking
+ * timeouts and sending never wait on each other. A handler, task or timer
+ * that throws is counted and logged, and the loop goes on with the next
+ * one, so one bad datagram or bug cannot stop every server on the loop.
+ */
+public class EventLoop extends Thread {
+    private final Selector selector;
+    private final PriorityQueue<Timer> timers;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private volatile boolean running;
+    private long timerCount;
+    private volatile long errors;
+    private volatile EventLog log;
+
+    /**
+     * Called by the event loop when a channel has datagrams to read.
+     */
+    public interface Handler {
+        void onReadable(DatagramChannel channel) throws IOException;
+    }
+
+    /**
+     * Creates an event loop. The loop does nothing until it is started.
+     */
+    public EventLoop() {
+        super("event-loop");
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        timers = new PriorityQueue<>();
+        tasks = new ConcurrentLinkedQueue<>();
+        running = true;
+    }
+
+    /**
+     * Registers a channel with the loop. The channel is made non-blocking and
+     * the handler is called on the loop thread every time it can be read.
+     * @param channel A bound datagram channel
+     * @param handler The handler that reads the channel
+     */
+    public void register(DatagramChannel channel, Handler handler) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, handler);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the loop thread after a delay. Must be called
+     * from the loop thread, for example from a handler or another timer.
+     * @param delayMillis The delay in milliseconds
+     * @param task The task to run
+     */
+    public void schedule(long delayMillis, Runnable task) {
+        timers.add(new Timer(System.nanoTime() + delayMillis * 1_000_000L, timerCount++, task));
+    }
+
+    /**
+     * Runs a task on the loop thread as soon as possible.
+     * This can be called from any thread.
+     * @param task The task to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs a task on the loop thread and waits until it has finished.
+     * This is used by the console so that commands see a consistent table.
+     * @param task The task to run
+     */
+    public void executeAndWait(Runnable task) {
+        if(Thread.currentThread() == this) {
+            task.run();
+            return;
+        }
+        FutureTask<Void> future = new FutureTask<>(task, null);
+        execute(future);
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Runs the queued tasks on the calling thread until there are none
+     * left, including tasks queued by the tasks that run. This is for a
+     * loop that was never started, so that a test can drive it one step
+     * at a time without real timers. Timers are not run.
+     * @return Returns the number of tasks that ran
+     */
+    public int runTasks() {
+        int count = 0;
+        Runnable task;
+        while((task = tasks.poll()) != null) {
+            task.run();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Sets the log that exceptions thrown on the loop are written to.
+     * Without a log they are printed on standard error.
+     * @param log The event log, or null
+     */
+    public void setEventLog(EventLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Returns how many handlers, tasks and timers threw an exception.
+     * @return Returns the number of exceptions
+     */
+    public long errors() {
+        return errors;
+    }
+
+    /**
+     * Stops the loop after the current iteration.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Waits for datagrams until the next timer is due, then handles
+     * readable channels, queued tasks and due timers.
+     */
+    @Override
+    public void run() {
+        while(running) {
+            try {
+                long timeout = 0;
+                Timer next = timers.peek();
+                if(next != null) timeout = Math.max(1, (next.deadline - System.nanoTime()) / 1_000_000L);
+                selector.select(timeout);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            for(SelectionKey key : selector.selectedKeys()) {
+                if(!key.isValid()) continue;
+                try {
+                    ((Handler) key.attachment()).onReadable((DatagramChannel) key.channel());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } catch (RuntimeException e) {
+                    report("handler", e);
+                }
+            }
+            selector.selectedKeys().clear();
+
+            Runnable task;
+            while((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    report("task", e);
+                }
+            }
+
+            long now = System.nanoTime();
+            while(!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+                try {
+                    timers.poll().task.run();
+                } catch (RuntimeException e) {
+                    report("timer", e);
+                }
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Counts an exception thrown on the loop and writes it to the log.
+     * @param where What threw it: a handler, a task or a timer
+     * @param e The exception
+     */
+    private void report(String where, RuntimeException e) {
+        errors++;
+        EventLog eventLog = log;
+        if(eventLog == null) {
+            System.err.println("ERROR: A " + where + " on the event loop threw an exception");
+            e.printStackTrace();
+        }
+        else eventLog.record(LogLevel.ERROR, "ERROR: A " + where + " on the event loop threw " + e);
+    }
+
+    /**
+     * A task that runs at a deadline. Timers with the same deadline
+     * run in the order they were scheduled.
+     */
+    private static class Timer implements Comparable<Timer> {
+        final long deadline;
+        final long order;
+        final Runnable task;
+
+        Timer(long deadline, long order, Runnable task) {
+            this.deadline = deadline;
+            this.order = order;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            long difference = deadline - other.deadline;
+            if(difference != 0) return (difference < 0) ? -1 : 1;
+            return Long.compare(order, other.order);
+        }
+    }
+}
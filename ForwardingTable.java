@@ -0,0 +1,79 @@
+import java.util.Arrays;
+
+/**
+ * The forwarding table of a server, which is the next hop for every
+ * destination in one array indexed by server id. It is built from the
+ * routing table each time the routing table is published and never
+ * changes afterwards, so lookups read a plain array without locks and
+ * never wait for the distance vector calculation. Only the destinations
+ * whose routes changed since the previous forwarding table are written
+ * into the new one, and when no next hop changed the previous one is kept.
+ * With several next hops per destination only the route's own next hop
+ * is here; {@link Server#forwardingHop(int, long)} chooses among all of them.
+ * @see RoutingTable#forwardingTable()
+ */
+public final class ForwardingTable {
+    static final ForwardingTable EMPTY = new ForwardingTable(0, new int[0]);
+
+    private final int version;
+    private final int[] nextHopById;
+
+    private ForwardingTable(int version, int[] nextHopById) {
+        this.version = version;
+        this.nextHopById = nextHopById;
+    }
+
+    /**
+     * Returns the next hop for a destination.
+     * @param destinationId The id of the destination server
+     * @return Returns the id of the next hop, or -1 if the destination cannot be reached
+     */
+    public int nextHop(int destinationId) {
+        int[] hops = nextHopById;
+        return (destinationId >= 0 && destinationId < hops.length) ? hops[destinationId] : -1;
+    }
+
+    /**
+     * Returns the version of the routing table this forwarding table was built from.
+     * @return Returns the table version
+     */
+    public int version() {
+        return version;
+    }
+
+    /**
+     * Builds the forwarding table for the current routing table. This is
+     * called by the routing table when it publishes, while the table's
+     * lock is held.
+     * @param previous The forwarding table built from the previous snapshot
+     * @param version The version of the routing table
+     * @param size The number of slots in the routing table
+     * @param ids The id of each slot
+     * @param nextHopId The next hop of each slot
+     * @param changedAt The table version at which each slot's route last changed
+     * @param idOrder The slots that are in the table, in id order
+     * @param serversChanged True if servers were added, removed or moved since the previous one
+     * @return Returns the new forwarding table, or previous if no next hop changed
+     */
+    static ForwardingTable update(ForwardingTable previous, int version, int size, int[] ids, int[] nextHopId,
+                                  int[] changedAt, int[] idOrder, boolean serversChanged) {
+        if(serversChanged) {
+            int length = (idOrder.length == 0) ? 0 : ids[idOrder[idOrder.length - 1]] + 1;
+            int[] hops = new int[length];
+            Arrays.fill(hops, -1);
+            for(int slot : idOrder) hops[ids[slot]] = nextHopId[slot];
+            return new ForwardingTable(version, hops);
+        }
+
+        int[] hops = null;
+        for(int slot = 0; slot < size; slot++) {
+            if(changedAt[slot] - previous.version <= 0) continue;
+            int id = ids[slot];
+            if(previous.nextHopById[id] == nextHopId[slot]) continue;
+            // The array is only copied once a next hop is known to have changed
+            if(hops == null) hops = previous.nextHopById.clone();
+            hops[id] = nextHopId[slot];
+        }
+        return (hops == null) ? previous : new ForwardingTable(version, hops);
+    }
+}
@@ -0,0 +1,134 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * A network of servers that run in the same JVM. Servers are found by the
+ * address in the topology, and datagrams are delivered as tasks on one event
+ * loop, so thousands of servers can run on a single thread. Datagrams wait
+ * in an inbox for each server, and one task hands everything in the inbox to
+ * the server as a batch. The network counts the datagrams and bytes that were sent.
+ * @see InMemoryTransport
+ */
+public class InMemoryNetwork {
+    private final EventLoop loop;
+    private final HashMap<InetSocketAddress, Inbox> servers;
+    private long messageCount;
+    private long byteCount;
+
+    /**
+     * Creates an empty network with its own event loop.
+     */
+    public InMemoryNetwork() {
+        this.loop = new EventLoop();
+        this.servers = new HashMap<>();
+    }
+
+    /**
+     * Adds a server to the network.
+     * @param address The address other servers send to
+     * @param server The server that receives datagrams sent to the address
+     */
+    public void attach(InetSocketAddress address, Server server) {
+        synchronized (servers) {
+            servers.put(address, new Inbox(server));
+        }
+    }
+
+    /**
+     * Removes a server from the network. Datagrams sent to it are dropped.
+     * @param address The address of the server
+     */
+    public void detach(InetSocketAddress address) {
+        synchronized (servers) {
+            servers.remove(address);
+        }
+    }
+
+    /**
+     * Copies a datagram into the inbox of the server at the address. The
+     * inbox is handed to the server on the event loop. Datagrams to unknown
+     * addresses are dropped.
+     * @param datagram The datagram from its position to its limit
+     * @param address The address of the receiving server
+     */
+    public void deliver(ByteBuffer datagram, InetSocketAddress address) {
+        int length = datagram.remaining();
+        byte[] copy = new byte[length];
+        datagram.get(copy);
+        messageCount++;
+        byteCount += length;
+
+        Inbox inbox;
+        synchronized (servers) {
+            inbox = servers.get(address);
+        }
+        if(inbox == null) return;
+        boolean wasEmpty;
+        synchronized (inbox) {
+            wasEmpty = inbox.datagrams.isEmpty();
+            inbox.datagrams.add(copy);
+        }
+        if(wasEmpty) loop.execute(inbox::drain);
+    }
+
+    /**
+     * Returns the event loop that runs every server on this network.
+     * @return Returns the event loop
+     */
+    public EventLoop getEventLoop() {
+        return loop;
+    }
+
+    /**
+     * Returns the number of datagrams sent on the network.
+     * Must be read on the event loop.
+     * @return Returns the number of datagrams
+     */
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * Returns the number of bytes sent on the network.
+     * Must be read on the event loop.
+     * @return Returns the number of bytes
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * The datagrams waiting for one server.
+     */
+    private static class Inbox {
+        final Server server;
+        final ArrayDeque<byte[]> datagrams = new ArrayDeque<>();
+
+        Inbox(Server server) {
+            this.server = server;
+        }
+
+        /**
+         * Hands the waiting datagrams to the server in batches of at most
+         * Transport.RECEIVE_BATCH. Runs on the event loop.
+         */
+        void drain() {
+            while(true) {
+                int received = 0;
+                byte[] datagram = null;
+                while(received < Transport.RECEIVE_BATCH) {
+                    synchronized (this) {
+                        datagram = datagrams.poll();
+                    }
+                    if(datagram == null) break;
+                    server.receivePacket(ByteBuffer.wrap(datagram), datagram.length);
+                    received++;
+                }
+                server.applyReceivedUpdates();
+                if(datagram == null) return;
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends routing updates to other servers in the same JVM through an
+ * {@link InMemoryNetwork} instead of a socket. Every datagram is copied
+ * and handed to the receiving server on the network's event loop.
+ */
+public class InMemoryTransport implements Transport {
+    private final InMemoryNetwork network;
+    private InetSocketAddress address;
+
+    /**
+     * Creates a transport that is attached to a network when it is opened.
+     * @param network The network shared by the servers
+     */
+    public InMemoryTransport(InMemoryNetwork network) {
+        this.network = network;
+    }
+
+    /**
+     * Attaches the server to the network under its own ip and port.
+     * @param server The server that receives the datagrams
+     */
+    @Override
+    public void open(Server server) {
+        address = server.table.socketAddress(server.table.slotOf(server.serverId));
+        network.attach(address, server);
+    }
+
+    @Override
+    public void send(ByteBuffer datagram, InetSocketAddress address) {
+        network.deliver(datagram, address);
+    }
+
+    @Override
+    public EventLoop getEventLoop() {
+        return network.getEventLoop();
+    }
+
+    @Override
+    public void close() {
+        if(address != null) network.detach(address);
+    }
+}
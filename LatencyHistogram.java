@@ -0,0 +1,108 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how long an operation takes in buckets that grow with the value,
+ * like an HDR histogram. Values are split by their highest bit and then into
+ * 16 linear steps, so every bucket is within about 6% of the values in it.
+ * Recording does not create objects and can be read from another thread
+ * while values are recorded.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final AtomicLongArray totals;
+
+    /**
+     * Creates an empty histogram.
+     */
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        // Index 0 is the number of values, 1 is their sum and 2 is the largest value
+        this.totals = new AtomicLongArray(3);
+    }
+
+    /**
+     * Records one value.
+     * @param nanos How long the operation took in nanoseconds
+     */
+    public void record(long nanos) {
+        if(nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucketOf(nanos));
+        totals.incrementAndGet(0);
+        totals.addAndGet(1, nanos);
+        long max = totals.get(2);
+        while(nanos > max && !totals.compareAndSet(2, max, nanos)) max = totals.get(2);
+    }
+
+    /**
+     * Returns the number of recorded values.
+     * @return Returns the count
+     */
+    public long count() {
+        return totals.get(0);
+    }
+
+    /**
+     * Returns the average of the recorded values.
+     * @return Returns the mean in nanoseconds, or 0 if nothing was recorded
+     */
+    public double mean() {
+        long count = totals.get(0);
+        return (count == 0) ? 0 : (double) totals.get(1) / count;
+    }
+
+    /**
+     * Returns the largest recorded value.
+     * @return Returns the maximum in nanoseconds
+     */
+    public long max() {
+        return totals.get(2);
+    }
+
+    /**
+     * Finds the value that the given percentage of recorded values are
+     * less than or equal to. The upper end of the bucket is returned.
+     * @param percentile A percentile from 0 to 100
+     * @return Returns the value in nanoseconds, or 0 if nothing was recorded
+     */
+    public long percentile(double percentile) {
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++) total += counts.get(i);
+        if(total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= rank) return Math.min(highestValueIn(i), max());
+        }
+        return max();
+    }
+
+    /**
+     * Writes the count, mean, 50th, 99th percentile and maximum in microseconds.
+     * @return Returns a one line summary
+     */
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus",
+                count(), mean() / 1000.0, percentile(50) / 1000.0, percentile(99) / 1000.0, max() / 1000.0);
+    }
+
+    private static int bucketOf(long value) {
+        if(value < SUB_BUCKETS) return (int) value;
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int shift = highestBit - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long highestValueIn(int bucket) {
+        if(bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
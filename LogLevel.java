@@ -0,0 +1,48 @@
+/**
+ * How important an event in the {@link EventLog} is. Events below the
+ * level of the log are not recorded.
+ */
+public enum LogLevel {
+    /**
+     * Events that happen for every packet and are only useful when
+     * looking for a problem.
+     */
+    DEBUG,
+
+    /**
+     * Events that show what the server is doing, such as the routing
+     * updates it receives.
+     */
+    INFO,
+
+    /**
+     * Events that may need attention, such as a neighbor timing out.
+     */
+    WARN,
+
+    /**
+     * Errors, such as a file that could not be written.
+     */
+    ERROR,
+
+    /**
+     * Nothing is recorded.
+     */
+    OFF;
+
+    /**
+     * Finds the level for a command line name.
+     * @param name debug, info, warn, error or off
+     * @return Returns the level, or null if the name is not a level
+     */
+    public static LogLevel fromName(String name) {
+        switch(name.toLowerCase()) {
+            case "debug": return DEBUG;
+            case "info": return INFO;
+            case "warn": return WARN;
+            case "error": return ERROR;
+            case "off": return OFF;
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * The topology of a whole network. It is used to run many servers in one
+ * JVM, and a server can also read its routing table from it. The file
+ * looks like a server's topology file, except that the link lines can
+ * start at any server and each link is only listed once:
+ * <pre>
+ * number of servers
+ * number of links
+ * id ip port        (one line per server)
+ * id id cost        (one line per link)
+ * </pre>
+ * @see Server#loadNetwork(NetworkTopology, int)
+ * @see TopologyReader
+ */
+public class NetworkTopology {
+    int numOfServers;
+    int[] ids;
+    int[] ipAddress;
+    int[] port;
+
+    int numOfLinks;
+    int[] linkFrom;
+    int[] linkTo;
+    int[] linkCost;
+
+    private int[] indexById;
+    private int[][] adjacency;
+
+    /**
+     * Reads a network topology file with a {@link TopologyReader}.
+     * @param topologyName The name of the network topology file
+     * @return Returns a string that describes any error
+     */
+    public String readTopologyFile(String topologyName) {
+        return TopologyReader.read(topologyName, this);
+    }
+
+    /**
+     * Finds the server that every link line starts at, which is the
+     * server a topology file with only one server's links was written for.
+     * @return Returns the id of the server, or -1 if the links start at different servers or there are none
+     */
+    public int linkOwner() {
+        if(numOfLinks == 0) return -1;
+        for(int i = 1; i < numOfLinks; i++) {
+            if(linkFrom[i] != linkFrom[0]) return -1;
+        }
+        return linkFrom[0];
+    }
+
+    /**
+     * Creates a random connected network. The servers are joined in a ring
+     * and then extra links are added between random servers until every
+     * server has about the given number of links. Servers have ids 1 to n,
+     * ips starting at 10.0.0.1 and port 2000.
+     * @param servers The number of servers
+     * @param degree The average number of links of a server, at least 2
+     * @param maxCost The largest link cost
+     * @param seed The seed of the random links and costs
+     * @return Returns the generated topology
+     */
+    public static NetworkTopology generate(int servers, int degree, int maxCost, long seed) {
+        Random random = new Random(seed);
+        int ringLinks = (servers > 2) ? servers : Math.max(0, servers - 1);
+        long possibleLinks = (long) servers * (servers - 1) / 2;
+        int extraLinks = (int) Math.min(possibleLinks - ringLinks, Math.max(0, (long) servers * (degree - 2) / 2));
+        NetworkTopology topology = new NetworkTopology();
+        topology.allocate(servers, 0);
+        topology.linkFrom = new int[ringLinks + extraLinks];
+        topology.linkTo = new int[ringLinks + extraLinks];
+        topology.linkCost = new int[ringLinks + extraLinks];
+
+        int firstIp = RoutingUpdateMessage.ipToBytes("10.0.0.1");
+        for(int i = 0; i < servers; i++) {
+            topology.ids[i] = i + 1;
+            topology.ipAddress[i] = firstIp + i;
+            topology.port[i] = 2000;
+        }
+
+        HashSet<Long> links = new HashSet<>();
+        for(int i = 0; i < servers && servers > 1; i++) {
+            int next = (i + 1) % servers;
+            if(links.add(linkKey(i + 1, next + 1))) topology.addLink(i + 1, next + 1, 1 + random.nextInt(maxCost));
+        }
+        while(topology.numOfLinks < topology.linkFrom.length) {
+            int a = 1 + random.nextInt(servers);
+            int b = 1 + random.nextInt(servers);
+            if(a == b || !links.add(linkKey(a, b))) continue;
+            topology.addLink(a, b, 1 + random.nextInt(maxCost));
+        }
+        return topology;
+    }
+
+    /**
+     * Finds the cost of the shortest path from one server to every other
+     * server with Dijkstra's algorithm. This is the cost every routing
+     * table should show once the network has converged.
+     * @param sourceId The id of the server the paths start at
+     * @return Returns the costs indexed like ids, with RoutingTable.INFINITY for unreachable servers
+     */
+    public int[] shortestPathCosts(int sourceId) {
+        if(adjacency == null) {
+            indexById = indexById();
+            adjacency = adjacency(indexById);
+        }
+        int[] index = indexById;
+        long[] distance = new long[numOfServers];
+        Arrays.fill(distance, Long.MAX_VALUE);
+        PriorityQueue<long[]> queue = new PriorityQueue<>((x, y) -> Long.compare(x[0], y[0]));
+        distance[index[sourceId]] = 0;
+        queue.add(new long[] {0, index[sourceId]});
+        while(!queue.isEmpty()) {
+            long[] head = queue.poll();
+            int server = (int) head[1];
+            if(head[0] > distance[server]) continue;
+            for(int link : adjacency[server]) {
+                int other = index[(linkFrom[link] == ids[server]) ? linkTo[link] : linkFrom[link]];
+                long cost = head[0] + linkCost[link];
+                if(cost < distance[other]) {
+                    distance[other] = cost;
+                    queue.add(new long[] {cost, other});
+                }
+            }
+        }
+        int[] costs = new int[numOfServers];
+        for(int i = 0; i < numOfServers; i++) {
+            costs[i] = (distance[i] >= RoutingTable.INFINITY) ? RoutingTable.INFINITY : (int) distance[i];
+        }
+        return costs;
+    }
+
+    /**
+     * Removes the link between two servers, for example to check
+     * how the network converges after a link fails.
+     * @param a The id of one server
+     * @param b The id of the other server
+     * @return Returns false if the servers were not linked
+     */
+    public boolean removeLink(int a, int b) {
+        for(int i = 0; i < numOfLinks; i++) {
+            if((linkFrom[i] == a && linkTo[i] == b) || (linkFrom[i] == b && linkTo[i] == a)) {
+                numOfLinks--;
+                linkFrom[i] = linkFrom[numOfLinks];
+                linkTo[i] = linkTo[numOfLinks];
+                linkCost[i] = linkCost[numOfLinks];
+                adjacency = null;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of servers in the network.
+     * @return Returns the number of servers
+     */
+    public int size() {
+        return numOfServers;
+    }
+
+    /**
+     * Returns the id of a server.
+     * @param index The index of the server in the topology
+     * @return Returns the id
+     */
+    public int idAt(int index) {
+        return ids[index];
+    }
+
+    void allocate(int servers, int links) {
+        adjacency = null;
+        numOfServers = servers;
+        ids = new int[servers];
+        ipAddress = new int[servers];
+        port = new int[servers];
+        numOfLinks = links;
+        linkFrom = new int[links];
+        linkTo = new int[links];
+        linkCost = new int[links];
+    }
+
+    private void addLink(int a, int b, int cost) {
+        linkFrom[numOfLinks] = a;
+        linkTo[numOfLinks] = b;
+        linkCost[numOfLinks] = cost;
+        numOfLinks++;
+    }
+
+    private int[][] adjacency(int[] index) {
+        int[] degree = new int[numOfServers];
+        for(int i = 0; i < numOfLinks; i++) {
+            degree[index[linkFrom[i]]]++;
+            degree[index[linkTo[i]]]++;
+        }
+        int[][] adjacency = new int[numOfServers][];
+        for(int i = 0; i < numOfServers; i++) adjacency[i] = new int[degree[i]];
+        Arrays.fill(degree, 0);
+        for(int i = 0; i < numOfLinks; i++) {
+            int a = index[linkFrom[i]];
+            int b = index[linkTo[i]];
+            adjacency[a][degree[a]++] = i;
+            adjacency[b][degree[b]++] = i;
+        }
+        return adjacency;
+    }
+
+    private int[] indexById() {
+        int maxId = 0;
+        for(int i = 0; i < numOfServers; i++) maxId = Math.max(maxId, ids[i]);
+        int[] index = new int[maxId + 1];
+        for(int i = 0; i < numOfServers; i++) index[ids[i]] = i;
+        return index;
+    }
+
+    private static long linkKey(int a, int b) {
+        return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    }
+}
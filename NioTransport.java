@@ -0,0 +1,69 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends and receives routing updates over UDP on an event loop. One
+ * non-blocking channel is bound to the server's port and is used both to
+ * receive updates and to send them. Several servers can share one loop.
+ * @see EventLoop
+ */
+public class NioTransport implements Transport {
+    private final EventLoop loop;
+    private DatagramChannel channel;
+
+    /**
+     * Creates a transport that runs on the given event loop.
+     * @param loop The event loop that will run the server
+     */
+    public NioTransport(EventLoop loop) {
+        this.loop = loop;
+    }
+
+    /**
+     * Binds a non-blocking channel to the server's port and registers
+     * it with the event loop.
+     * @param server The server that receives the datagrams
+     * @throws IOException If the port could not be bound
+     */
+    @Override
+    public void open(Server server) throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(server.port));
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        loop.register(channel, readyChannel -> {
+            buffer.clear();
+            // Anything left after a full batch is read the next time the channel is selected
+            for(int i = 0; i < RECEIVE_BATCH && readyChannel.receive(buffer) != null; i++) {
+                server.receivePacket(buffer, buffer.position());
+                buffer.clear();
+            }
+            server.applyReceivedUpdates();
+        });
+    }
+
+    /**
+     * Sends a datagram without blocking. If the socket's send buffer is
+     * full the datagram is dropped, like any other lost UDP datagram.
+     */
+    @Override
+    public void send(ByteBuffer datagram, InetSocketAddress address) throws IOException {
+        channel.send(datagram, address);
+    }
+
+    @Override
+    public EventLoop getEventLoop() {
+        return loop;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if(channel != null) channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * What the receive stage does when the receive queue is full because the
+ * compute stage cannot keep up.
+ * @see DatagramRing
+ */
+public enum OverloadPolicy {
+    /**
+     * Stop reading the socket until there is room. Datagrams then wait in
+     * the socket's buffer, and the kernel drops them if that fills up too.
+     */
+    BLOCK,
+
+    /**
+     * Read the new datagram and drop it, so the queued ones are used.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Drop the oldest queued datagrams of the senders that hold more than
+     * their share of the queue to make room, so the newest routing
+     * information is used. A new datagram from a sender that already
+     * holds its share is dropped instead, so one sender cannot push out
+     * the updates of the others.
+     */
+    DROP_OLDEST;
+
+    /**
+     * Finds the policy for a command line name.
+     * @param name block, drop-newest or drop-oldest
+     * @return Returns the policy, or null if the name is not a policy
+     */
+    public static OverloadPolicy fromName(String name) {
+        switch(name.toLowerCase()) {
+            case "block": return BLOCK;
+            case "drop-newest": return DROP_NEWEST;
+            case "drop-oldest": return DROP_OLDEST;
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the distance vector calculation of one large update on several
+ * threads. The entries of the update are split into partitions that are
+ * run by a ForkJoinPool. Each entry only reads and writes the row of its
+ * own destination, so the partitions store the advertised costs and
+ * decide the new routes on their own. An update that holds the same
+ * destination twice would let two partitions write one row at once, so
+ * the destinations are looked up on the calling thread first and only the
+ * last entry of each destination is used. The changed routes of every
+ * partition are then applied on the calling thread, in the order of the
+ * entries, so each change still gets its own table version like it does
+ * when the update is computed on one thread. Updates with fewer entries
+ * than the threshold are not worth starting the threads for, and the
+ * server computes them on its own thread.
+ */
+public class ParallelDistanceVector {
+    public static final int DEFAULT_THRESHOLD = 8192;
+    private static final int MIN_PARTITION_SIZE = 1024;
+
+    private final Server server;
+    private final ForkJoinPool pool;
+    private final boolean ownsPool;
+    public final int threshold;
+
+    private RoutingUpdateCursor update;
+    private int[] row;
+    private int senderId;
+    private int senderCost;
+    private int entryCount;
+    private int partitionSize;
+    private int[] entrySlots = new int[0];
+    private int[] lastEntry = new int[0];
+    private int[] destinations = new int[0];
+    private long[] decisions = new long[0];
+    private int[] changedCount = new int[0];
+
+    /**
+     * Creates the parallel calculation for a server.
+     * @param server The server whose routing table is changed
+     * @param threads The number of threads, or 0 to use the common pool
+     * @param threshold The smallest number of entries that is computed on several threads
+     */
+    public ParallelDistanceVector(Server server, int threads, int threshold) {
+        this.server = server;
+        this.ownsPool = threads > 0;
+        this.pool = ownsPool ? new ForkJoinPool(threads) : ForkJoinPool.commonPool();
+        this.threshold = threshold;
+    }
+
+    /**
+     * Stops the threads of the pool if this created it.
+     */
+    public void close() {
+        if(ownsPool) pool.shutdown();
+    }
+
+    /**
+     * Returns the number of threads that compute the partitions.
+     * @return Returns the parallelism of the pool
+     */
+    public int threads() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Stores the costs of an update and changes the routes it improves or
+     * makes worse. Callers must hold the table's lock.
+     * @param sender The slot of the neighbor that sent the update
+     * @param update The update, whose entries are read by index
+     */
+    void relax(int sender, RoutingUpdateCursor update) {
+        RoutingTable table = server.table;
+        this.update = update;
+        this.row = table.advertisedRow(sender);
+        this.senderId = table.ids[sender];
+        this.senderCost = table.directLinkCost[sender];
+        this.entryCount = update.entryCount;
+
+        int partitions = Math.max(1, Math.min(pool.getParallelism() * 4, entryCount / MIN_PARTITION_SIZE));
+        partitionSize = (entryCount + partitions - 1) / partitions;
+        if(destinations.length < entryCount) {
+            entrySlots = new int[entryCount];
+            destinations = new int[entryCount];
+            decisions = new long[entryCount];
+        }
+        if(changedCount.length < partitions) changedCount = new int[partitions];
+        if(lastEntry.length < table.size) lastEntry = new int[table.ids.length];
+        for(int i = 0; i < entryCount; i++) {
+            int id = update.idAt(i);
+            int destination = (id == server.serverId) ? -1 : table.slotOf(id);
+            entrySlots[i] = destination;
+            // Only the entries of this update are read back, so older values do not have to be cleared
+            if(destination != -1) lastEntry[destination] = i;
+        }
+
+        pool.invoke(new Partitions(0, partitions));
+
+        for(int p = 0; p < partitions; p++) {
+            int start = p * partitionSize;
+            for(int i = start; i < start + changedCount[p]; i++) server.applyDecision(destinations[i], decisions[i]);
+        }
+        table.advertisedCostsChanged();
+        this.update = null;
+        this.row = null;
+    }
+
+    /**
+     * Computes one partition of the entries. The changed routes are stored
+     * at the start of the partition's part of destinations and decisions.
+     * @param partition The index of the partition
+     */
+    private void relaxPartition(int partition) {
+        int start = partition * partitionSize;
+        int end = Math.min(entryCount, start + partitionSize);
+        int changed = start;
+        for(int i = start; i < end; i++) {
+            int destination = entrySlots[i];
+            if(destination == -1 || lastEntry[destination] != i) continue;
+            int cost = update.costAt(i);
+            int previousCost = row[destination];
+            row[destination] = cost;
+            long decision = server.relax(senderId, senderCost, destination, cost, previousCost);
+            if(decision == Server.KEEP_ROUTE) continue;
+            destinations[changed] = destination;
+            decisions[changed] = decision;
+            changed++;
+        }
+        changedCount[partition] = changed - start;
+    }
+
+    /**
+     * Splits a range of partitions in half until one is left, which is computed.
+     */
+    private final class Partitions extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        Partitions(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from == 1) {
+                relaxPartition(from);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Partitions(from, middle), new Partitions(middle, to));
+        }
+    }
+}
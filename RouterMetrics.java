@@ -0,0 +1,241 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts what a server receives and sends and how long it takes to handle
+ * routing updates. Counters are LongAdders so that they can be increased on
+ * the receiving or sending thread and read at the same time by the console
+ * or by JMX. The metrics are registered as an MBean named
+ * DistanceVectorRouting:type=Router,id=&lt;server id&gt;. The receive queue
+ * counters are only set when the transport has a receive queue.
+ * @see RouterMetricsMBean
+ */
+public class RouterMetrics implements RouterMetricsMBean {
+    final LongAdder packetsReceived = new LongAdder();
+    final LongAdder packetsAccepted = new LongAdder();
+    final LongAdder packetsDroppedMalformed = new LongAdder();
+    final LongAdder packetsDroppedNotNeighbor = new LongAdder();
+    final LongAdder updatesReceived = new LongAdder();
+    final LongAdder updatesSuperseded = new LongAdder();
+    final LongAdder batchesApplied = new LongAdder();
+    final LongAdder packetsSent = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LatencyHistogram decodeTime = new LatencyHistogram();
+    final LatencyHistogram distanceVectorTime = new LatencyHistogram();
+    volatile DatagramRing receiveQueue;
+
+    private final Server server;
+    private ObjectName name;
+
+    /**
+     * Creates the metrics of a server.
+     * @param server The server that is measured
+     */
+    public RouterMetrics(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server.
+     * Errors are printed and otherwise ignored.
+     */
+    public void register() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            name = new ObjectName("DistanceVectorRouting:type=Router,id=" + server.serverId);
+            if(mBeanServer.isRegistered(name)) mBeanServer.unregisterMBean(name);
+            mBeanServer.registerMBean(this, name);
+        } catch (JMException e) {
+            System.err.println("ERROR: Could not register metrics: " + e.getMessage());
+            name = null;
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server.
+     */
+    public void unregister() {
+        if(name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            System.err.println("ERROR: Could not unregister metrics: " + e.getMessage());
+        }
+        name = null;
+    }
+
+    @Override
+    public int getServerId() {
+        return server.serverId;
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    @Override
+    public long getPacketsAccepted() {
+        return packetsAccepted.sum();
+    }
+
+    @Override
+    public long getPacketsDropped() {
+        return packetsDroppedMalformed.sum() + packetsDroppedNotNeighbor.sum();
+    }
+
+    @Override
+    public long getPacketsDroppedMalformed() {
+        return packetsDroppedMalformed.sum();
+    }
+
+    @Override
+    public long getPacketsDroppedNotNeighbor() {
+        return packetsDroppedNotNeighbor.sum();
+    }
+
+    @Override
+    public long getUpdatesReceived() {
+        return updatesReceived.sum();
+    }
+
+    /**
+     * Returns the number of complete updates that were never applied
+     * because a newer update from the same sender arrived in the same batch.
+     * @return Returns the number of superseded updates
+     */
+    @Override
+    public long getUpdatesSuperseded() {
+        return updatesSuperseded.sum();
+    }
+
+    @Override
+    public long getBatchesApplied() {
+        return batchesApplied.sum();
+    }
+
+    @Override
+    public int getReceiveQueueDepth() {
+        DatagramRing queue = receiveQueue;
+        return (queue == null) ? 0 : queue.depth();
+    }
+
+    @Override
+    public int getReceiveQueueMaxDepth() {
+        DatagramRing queue = receiveQueue;
+        return (queue == null) ? 0 : queue.maxDepth();
+    }
+
+    @Override
+    public long getPacketsDroppedQueueFull() {
+        DatagramRing queue = receiveQueue;
+        return (queue == null) ? 0 : queue.droppedNewest() + queue.droppedOldest();
+    }
+
+    @Override
+    public long getLogEventsDropped() {
+        EventLog log = server.log;
+        return (log == null) ? 0 : log.dropped();
+    }
+
+    /**
+     * Returns how many handlers, tasks and timers threw on the server's
+     * event loop. The loop may be shared with other servers.
+     * @return Returns the number of exceptions, or 0 without an event loop
+     */
+    @Override
+    public long getEventLoopErrors() {
+        EventLoop loop = server.getEventLoop();
+        return (loop == null) ? 0 : loop.errors();
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getRouteChanges() {
+        return server.table.routeChanges.sum();
+    }
+
+    /**
+     * Returns how long the routing table has not changed, which is how
+     * long the network has been converged as far as this server can tell.
+     * @return Returns the number of milliseconds since the last route change
+     */
+    @Override
+    public long getMillisSinceLastRouteChange() {
+        return (System.nanoTime() - server.table.lastChangeNanos) / 1_000_000L;
+    }
+
+    @Override
+    public double getDecodeP50() {
+        return decodeTime.percentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getDecodeP99() {
+        return decodeTime.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getDecodeMax() {
+        return decodeTime.max() / 1000.0;
+    }
+
+    @Override
+    public double getDistanceVectorP50() {
+        return distanceVectorTime.percentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getDistanceVectorP99() {
+        return distanceVectorTime.percentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getDistanceVectorMax() {
+        return distanceVectorTime.max() / 1000.0;
+    }
+
+    /**
+     * Writes every metric on its own line for the stats command.
+     * @return Returns the metrics as text
+     */
+    @Override
+    public String toString() {
+        return "Packets received: " + getPacketsReceived()
+                + "\nPackets accepted: " + getPacketsAccepted()
+                + "\nPackets dropped (malformed): " + getPacketsDroppedMalformed()
+                + "\nPackets dropped (not a neighbor): " + getPacketsDroppedNotNeighbor()
+                + "\nRouting updates received: " + getUpdatesReceived()
+                + "\nRouting updates superseded: " + getUpdatesSuperseded()
+                + "\nBatches applied: " + getBatchesApplied()
+                + "\nReceive queue depth: " + getReceiveQueueDepth() + " (max " + getReceiveQueueMaxDepth() + ")"
+                + "\nPackets dropped (queue full): " + getPacketsDroppedQueueFull()
+                + "\nPackets sent: " + getPacketsSent()
+                + "\nBytes in: " + getBytesIn()
+                + "\nBytes out: " + getBytesOut()
+                + "\nRoute changes: " + getRouteChanges()
+                + "\nTime since last route change: " + getMillisSinceLastRouteChange() + " ms"
+                + "\nLog events dropped: " + getLogEventsDropped()
+                + "\nEvent loop errors: " + getEventLoopErrors()
+                + "\nDecode time: " + decodeTime
+                + "\nDistance vector time: " + distanceVectorTime;
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * The metrics of one server as they are shown through JMX.
+ * Times are in microseconds unless the name says otherwise. The
+ * distance vector time is measured for each batch of updates.
+ * @see RouterMetrics
+ */
+public interface RouterMetricsMBean {
+    int getServerId();
+    long getPacketsReceived();
+    long getPacketsAccepted();
+    long getPacketsDropped();
+    long getPacketsDroppedMalformed();
+    long getPacketsDroppedNotNeighbor();
+    long getUpdatesReceived();
+    long getUpdatesSuperseded();
+    long getBatchesApplied();
+    int getReceiveQueueDepth();
+    int getReceiveQueueMaxDepth();
+    long getPacketsDroppedQueueFull();
+    long getPacketsSent();
+    long getBytesIn();
+    long getBytesOut();
+    long getRouteChanges();
+    long getMillisSinceLastRouteChange();
+    long getLogEventsDropped();
+    long getEventLoopErrors();
+    double getDecodeP50();
+    double getDecodeP99();
+    double getDecodeMax();
+    double getDistanceVectorP50();
+    double getDistanceVectorP99();
+    double getDistanceVectorMax();
+}
@@ -0,0 +1,792 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The routing table of this server stored as parallel primitive arrays.
+ * Every destination gets a slot and each column of the table is an array
+ * indexed by that slot. Server ids are expected to be small and dense, so
+ * an id is turned into its slot with one array read instead of a search.
+ * Slots are handed out in the order servers are added, and a sorted view
+ * is kept for printing the table by id. The slot of a removed server is
+ * left empty and is not in the sorted view until the next server that is
+ * added is given it, so reloading a topology many times does not make the
+ * table grow. Only threads holding the table's
+ * lock change it; readers use the snapshot returned by snapshot().
+ * The table also keeps the last cost each neighbor advertised for every
+ * destination, one row of the matrix per neighbor, so that a new route
+ * can be chosen as soon as a neighbor is lost without waiting for updates.
+ * With setMultipath the same matrix is used to keep several next hops
+ * for each destination, which are found again for the destinations whose
+ * costs changed each time the table is published.
+ */
+public class RoutingTable {
+    public static final int INFINITY = Integer.MAX_VALUE;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long NO_ENDPOINT = -1L;
+    static final long NEVER = Long.MIN_VALUE;
+
+    int size;
+    int[] ids;
+    int[] ipAddress;
+    int[] port;
+    int[] cost;
+    int[] nextHopId;
+    int[] directLinkCost;
+    long[] timeStamp;
+
+    int version;
+    int[] changedAt;
+    int[] receivedSequence;
+    int[] ackedSequence;
+    int[] peerVersion;
+
+    final LongAdder routeChanges = new LongAdder();
+    volatile long lastChangeNanos = System.nanoTime();
+
+    private int[][] advertisedCost;
+    private int[] neighborSlots;
+    private int neighborCount;
+
+    private InetSocketAddress[] socketAddress;
+    private int[] slotById;
+    private long[] endpointKeys;
+    private int[] endpointSlots;
+    private int[] sortedSlots;
+    private int[] freeSlots = new int[0];
+    private int freeCount;
+    private boolean sorted;
+    private volatile RoutingTableSnapshot snapshot;
+    private volatile ForwardingTable forwardingTable = ForwardingTable.EMPTY;
+    private boolean serversChanged;
+    private boolean neighborsChanged;
+    private boolean neighborSetChanged;
+    private boolean addressesChanged;
+
+    private int maxPaths = 1;
+    private int pathTolerance;
+    private int[] paths;
+    private int[] pathCount;
+    private boolean[] pathsDirty;
+    private int[] dirtySlots;
+    private int dirtyCount;
+    private boolean allPathsDirty;
+    private boolean pathsChanged;
+    private int[] candidateHops;
+    private long[] candidateCosts;
+
+    /**
+     * Creates an empty routing table.
+     */
+    public RoutingTable() {
+        ids = new int[INITIAL_CAPACITY];
+        ipAddress = new int[INITIAL_CAPACITY];
+        port = new int[INITIAL_CAPACITY];
+        cost = new int[INITIAL_CAPACITY];
+        nextHopId = new int[INITIAL_CAPACITY];
+        directLinkCost = new int[INITIAL_CAPACITY];
+        timeStamp = new long[INITIAL_CAPACITY];
+        changedAt = new int[INITIAL_CAPACITY];
+        receivedSequence = new int[INITIAL_CAPACITY];
+        ackedSequence = new int[INITIAL_CAPACITY];
+        peerVersion = new int[INITIAL_CAPACITY];
+        advertisedCost = new int[INITIAL_CAPACITY][];
+        neighborSlots = new int[INITIAL_CAPACITY];
+        socketAddress = new InetSocketAddress[INITIAL_CAPACITY];
+        slotById = new int[INITIAL_CAPACITY];
+        Arrays.fill(slotById, -1);
+        endpointKeys = new long[INITIAL_CAPACITY * 2];
+        endpointSlots = new int[INITIAL_CAPACITY * 2];
+        Arrays.fill(endpointKeys, NO_ENDPOINT);
+        sortedSlots = new int[0];
+        sorted = true;
+        serversChanged = true;
+        publish();
+    }
+
+    /**
+     * Adds a destination to the table with an unknown cost and no next hop.
+     * @param id The server id of the destination
+     * @param ipAddress The ip of the destination stored in an integer
+     * @param port The port of the destination
+     * @return Returns the slot of the destination, or -1 if the id is already in the table
+     */
+    public int addServer(int id, int ipAddress, int port) {
+        if(id < 0) throw new IllegalArgumentException("Server ids must not be negative: " + id);
+        if(slotOf(id) != -1) return -1;
+
+        if(freeCount == 0 && size == ids.length) growSlots(size * 2);
+        if(id >= slotById.length) growIndex(Math.max(id + 1, slotById.length * 2));
+
+        int slot = (freeCount > 0) ? freeSlots[--freeCount] : size++;
+        ids[slot] = id;
+        this.ipAddress[slot] = ipAddress;
+        this.port[slot] = port;
+        cost[slot] = INFINITY;
+        nextHopId[slot] = -1;
+        directLinkCost[slot] = INFINITY;
+        timeStamp[slot] = NEVER;
+        changedAt[slot] = ++version;
+        receivedSequence[slot] = 0;
+        ackedSequence[slot] = 0;
+        peerVersion[slot] = RoutingUpdateMessage.VERSION_1;
+        socketAddress[slot] = null;
+        advertisedCost[slot] = null;
+        if(paths != null) pathCount[slot] = 0;
+        markPathsDirty(slot);
+        slotById[id] = slot;
+        putEndpoint(endpointKey(ipAddress, port), slot);
+        sorted = false;
+        serversChanged = true;
+        return slot;
+    }
+
+    /**
+     * Removes a destination from the table. Its slot is left empty until
+     * the next server is added. Other parts of the server keep state by
+     * slot, such as partly received updates, and must forget it before a
+     * server is added. The destination must not be a neighbor, and no
+     * route may use it as the next hop.
+     * @param slot The slot of the destination
+     */
+    public void removeServer(int slot) {
+        removeEndpoint(endpointKey(ipAddress[slot], port[slot]), slot);
+        slotById[ids[slot]] = -1;
+        setRoute(slot, INFINITY, -1);
+        for(int i = 0; i < neighborCount; i++) {
+            int[] row = advertisedCost[neighborSlots[i]];
+            if(row != null) row[slot] = INFINITY;
+        }
+        socketAddress[slot] = null;
+        if(freeCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, Math.max(4, freeCount * 2));
+        freeSlots[freeCount++] = slot;
+        sorted = false;
+        serversChanged = true;
+    }
+
+    /**
+     * Changes the ip and port of a server. When two servers swap their
+     * endpoints, the second change takes the endpoint back from the first.
+     * @param slot The slot of the server
+     * @param ipAddress The new ip stored in an integer
+     * @param port The new port
+     */
+    public void setEndpoint(int slot, int ipAddress, int port) {
+        removeEndpoint(endpointKey(this.ipAddress[slot], this.port[slot]), slot);
+        this.ipAddress[slot] = ipAddress;
+        this.port[slot] = port;
+        socketAddress[slot] = null;
+        putEndpoint(endpointKey(ipAddress, port), slot);
+        serversChanged = true;
+    }
+
+    /**
+     * Changes the cost and next hop of a destination. Every change is
+     * stamped with a new table version so that delta updates can find
+     * the destinations that changed since an earlier update, and is
+     * counted for the server's metrics.
+     * @param slot The slot of the destination
+     * @param cost The new cost of the path
+     * @param nextHopId The id of the next hop, or -1 if there is no path
+     */
+    public void setRoute(int slot, int cost, int nextHopId) {
+        if(this.cost[slot] == cost && this.nextHopId[slot] == nextHopId) return;
+        this.cost[slot] = cost;
+        this.nextHopId[slot] = nextHopId;
+        changedAt[slot] = ++version;
+        markPathsDirty(slot);
+        routeChanges.increment();
+        lastChangeNanos = System.nanoTime();
+    }
+
+    /**
+     * Marks a destination as changed without changing its route, so
+     * that it is sent again in the next delta update.
+     * @param slot The slot of the destination
+     */
+    public void markChanged(int slot) {
+        changedAt[slot] = ++version;
+    }
+
+    /**
+     * Changes the cost of the direct link to a neighbor. The table
+     * version is increased so that the change is published. When the link
+     * goes to infinity the costs the neighbor advertised are forgotten.
+     * @param slot The slot of the neighbor
+     * @param cost The new link cost, or INFINITY if it is no longer a neighbor
+     */
+    public void setDirectLinkCost(int slot, int cost) {
+        if(directLinkCost[slot] == cost) return;
+        boolean wasNeighbor = isNeighbor(slot);
+        directLinkCost[slot] = cost;
+        version++;
+        allPathsDirty = true;
+        if(wasNeighbor != isNeighbor(slot)) neighborSetChanged = true;
+        if(!wasNeighbor && isNeighbor(slot)) {
+            if(neighborCount == neighborSlots.length) neighborSlots = Arrays.copyOf(neighborSlots, neighborCount * 2);
+            neighborSlots[neighborCount++] = slot;
+        }
+        else if(wasNeighbor && !isNeighbor(slot)) {
+            for(int i = 0; i < neighborCount; i++) {
+                if(neighborSlots[i] == slot) {
+                    neighborSlots[i] = neighborSlots[--neighborCount];
+                    break;
+                }
+            }
+            advertisedCost[slot] = null;
+        }
+    }
+
+    /**
+     * Remembers the cost a neighbor advertised for a destination.
+     * @param neighbor The slot of the neighbor
+     * @param destination The slot of the destination
+     * @param cost The cost the neighbor sent, or INFINITY
+     */
+    public void setAdvertisedCost(int neighbor, int destination, int cost) {
+        int[] row = advertisedCost[neighbor];
+        if(row == null) {
+            if(cost == INFINITY) return;
+            row = new int[ids.length];
+            Arrays.fill(row, INFINITY);
+            advertisedCost[neighbor] = row;
+        }
+        if(row[destination] == cost) return;
+        row[destination] = cost;
+        markPathsDirty(destination);
+    }
+
+    /**
+     * Returns the row of costs a neighbor advertised, indexed by slot, so
+     * that several threads can store the costs of different destinations
+     * at once. Call advertisedCostsChanged when they are done.
+     * @param neighbor The slot of the neighbor
+     * @return Returns the row, which is created if the neighbor has none
+     */
+    int[] advertisedRow(int neighbor) {
+        int[] row = advertisedCost[neighbor];
+        if(row == null) {
+            row = new int[ids.length];
+            Arrays.fill(row, INFINITY);
+            advertisedCost[neighbor] = row;
+        }
+        return row;
+    }
+
+    /**
+     * Tells the table that costs were stored straight into a row returned
+     * by advertisedRow, so the next hops are found again when it is published.
+     */
+    void advertisedCostsChanged() {
+        if(paths != null) allPathsDirty = true;
+    }
+
+    /**
+     * Returns the last cost a neighbor advertised for a destination.
+     * @param neighbor The slot of the neighbor
+     * @param destination The slot of the destination
+     * @return Returns the cost, or INFINITY if the neighbor has not sent one
+     */
+    public int advertisedCost(int neighbor, int destination) {
+        int[] row = advertisedCost[neighbor];
+        return (row == null) ? INFINITY : row[destination];
+    }
+
+    /**
+     * Forgets every cost a neighbor advertised. This is done before a
+     * full update is used, so destinations it no longer sends are unreachable through it.
+     * @param neighbor The slot of the neighbor
+     */
+    public void clearAdvertisedCosts(int neighbor) {
+        int[] row = advertisedCost[neighbor];
+        if(row != null) Arrays.fill(row, INFINITY);
+        allPathsDirty = true;
+    }
+
+    /**
+     * Keeps up to maxPaths next hops for every destination instead of only
+     * the one that is used for the routing updates. A neighbor is also a
+     * next hop if its path costs at most tolerance more than the route and
+     * the cost it advertised is less than the route's cost. That second
+     * rule means the neighbor is closer to the destination than this
+     * server, so a packet sent to it can never come back, even when the
+     * paths do not cost the same.
+     * @param maxPaths The largest number of next hops for a destination, 1 turns this off
+     * @param tolerance How much more than the route's cost another path may cost
+     */
+    public void setMultipath(int maxPaths, int tolerance) {
+        this.maxPaths = Math.max(1, maxPaths);
+        this.pathTolerance = Math.max(0, tolerance);
+        if(this.maxPaths == 1) {
+            paths = null;
+            pathCount = null;
+        }
+        else {
+            paths = new int[ids.length * this.maxPaths];
+            pathCount = new int[ids.length];
+            pathsDirty = new boolean[ids.length];
+            dirtySlots = new int[ids.length];
+            dirtyCount = 0;
+            candidateHops = new int[this.maxPaths];
+            candidateCosts = new long[this.maxPaths];
+            allPathsDirty = true;
+        }
+        pathsChanged = true;
+    }
+
+    private void markPathsDirty(int slot) {
+        if(paths == null || pathsDirty[slot]) return;
+        pathsDirty[slot] = true;
+        dirtySlots[dirtyCount++] = slot;
+    }
+
+    /**
+     * Finds the next hops again for the destinations whose costs changed,
+     * or for every destination after a link changed.
+     */
+    private void updatePaths() {
+        if(paths == null) return;
+        if(allPathsDirty) {
+            for(int slot = 0; slot < size; slot++) findPaths(slot);
+        }
+        else {
+            for(int i = 0; i < dirtyCount; i++) findPaths(dirtySlots[i]);
+        }
+        for(int i = 0; i < dirtyCount; i++) pathsDirty[dirtySlots[i]] = false;
+        dirtyCount = 0;
+        allPathsDirty = false;
+    }
+
+    /**
+     * Finds the next hops of one destination. The route's own next hop is
+     * always first and the others are ordered by cost and then by id.
+     * @param slot The slot of the destination
+     */
+    private void findPaths(int slot) {
+        int count = 0;
+        int routeCost = cost[slot];
+        int primary = nextHopId[slot];
+        if(routeCost != INFINITY && primary != -1) {
+            candidateHops[count++] = primary;
+            long limit = (long) routeCost + pathTolerance;
+            if(isNeighbor(slot) && ids[slot] != primary && directLinkCost[slot] <= limit) {
+                count = addCandidate(ids[slot], directLinkCost[slot], count);
+            }
+            for(int i = 0; i < neighborCount; i++) {
+                int neighbor = neighborSlots[i];
+                if(neighbor == slot || ids[neighbor] == primary) continue;
+                int advertised = advertisedCost(neighbor, slot);
+                if(advertised >= routeCost) continue;
+                long pathCost = (long) directLinkCost[neighbor] + advertised;
+                if(pathCost <= limit) count = addCandidate(ids[neighbor], pathCost, count);
+            }
+        }
+
+        int start = slot * maxPaths;
+        boolean same = pathCount[slot] == count;
+        for(int i = 0; same && i < count; i++) same = paths[start + i] == candidateHops[i];
+        if(same) return;
+        System.arraycopy(candidateHops, 0, paths, start, count);
+        pathCount[slot] = count;
+        pathsChanged = true;
+    }
+
+    /**
+     * Adds a next hop to the candidates in order of cost and then id,
+     * behind the route's own next hop. When the candidates are full the
+     * most expensive one is dropped.
+     * @return Returns the new number of candidates
+     */
+    private int addCandidate(int hop, long pathCost, int count) {
+        int i = count;
+        while(i > 1 && (candidateCosts[i - 1] > pathCost
+                || (candidateCosts[i - 1] == pathCost && candidateHops[i - 1] > hop))) {
+            if(i < maxPaths) {
+                candidateHops[i] = candidateHops[i - 1];
+                candidateCosts[i] = candidateCosts[i - 1];
+            }
+            i--;
+        }
+        if(i >= maxPaths) return count;
+        candidateHops[i] = hop;
+        candidateCosts[i] = pathCost;
+        return Math.min(count + 1, maxPaths);
+    }
+
+    /**
+     * Returns the number of neighbors, which are the slots
+     * returned by neighborAt.
+     * @return Returns the number of neighbors
+     */
+    public int neighborCount() {
+        return neighborCount;
+    }
+
+    /**
+     * Returns the slot of a neighbor.
+     * @param index A number from 0 to neighborCount() - 1
+     * @return Returns the slot of the neighbor
+     */
+    public int neighborAt(int index) {
+        return neighborSlots[index];
+    }
+
+    /**
+     * Remembers the newest version of the update format a neighbor can read.
+     * @param slot The slot of the neighbor
+     * @param version VERSION_1 or VERSION_2
+     */
+    public void setPeerVersion(int slot, int version) {
+        if(peerVersion[slot] == version) return;
+        peerVersion[slot] = version;
+        neighborsChanged = true;
+    }
+
+    /**
+     * Remembers the last update of this server that a neighbor acknowledged.
+     * @param slot The slot of the neighbor
+     * @param sequence The sequence number of the update
+     */
+    public void setAckedSequence(int slot, int sequence) {
+        if(ackedSequence[slot] == sequence) return;
+        ackedSequence[slot] = sequence;
+        neighborsChanged = true;
+    }
+
+    /**
+     * Remembers the last update that was used from a neighbor.
+     * @param slot The slot of the neighbor
+     * @param sequence The sequence number of the update
+     */
+    public void setReceivedSequence(int slot, int sequence) {
+        if(receivedSequence[slot] == sequence) return;
+        receivedSequence[slot] = sequence;
+        neighborsChanged = true;
+    }
+
+    /**
+     * Forgets the sequence numbers and format version of a server, so
+     * that a neighbor that comes back starts with a full update.
+     * @param slot The slot of the server
+     */
+    public void resetNeighborState(int slot) {
+        setReceivedSequence(slot, 0);
+        setAckedSequence(slot, 0);
+        setPeerVersion(slot, RoutingUpdateMessage.VERSION_1);
+    }
+
+    /**
+     * Publishes the routing table as a new snapshot if a route changed since
+     * the last one. This must be called by the thread holding the table's
+     * lock after it has finished a batch of changes. The state of the
+     * neighbors is only copied when the routes are, so receiving updates
+     * that change no route does not create a snapshot.
+     * @return Returns the latest snapshot
+     */
+    public RoutingTableSnapshot publish() {
+        return publish(false);
+    }
+
+    /**
+     * Publishes the routing table together with the latest state of the
+     * neighbors, such as the sequence numbers they acknowledged, so the
+     * sender reads them from the snapshot instead of from the table. The
+     * routes are shared with the last snapshot if none changed. This takes
+     * the table's lock and is called by the sender before each round.
+     * @return Returns the latest snapshot
+     */
+    public RoutingTableSnapshot publishForSending() {
+        synchronized (this) {
+            return publish(true);
+        }
+    }
+
+    private RoutingTableSnapshot publish(boolean forSending) {
+        RoutingTableSnapshot current = snapshot;
+        updatePaths();
+        boolean routesChanged = current == null || current.version != version || serversChanged || pathsChanged;
+        boolean neighborsStale = neighborsChanged || neighborSetChanged || addressesChanged;
+        if(!routesChanged && !(forSending && neighborsStale)) return current;
+
+        InetSocketAddress[] addresses = (current == null || addressesChanged || serversChanged)
+                ? Arrays.copyOf(socketAddress, size) : current.socketAddressColumn();
+        addressesChanged = false;
+        RoutingTableSnapshot.Neighbors neighbors = (current == null || neighborsStale || serversChanged)
+                ? copyNeighbors(current) : current.neighbors();
+        neighborsChanged = false;
+        if(!routesChanged) {
+            snapshot = new RoutingTableSnapshot(current, addresses, neighbors);
+            return snapshot;
+        }
+        pathsChanged = false;
+
+        int[] snapshotIds, snapshotIps, snapshotPorts, idOrder, snapshotSlotById;
+        boolean rebuildForwarding = current == null || serversChanged;
+        if(rebuildForwarding) {
+            snapshotIds = Arrays.copyOf(ids, size);
+            snapshotIps = Arrays.copyOf(ipAddress, size);
+            snapshotPorts = Arrays.copyOf(port, size);
+            idOrder = slotsInIdOrder();
+            snapshotSlotById = (idOrder.length == 0) ? new int[0] : Arrays.copyOf(slotById, ids[idOrder[idOrder.length - 1]] + 1);
+            serversChanged = false;
+        }
+        else {
+            snapshotIds = current.ids;
+            snapshotIps = current.ipAddress;
+            snapshotPorts = current.port;
+            idOrder = current.slotsInIdOrder();
+            snapshotSlotById = current.slotByIdColumn();
+        }
+        forwardingTable = ForwardingTable.update(forwardingTable, version, size, ids, nextHopId,
+                changedAt, idOrder, rebuildForwarding);
+        snapshot = new RoutingTableSnapshot(version, size, snapshotIds, snapshotIps, snapshotPorts,
+                Arrays.copyOf(cost, size), Arrays.copyOf(nextHopId, size),
+                Arrays.copyOf(directLinkCost, size), Arrays.copyOf(changedAt, size), idOrder, snapshotSlotById,
+                maxPaths, (paths == null) ? null : Arrays.copyOf(paths, size * maxPaths),
+                (paths == null) ? null : Arrays.copyOf(pathCount, size), addresses, neighbors);
+        return snapshot;
+    }
+
+    /**
+     * Copies the state of the neighbors for a snapshot. The index of the
+     * slots is shared with the current snapshot unless a neighbor or a
+     * server was added or removed.
+     * @param current The current snapshot, or null
+     * @return Returns the state of the neighbors
+     */
+    private RoutingTableSnapshot.Neighbors copyNeighbors(RoutingTableSnapshot current) {
+        int[] index;
+        if(current == null || neighborSetChanged || serversChanged) {
+            index = new int[size];
+            Arrays.fill(index, -1);
+            for(int i = 0; i < neighborCount; i++) index[neighborSlots[i]] = i;
+            neighborSetChanged = false;
+        }
+        else index = current.neighbors().index();
+
+        int[] versions = new int[neighborCount];
+        int[] acked = new int[neighborCount];
+        int[] received = new int[neighborCount];
+        for(int i = 0; i < neighborCount; i++) {
+            int slot = neighborSlots[i];
+            versions[i] = peerVersion[slot];
+            acked[i] = ackedSequence[slot];
+            received[i] = receivedSequence[slot];
+        }
+        return new RoutingTableSnapshot.Neighbors(index, versions, acked, received);
+    }
+
+    /**
+     * Returns the latest published snapshot. This can be called from
+     * any thread without holding the table's lock.
+     * @return Returns the latest snapshot
+     */
+    public RoutingTableSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Returns the latest forwarding table. This can be called from any
+     * thread without holding the table's lock, and is meant for looking up
+     * next hops many times a second.
+     * @return Returns the latest forwarding table
+     */
+    public ForwardingTable forwardingTable() {
+        return forwardingTable;
+    }
+
+    /**
+     * Finds the slot of a server.
+     * @param id The id of the server
+     * @return Returns the slot of the server or -1 if it is not in the table
+     */
+    public int slotOf(int id) {
+        return (id >= 0 && id < slotById.length) ? slotById[id] : -1;
+    }
+
+    /**
+     * Finds the slot of a server by the ip and port it sends from. This
+     * is how the sender of a routing update is found from the packet header.
+     * @param ipAddress The ip of the server stored in an integer
+     * @param port The port of the server
+     * @return Returns the slot of the server or -1 if it is not in the table
+     */
+    public int slotOfEndpoint(int ipAddress, int port) {
+        long key = endpointKey(ipAddress, port);
+        int mask = endpointKeys.length - 1;
+        for(int i = hash(key) & mask; endpointKeys[i] != NO_ENDPOINT; i = (i + 1) & mask) {
+            if(endpointKeys[i] == key) return endpointSlots[i];
+        }
+        return -1;
+    }
+
+    /**
+     * Packs an ip and a port into one long so that
+     * they can be used as a key without creating objects.
+     * @param ipAddress The ip stored in an integer
+     * @param port The port
+     * @return Returns the ip and port packed in a long
+     */
+    public static long endpointKey(int ipAddress, int port) {
+        return ((ipAddress & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+    }
+
+    /**
+     * Returns the slots of the table ordered by server id. The
+     * order is rebuilt only after servers have been added.
+     * @return Returns an array of slots sorted by server id
+     */
+    public int[] slotsInIdOrder() {
+        if(!sorted) {
+            int[] slots = new int[size];
+            int index = 0;
+            for(int id = 0; id < slotById.length && index < size; id++) {
+                if(slotById[id] != -1) slots[index++] = slotById[id];
+            }
+            // Removed servers leave empty slots that are not in the order
+            sortedSlots = (index == size) ? slots : Arrays.copyOf(slots, index);
+            sorted = true;
+        }
+        return sortedSlots;
+    }
+
+    /**
+     * Checks if a destination is a neighbor.
+     * @param slot The slot of the destination
+     * @return Returns a boolean signifying if it is a neighbor.
+     */
+    public boolean isNeighbor(int slot) {
+        return directLinkCost[slot] != INFINITY;
+    }
+
+    /**
+     * Checks if a neighbor has timed out by checking
+     * if the timestamp was initialized and then checks
+     * if three routing updates have passed before receiving
+     * a message. Timestamps are taken from System.nanoTime().
+     * @param slot The slot of the neighbor
+     * @param updateIntervalMillis Routing update interval in milliseconds
+     * @return Returns boolean if server is timed out
+     */
+    public boolean isTimedOut(int slot, long updateIntervalMillis) {
+        return timeStamp[slot] != NEVER && System.nanoTime() - timeStamp[slot] >= updateIntervalMillis*3*1_000_000L;
+    }
+
+    /**
+     * Returns the socket address of a server. The address is created
+     * from the ip and port the first time it is needed and then kept,
+     * so sending to a neighbor does not parse or look up its ip again.
+     * @param slot The slot of the server
+     * @return Returns the address that routing updates are sent to
+     */
+    public InetSocketAddress socketAddress(int slot) {
+        InetSocketAddress address = socketAddress[slot];
+        if(address == null) {
+            addressesChanged = true;
+            int ip = ipAddress[slot];
+            byte[] octets = {(byte)(ip >> 24), (byte)(ip >> 16), (byte)(ip >> 8), (byte)ip};
+            try {
+                address = new InetSocketAddress(InetAddress.getByAddress(octets), port[slot]);
+            } catch (UnknownHostException e) {
+                throw new IllegalStateException(e);
+            }
+            socketAddress[slot] = address;
+        }
+        return address;
+    }
+
+    private void putEndpoint(long key, int slot) {
+        if((size * 2) > endpointKeys.length) growEndpoints(endpointKeys.length * 2);
+        int mask = endpointKeys.length - 1;
+        int i = hash(key) & mask;
+        while(endpointKeys[i] != NO_ENDPOINT && endpointKeys[i] != key) i = (i + 1) & mask;
+        endpointKeys[i] = key;
+        endpointSlots[i] = slot;
+    }
+
+    /**
+     * Removes an endpoint if it still belongs to a slot. The entries after
+     * it that were pushed past their home position are shifted back into
+     * the hole, so that lookups never stop at an empty entry too early.
+     */
+    private void removeEndpoint(long key, int slot) {
+        int mask = endpointKeys.length - 1;
+        int i = hash(key) & mask;
+        while(endpointKeys[i] != key) {
+            if(endpointKeys[i] == NO_ENDPOINT) return;
+            i = (i + 1) & mask;
+        }
+        if(endpointSlots[i] != slot) return;
+
+        int hole = i;
+        for(int j = (i + 1) & mask; endpointKeys[j] != NO_ENDPOINT; j = (j + 1) & mask) {
+            int home = hash(endpointKeys[j]) & mask;
+            // The entry can fill the hole if the hole is between its home and where it is
+            if(((j - home) & mask) >= ((j - hole) & mask)) {
+                endpointKeys[hole] = endpointKeys[j];
+                endpointSlots[hole] = endpointSlots[j];
+                hole = j;
+            }
+        }
+        endpointKeys[hole] = NO_ENDPOINT;
+    }
+
+    private void growEndpoints(int capacity) {
+        long[] oldKeys = endpointKeys;
+        int[] oldSlots = endpointSlots;
+        endpointKeys = new long[capacity];
+        endpointSlots = new int[capacity];
+        Arrays.fill(endpointKeys, NO_ENDPOINT);
+        int mask = capacity - 1;
+        for(int j = 0; j < oldKeys.length; j++) {
+            if(oldKeys[j] == NO_ENDPOINT) continue;
+            int i = hash(oldKeys[j]) & mask;
+            while(endpointKeys[i] != NO_ENDPOINT) i = (i + 1) & mask;
+            endpointKeys[i] = oldKeys[j];
+            endpointSlots[i] = oldSlots[j];
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    private void growSlots(int capacity) {
+        ids = Arrays.copyOf(ids, capacity);
+        ipAddress = Arrays.copyOf(ipAddress, capacity);
+        port = Arrays.copyOf(port, capacity);
+        cost = Arrays.copyOf(cost, capacity);
+        nextHopId = Arrays.copyOf(nextHopId, capacity);
+        directLinkCost = Arrays.copyOf(directLinkCost, capacity);
+        timeStamp = Arrays.copyOf(timeStamp, capacity);
+        changedAt = Arrays.copyOf(changedAt, capacity);
+        receivedSequence = Arrays.copyOf(receivedSequence, capacity);
+        ackedSequence = Arrays.copyOf(ackedSequence, capacity);
+        peerVersion = Arrays.copyOf(peerVersion, capacity);
+        if(paths != null) {
+            paths = Arrays.copyOf(paths, capacity * maxPaths);
+            pathCount = Arrays.copyOf(pathCount, capacity);
+            pathsDirty = Arrays.copyOf(pathsDirty, capacity);
+            dirtySlots = Arrays.copyOf(dirtySlots, capacity);
+        }
+        socketAddress = Arrays.copyOf(socketAddress, capacity);
+        advertisedCost = Arrays.copyOf(advertisedCost, capacity);
+        for(int i = 0; i < neighborCount; i++) {
+            int[] row = advertisedCost[neighborSlots[i]];
+            if(row == null) continue;
+            int oldLength = row.length;
+            row = Arrays.copyOf(row, capacity);
+            Arrays.fill(row, oldLength, capacity, INFINITY);
+            advertisedCost[neighborSlots[i]] = row;
+        }
+    }
+
+    private void growIndex(int capacity) {
+        int oldLength = slotById.length;
+        slotById = Arrays.copyOf(slotById, capacity);
+        Arrays.fill(slotById, oldLength, capacity, -1);
+    }
+}
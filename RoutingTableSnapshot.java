@@ -0,0 +1,268 @@
+import java.net.InetSocketAddress;
+
+/**
+ * A copy of the routing table that never changes. The thread that changes
+ * the routing table publishes a new snapshot after each batch of changes,
+ * and everything that only reads routes, such as the display command and
+ * the sender, uses the latest snapshot without taking the table's lock.
+ * Columns that did not change since the previous snapshot are shared with
+ * it, so publishing only copies the route columns.
+ * <p>
+ * The snapshot also holds what the sender needs to know about each
+ * neighbor: the version of the format it reads, the sequence numbers of
+ * the last updates acknowledged by it and received from it, and the
+ * address updates are sent to. These change with every received update
+ * without changing any route, so the receiving thread does not publish
+ * them on their own; the sender publishes them before each round with
+ * {@link RoutingTable#publishForSending()}.
+ * @see RoutingTable#publish()
+ */
+public final class RoutingTableSnapshot {
+    final int version;
+    final int size;
+    final int[] ids;
+    final int[] ipAddress;
+    final int[] port;
+    final int[] cost;
+    final int[] nextHopId;
+    final int[] directLinkCost;
+    final int[] changedAt;
+    private final int[] idOrder;
+    private final int[] slotById;
+    private final int maxPaths;
+    private final int[] paths;
+    private final int[] pathCount;
+    private final InetSocketAddress[] socketAddress;
+    private final Neighbors neighbors;
+
+    /**
+     * Creates a snapshot. The arrays must not be changed afterwards.
+     */
+    RoutingTableSnapshot(int version, int size, int[] ids, int[] ipAddress, int[] port, int[] cost,
+                         int[] nextHopId, int[] directLinkCost, int[] changedAt, int[] idOrder, int[] slotById,
+                         int maxPaths, int[] paths, int[] pathCount, InetSocketAddress[] socketAddress,
+                         Neighbors neighbors) {
+        this.version = version;
+        this.size = size;
+        this.ids = ids;
+        this.ipAddress = ipAddress;
+        this.port = port;
+        this.cost = cost;
+        this.nextHopId = nextHopId;
+        this.directLinkCost = directLinkCost;
+        this.changedAt = changedAt;
+        this.idOrder = idOrder;
+        this.slotById = slotById;
+        this.maxPaths = maxPaths;
+        this.paths = paths;
+        this.pathCount = pathCount;
+        this.socketAddress = socketAddress;
+        this.neighbors = neighbors;
+    }
+
+    /**
+     * Creates a snapshot with the same routes as another one and newer
+     * neighbor state.
+     * @param routes The snapshot whose routes are shared
+     * @param socketAddress The address of each slot
+     * @param neighbors The state of the neighbors
+     */
+    RoutingTableSnapshot(RoutingTableSnapshot routes, InetSocketAddress[] socketAddress, Neighbors neighbors) {
+        this(routes.version, routes.size, routes.ids, routes.ipAddress, routes.port, routes.cost, routes.nextHopId,
+                routes.directLinkCost, routes.changedAt, routes.idOrder, routes.slotById, routes.maxPaths,
+                routes.paths, routes.pathCount, socketAddress, neighbors);
+    }
+
+    /**
+     * Returns the version of the routing table this snapshot was taken at.
+     * @return Returns the table version
+     */
+    public int version() {
+        return version;
+    }
+
+    /**
+     * Returns the number of destinations in the snapshot.
+     * @return Returns the number of slots
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the slots of the snapshot ordered by server id.
+     * @return Returns an array of slots sorted by server id
+     */
+    public int[] slotsInIdOrder() {
+        return idOrder;
+    }
+
+    int[] slotByIdColumn() {
+        return slotById;
+    }
+
+    InetSocketAddress[] socketAddressColumn() {
+        return socketAddress;
+    }
+
+    Neighbors neighbors() {
+        return neighbors;
+    }
+
+    /**
+     * Checks if a destination was a neighbor when the snapshot was taken.
+     * @param slot The slot of the destination
+     * @return Returns a boolean signifying if it is a neighbor.
+     */
+    public boolean isNeighbor(int slot) {
+        return directLinkCost[slot] != RoutingTable.INFINITY;
+    }
+
+    /**
+     * Finds the slot of a server.
+     * @param id The id of the server
+     * @return Returns the slot of the server or -1 if it is not in the snapshot
+     */
+    public int slotOf(int id) {
+        return (id >= 0 && id < slotById.length) ? slotById[id] : -1;
+    }
+
+    /**
+     * Returns the address routing updates are sent to.
+     * @param slot The slot of the server
+     * @return Returns the address, or null if it was not needed before the snapshot was taken
+     */
+    public InetSocketAddress socketAddress(int slot) {
+        return (slot < socketAddress.length) ? socketAddress[slot] : null;
+    }
+
+    /**
+     * Returns the newest version of the update format a neighbor can read.
+     * @param slot The slot of the neighbor
+     * @return Returns VERSION_1 or VERSION_2
+     */
+    public int peerVersion(int slot) {
+        int index = neighbors.indexOf(slot);
+        return (index == -1) ? RoutingUpdateMessage.VERSION_1 : neighbors.peerVersion[index];
+    }
+
+    /**
+     * Returns the sequence number of the last update of this server that
+     * a neighbor acknowledged.
+     * @param slot The slot of the neighbor
+     * @return Returns the sequence number, or 0 if there is none
+     */
+    public int ackedSequence(int slot) {
+        int index = neighbors.indexOf(slot);
+        return (index == -1) ? 0 : neighbors.ackedSequence[index];
+    }
+
+    /**
+     * Returns the sequence number of the last update that was used from a
+     * neighbor, which is sent back to it as the acknowledgement.
+     * @param slot The slot of the neighbor
+     * @return Returns the sequence number, or 0 if there is none
+     */
+    public int receivedSequence(int slot) {
+        int index = neighbors.indexOf(slot);
+        return (index == -1) ? 0 : neighbors.receivedSequence[index];
+    }
+
+    /**
+     * Returns the number of next hops of a destination.
+     * @param slot The slot of the destination
+     * @return Returns the number of next hops, or 0 if there is no route
+     */
+    public int pathCount(int slot) {
+        if(pathCount == null) return (nextHopId[slot] >= 0) ? 1 : 0;
+        return pathCount[slot];
+    }
+
+    /**
+     * Returns one of the next hops of a destination. The first one is the
+     * next hop of the route that is sent to the neighbors.
+     * @param slot The slot of the destination
+     * @param index A number from 0 to pathCount(slot) - 1
+     * @return Returns the id of the next hop
+     */
+    public int pathAt(int slot, int index) {
+        return (paths == null) ? nextHopId[slot] : paths[slot * maxPaths + index];
+    }
+
+    /**
+     * Chooses the next hop for a flow of packets to a destination. Every
+     * next hop gets a score from the hash of the flow and its id, and the
+     * highest score wins. The same flow always goes through the same next
+     * hop, and when a next hop is lost only the flows that used it move.
+     * @param slot The slot of the destination
+     * @param flowHash A hash of the flow, such as of its addresses and ports
+     * @return Returns the id of the next hop, or -1 if there is no route
+     */
+    public int nextHopFor(int slot, long flowHash) {
+        int count = pathCount(slot);
+        if(count <= 1) return (count == 0) ? -1 : pathAt(slot, 0);
+        int best = -1;
+        long bestScore = Long.MIN_VALUE;
+        for(int i = 0; i < count; i++) {
+            int hop = pathAt(slot, i);
+            long score = mix(flowHash ^ (hop * 0x9E3779B97F4A7C15L));
+            if(score > bestScore) {
+                bestScore = score;
+                best = hop;
+            }
+        }
+        return best;
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * Returns a row in the routing table for a destination. A destination
+     * with several next hops lists them separated by commas.
+     * @param slot The slot of the destination
+     * @return Returns a row in the routing table
+     */
+    public String rowToString(int slot) {
+        String pathCost = (cost[slot] != RoutingTable.INFINITY) ? " "+cost[slot] : "inf";
+        String nextHop = (nextHopId[slot] >= 0) ? " "+nextHopId[slot] : " -";
+        for(int i = 1; i < pathCount(slot); i++) nextHop += "," + pathAt(slot, i);
+        return ids[slot] + "\t" + nextHop + "\t " + pathCost;
+    }
+
+    /**
+     * The state of the neighbors when the snapshot was taken. The index of
+     * every slot is shared between snapshots until a neighbor is added or
+     * removed, and the other arrays have one element per neighbor.
+     */
+    static final class Neighbors {
+        static final Neighbors NONE = new Neighbors(new int[0], new int[0], new int[0], new int[0]);
+
+        private final int[] index;
+        final int[] peerVersion;
+        final int[] ackedSequence;
+        final int[] receivedSequence;
+
+        /**
+         * Creates the state of the neighbors. The arrays must not be changed afterwards.
+         * @param index The index of each slot in the other arrays, or -1 if it is not a neighbor
+         */
+        Neighbors(int[] index, int[] peerVersion, int[] ackedSequence, int[] receivedSequence) {
+            this.index = index;
+            this.peerVersion = peerVersion;
+            this.ackedSequence = ackedSequence;
+            this.receivedSequence = receivedSequence;
+        }
+
+        int[] index() {
+            return index;
+        }
+
+        int indexOf(int slot) {
+            return (slot >= 0 && slot < index.length) ? index[slot] : -1;
+        }
+    }
+}
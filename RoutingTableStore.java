@@ -0,0 +1,307 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Saves the routing table to a file so that a server that is restarted
+ * can start from the routes it had instead of only its direct links. The
+ * file is mapped into memory and every save is appended to it as a record
+ * with a checksum, so a save that was cut off by a crash is found and the
+ * record before it is used. When the file is full the newest record is
+ * written to a new file that replaces the old one.
+ * <p>
+ * A record holds the route to every destination, the costs each neighbor
+ * advertised, the sequence number of the last update used from each
+ * neighbor and this server's own sequence number. Restored routes are
+ * recomputed from the advertised costs with the current link costs, so
+ * links that changed in the topology file are taken into account, and
+ * they are replaced as soon as the neighbors send updates.
+ * <p>
+ * Saving is split in two so that the table's lock is only held to copy
+ * it. copy publishes a snapshot and copies the advertised costs, which are
+ * not in snapshots, into rows kept by the store, and save writes the record
+ * from them without the lock. Nothing is copied or saved when no route
+ * changed since the last save; the advertised costs and sequence numbers
+ * saved with it are then older, which only makes a restored server use a
+ * full update first. A record is still saved once this server's sequence
+ * number has moved half of SEQUENCE_GAP, so a restart never reuses one.
+ */
+public class RoutingTableStore {
+    private static final int MAGIC = 0x52545331;
+    private static final int FORMAT = 1;
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int MIN_FILE_SIZE = 1 << 16;
+    private static final int RECORDS_PER_FILE = 8;
+
+    /**
+     * How far the sequence number jumps after a restart, so that updates
+     * sent after the last save are never reused.
+     */
+    static final int SEQUENCE_GAP = 1 << 16;
+
+    private final Path path;
+    private MappedByteBuffer file;
+    private int end;
+    private ByteBuffer record = ByteBuffer.allocate(0);
+    private final CRC32 crc = new CRC32();
+
+    private int savedSequence;
+
+    // What copy took from the table for the next save
+    private RoutingTableSnapshot copied;
+    private int[] neighborSlots = new int[0];
+    private int[][] advertisedRows = new int[0][];
+    private int neighborCount;
+    private int savedVersion = -1;
+    private int lastSequence;
+
+    /**
+     * Opens the file, or creates it when the first record is saved.
+     * @param path The path of the file
+     */
+    public RoutingTableStore(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Returns the path of the file.
+     * @return Returns the path
+     */
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * Returns the sequence number that was saved with the last restored record.
+     * @return Returns the sequence number, or 0 if nothing was restored
+     */
+    public int savedSequence() {
+        return savedSequence;
+    }
+
+    /**
+     * Copies what the next save writes from the routing table. The rows
+     * of advertised costs are kept between saves and only grow. Callers
+     * must hold the table's lock.
+     * @param table The routing table
+     * @param sequenceNumber The sequence number of this server's last update
+     * @return Returns false if there is nothing new to save
+     */
+    public boolean copy(RoutingTable table, int sequenceNumber) {
+        if(table.version == savedVersion && sequenceNumber - lastSequence < SEQUENCE_GAP / 2) return false;
+        copied = table.publishForSending();
+        neighborCount = table.neighborCount();
+        if(neighborSlots.length < neighborCount) {
+            neighborSlots = new int[neighborCount];
+            advertisedRows = Arrays.copyOf(advertisedRows, neighborCount);
+        }
+        for(int i = 0; i < neighborCount; i++) {
+            int neighbor = table.neighborAt(i);
+            neighborSlots[i] = neighbor;
+            int[] row = advertisedRows[i];
+            if(row == null || row.length < copied.size) {
+                row = new int[table.ids.length];
+                advertisedRows[i] = row;
+            }
+            for(int slot = 0; slot < copied.size; slot++) row[slot] = table.advertisedCost(neighbor, slot);
+        }
+        return true;
+    }
+
+    /**
+     * Saves what copy took from the routing table as a new record. This
+     * does not need the table's lock, but must not run at the same time as copy.
+     * @param serverId The id of this server
+     * @param sequenceNumber The sequence number of this server's last update
+     * @throws IOException If the file could not be written, or the record is too large for one file
+     */
+    public void save(int serverId, int sequenceNumber) throws IOException {
+        RoutingTableSnapshot table = copied;
+        if(table == null) return;
+        copied = null;
+        int[] idOrder = table.slotsInIdOrder();
+        int neighbors = neighborCount;
+        long size = 28L + idOrder.length * 12L + neighbors * (8L + idOrder.length * 4L);
+        if(size > Integer.MAX_VALUE - RECORD_HEADER_SIZE) {
+            throw new IOException("The routing table is too large to save: a record would be " + size + " bytes");
+        }
+        if(record.capacity() < size) record = ByteBuffer.allocate((int) size);
+        record.clear();
+        record.putInt(FORMAT);
+        record.putInt(serverId);
+        record.putLong(System.currentTimeMillis());
+        record.putInt(sequenceNumber);
+        record.putInt(idOrder.length);
+        record.putInt(neighbors);
+        for(int slot : idOrder) {
+            record.putInt(table.ids[slot]);
+            record.putInt(table.cost[slot]);
+            record.putInt(table.nextHopId[slot]);
+        }
+        for(int i = 0; i < neighbors; i++) {
+            int neighbor = neighborSlots[i];
+            int[] advertised = advertisedRows[i];
+            record.putInt(table.ids[neighbor]);
+            record.putInt(table.receivedSequence(neighbor));
+            for(int slot : idOrder) record.putInt(advertised[slot]);
+        }
+        record.flip();
+        append(record);
+        savedVersion = table.version;
+        lastSequence = sequenceNumber;
+    }
+
+    /**
+     * Restores the routing table from the newest complete record. The
+     * topology file must already be loaded, and only destinations and
+     * neighbors that are still in it are restored. Callers must hold the
+     * table's lock.
+     * @param table The routing table
+     * @param serverId The id of this server
+     * @param maxMetric The cost at which routes become unreachable
+     * @return Returns the neighbors whose costs were restored, or null if nothing could be restored
+     * @throws IOException If the file could not be read
+     */
+    public int[] restore(RoutingTable table, int serverId, int maxMetric) throws IOException {
+        ByteBuffer latest = readLatest();
+        if(latest == null || latest.getInt() != FORMAT || latest.getInt() != serverId) return null;
+        latest.getLong();
+        int sequence = latest.getInt();
+        int entries = latest.getInt();
+        int neighbors = latest.getInt();
+        // A record that does not have exactly this size is broken, even if its checksum is right
+        if(entries < 0 || neighbors < 0) return null;
+        if(latest.remaining() != entries * 12L + neighbors * (8L + entries * 4L)) return null;
+
+        int[] slots = new int[entries];
+        int[] storedNextHop = new int[entries];
+        for(int j = 0; j < entries; j++) {
+            slots[j] = table.slotOf(latest.getInt());
+            latest.getInt();
+            storedNextHop[j] = latest.getInt();
+        }
+        int[] restored = new int[neighbors];
+        int count = 0;
+        for(int i = 0; i < neighbors; i++) {
+            int neighbor = table.slotOf(latest.getInt());
+            int receivedSequence = latest.getInt();
+            if(neighbor == -1 || !table.isNeighbor(neighbor)) {
+                latest.position(latest.position() + entries * 4);
+                continue;
+            }
+            table.setReceivedSequence(neighbor, receivedSequence);
+            for(int j = 0; j < entries; j++) {
+                int cost = latest.getInt();
+                if(slots[j] != -1) table.setAdvertisedCost(neighbor, slots[j], cost);
+            }
+            restored[count++] = neighbor;
+        }
+
+        // The route saved for a destination is kept unless another neighbor is now cheaper
+        for(int j = 0; j < entries; j++) {
+            int destination = slots[j];
+            if(destination == -1 || table.ids[destination] == serverId) continue;
+            long bestCost = table.cost[destination];
+            int bestHop = table.nextHopId[destination];
+            int saved = table.slotOf(storedNextHop[j]);
+            for(int i = -1; i < count; i++) {
+                int neighbor = (i == -1) ? saved : restored[i];
+                if(neighbor == -1 || !table.isNeighbor(neighbor)) continue;
+                int advertised = table.advertisedCost(neighbor, destination);
+                if(advertised == RoutingTable.INFINITY) continue;
+                long pathCost = (long) table.directLinkCost[neighbor] + advertised;
+                if(pathCost < bestCost && pathCost < maxMetric) {
+                    bestCost = pathCost;
+                    bestHop = table.ids[neighbor];
+                }
+            }
+            if(bestCost < table.cost[destination]) table.setRoute(destination, (int) bestCost, bestHop);
+        }
+        savedSequence = sequence;
+        return Arrays.copyOf(restored, count);
+    }
+
+    /**
+     * Finds the newest record whose checksum is correct. Records after a
+     * broken one are not used, because the broken one was being written
+     * when the server stopped.
+     * @return Returns the body of the record, or null if there is none
+     */
+    private ByteBuffer readLatest() throws IOException {
+        if(!Files.exists(path)) return null;
+        map(Math.max(MIN_FILE_SIZE, Files.size(path)));
+        ByteBuffer latest = null;
+        int position = 0;
+        while(position + RECORD_HEADER_SIZE <= file.capacity()) {
+            if(file.getInt(position) != MAGIC) break;
+            int length = file.getInt(position + 4);
+            int checksum = file.getInt(position + 8);
+            int start = position + RECORD_HEADER_SIZE;
+            if(length < 0 || length > file.capacity() - start) break;
+            ByteBuffer body = file.duplicate();
+            body.limit(start + length).position(start);
+            crc.reset();
+            crc.update(body.duplicate());
+            if((int) crc.getValue() != checksum) break;
+            latest = body.slice();
+            position = start + length;
+        }
+        end = position;
+        return latest;
+    }
+
+    private void append(ByteBuffer body) throws IOException {
+        int size = RECORD_HEADER_SIZE + body.remaining();
+        if(file == null && Files.exists(path)) readLatest();
+        if(file == null || end + size > file.capacity()) {
+            // Start a new file with only this record, and swap it in so the old one is whole until then
+            Path newPath = path.resolveSibling(path.getFileName() + ".new");
+            Files.deleteIfExists(newPath);
+            map(newPath, Math.min(Integer.MAX_VALUE, Math.max(MIN_FILE_SIZE, (long) size * RECORDS_PER_FILE)));
+            end = 0;
+            write(body);
+            file.force();
+            Files.move(newPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+        write(body);
+    }
+
+    /**
+     * Writes a record at the end of the mapped file. The writes reach the
+     * file even if the process is killed, so force is only used when a new
+     * file replaces the old one.
+     */
+    private void write(ByteBuffer body) {
+        crc.reset();
+        crc.update(body.duplicate());
+        int length = body.remaining();
+        file.position(end + RECORD_HEADER_SIZE);
+        file.put(body);
+        file.putInt(end + 4, length);
+        file.putInt(end + 8, (int) crc.getValue());
+        file.putInt(end, MAGIC);
+        end += RECORD_HEADER_SIZE + length;
+        // A zero after the record marks where the next one starts
+        if(end + 4 <= file.capacity()) file.putInt(end, 0);
+    }
+
+    private void map(long size) throws IOException {
+        map(path, size);
+    }
+
+    private void map(Path mapPath, long size) throws IOException {
+        if(size > Integer.MAX_VALUE) throw new IOException("The routing table file is too large: " + mapPath);
+        try (FileChannel channel = FileChannel.open(mapPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            file = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
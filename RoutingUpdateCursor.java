@@ -0,0 +1,208 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Reads routing update packets without creating objects. One cursor is
+ * reused for every packet: it is pointed at the received bytes, the header
+ * fields are read into its fields, and then the entries are read one at a
+ * time with next(). Only the id and cost of each entry are read because
+ * the ip and port of every server are already in the routing table.
+ * <p>
+ * Version 2 packets are expanded into a buffer kept by the cursor in the
+ * version 1 entry layout, so the rest of the server only reads one format.
+ * The cost of the link in the header becomes the cost of the entry for
+ * localId, which is where a version 1 packet carries it.
+ */
+public class RoutingUpdateCursor {
+    int numberOfUpdateFields;
+    int serverPort;
+    int serverIPAddress;
+    int sequenceNumber;
+    int segmentIndex;
+    int segmentCount;
+    int baseSequence;
+    int ackSequence;
+    int entryCount;
+
+    int version;
+    boolean supportsVersion2;
+
+    int id;
+    int cost;
+
+    /**
+     * The id of the server reading the packets, or -1 if it is not known.
+     */
+    int localId = -1;
+
+    private ByteBuffer buffer;
+    private int entriesStart;
+    private int entry;
+
+    private ByteBuffer expanded = ByteBuffer.allocate(0);
+    private int readPosition;
+
+    /**
+     * Points the cursor at a received packet and reads its header.
+     * @param buffer A buffer containing the packet starting at position 0
+     * @param length The number of bytes that were received
+     * @return Returns false if the packet is malformed
+     */
+    public boolean wrapPacket(ByteBuffer buffer, int length) {
+        if(length < RoutingUpdateMessage.HEADER_SIZE) return false;
+        if((buffer.get(0) & 0xFF) == RoutingUpdateMessage.V2_MARKER) return wrapVersion2(buffer, length);
+        this.version = RoutingUpdateMessage.VERSION_1;
+        this.buffer = buffer;
+        this.numberOfUpdateFields = buffer.getShort(0) & 0xFFFF;
+        this.supportsVersion2 = (numberOfUpdateFields & RoutingUpdateMessage.SUPPORTS_VERSION_2) != 0;
+        this.serverPort = buffer.getShort(2) & 0xFFFF;
+        this.serverIPAddress = buffer.getInt(4);
+        this.sequenceNumber = buffer.getInt(8);
+        this.segmentIndex = buffer.getShort(12) & 0xFFFF;
+        this.segmentCount = buffer.getShort(14) & 0xFFFF;
+        this.baseSequence = buffer.getInt(16);
+        this.ackSequence = buffer.getInt(RoutingUpdateMessage.ACK_OFFSET);
+        this.entryCount = (numberOfUpdateFields - 2) / 4;
+        this.entriesStart = RoutingUpdateMessage.HEADER_SIZE;
+        this.entry = 0;
+
+        if(!validSegment()) return false;
+        return numberOfUpdateFields >= 2
+                && entriesStart + entryCount * RoutingUpdateMessage.ENTRY_SIZE <= length;
+    }
+
+    private boolean wrapVersion2(ByteBuffer buffer, int length) {
+        if(length < RoutingUpdateMessage.V2_HEADER_SIZE) return false;
+        this.version = RoutingUpdateMessage.VERSION_2;
+        this.supportsVersion2 = true;
+        boolean bitmap = (buffer.get(1) & RoutingUpdateMessage.FLAG_UNREACHABLE_BITMAP) != 0;
+        this.serverPort = buffer.getShort(2) & 0xFFFF;
+        this.serverIPAddress = buffer.getInt(4);
+        this.sequenceNumber = buffer.getInt(8);
+        this.segmentIndex = buffer.getShort(12) & 0xFFFF;
+        this.segmentCount = buffer.getShort(14) & 0xFFFF;
+        this.baseSequence = buffer.getInt(16);
+        this.ackSequence = buffer.getInt(RoutingUpdateMessage.ACK_OFFSET);
+        int linkCost = buffer.getInt(RoutingUpdateMessage.LINK_COST_OFFSET);
+        int count = buffer.getShort(RoutingUpdateMessage.ENTRY_COUNT_OFFSET) & 0xFFFF;
+        if(!validSegment()) return false;
+
+        int bitmapStart = RoutingUpdateMessage.V2_HEADER_SIZE;
+        readPosition = bitmapStart + (bitmap ? RoutingUpdateMessage.bitmapSize(count) : 0);
+        if(readPosition > length) return false;
+        if(expanded.capacity() < count * RoutingUpdateMessage.ENTRY_SIZE) {
+            expanded = ByteBuffer.allocate(count * RoutingUpdateMessage.ENTRY_SIZE);
+        }
+
+        int id = 0;
+        for(int i = 0; i < count; i++) {
+            int idDelta = readVarint(buffer, length);
+            int entryCost = readVarint(buffer, length);
+            if(idDelta < 0 || entryCost < 0) return false;
+            id += idDelta;
+            if(id > 0xFFFF) return false;
+            if(bitmap && (buffer.get(bitmapStart + i / 8) & (1 << (i % 8))) != 0) entryCost = RoutingTable.INFINITY;
+            if(id == localId) entryCost = linkCost;
+            int position = i * RoutingUpdateMessage.ENTRY_SIZE;
+            expanded.putInt(position, 0);
+            expanded.putShort(position + 4, (short) 0);
+            expanded.putShort(position + 6, (short) id);
+            expanded.putInt(position + RoutingUpdateMessage.COST_OFFSET, entryCost);
+        }
+        if(readPosition != length) return false;
+
+        this.numberOfUpdateFields = 2 + count * 4;
+        wrapEntries(expanded, 0, count);
+        return true;
+    }
+
+    /**
+     * Checks the segment fields of the header. No update has more than
+     * MAX_SEGMENTS segments, so a larger count is rejected before the
+     * reassembler makes room for it.
+     * @return Returns false if the segment index or count is not possible
+     */
+    private boolean validSegment() {
+        return segmentCount > 0 && segmentCount <= RoutingUpdateMessage.MAX_SEGMENTS && segmentIndex < segmentCount;
+    }
+
+    private int readVarint(ByteBuffer buffer, int length) {
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            if(readPosition >= length) return -1;
+            int b = buffer.get(readPosition++);
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) return (shift == 28 && (b & 0x78) != 0) ? -1 : value;
+        }
+        return -1;
+    }
+
+    /**
+     * Points the cursor at entries that are already stored in a buffer.
+     * This is used for updates that were put together from several segments.
+     * The header fields are left unchanged.
+     * @param buffer A buffer containing the entries
+     * @param offset The position of the first entry
+     * @param entryCount The number of entries
+     */
+    public void wrapEntries(ByteBuffer buffer, int offset, int entryCount) {
+        this.buffer = buffer;
+        this.entriesStart = offset;
+        this.entryCount = entryCount;
+        this.entry = 0;
+    }
+
+    /**
+     * Moves to the next entry and reads its id and cost.
+     * @return Returns false if there are no more entries
+     */
+    public boolean next() {
+        if(entry >= entryCount) return false;
+        int position = entriesStart + entry * RoutingUpdateMessage.ENTRY_SIZE;
+        id = buffer.getShort(position + 6) & 0xFFFF;
+        cost = buffer.getInt(position + 8);
+        entry++;
+        return true;
+    }
+
+    /**
+     * Reads the id of an entry without moving the cursor. This only reads
+     * the buffer, so several threads can read different entries at once.
+     * @param index A number from 0 to entryCount - 1
+     * @return Returns the id of the entry
+     */
+    int idAt(int index) {
+        return buffer.getShort(entriesStart + index * RoutingUpdateMessage.ENTRY_SIZE + 6) & 0xFFFF;
+    }
+
+    /**
+     * Reads the cost of an entry without moving the cursor.
+     * @param index A number from 0 to entryCount - 1
+     * @return Returns the cost of the entry
+     */
+    int costAt(int index) {
+        return buffer.getInt(entriesStart + index * RoutingUpdateMessage.ENTRY_SIZE + 8);
+    }
+
+    /**
+     * Moves the cursor back to before the first entry.
+     */
+    public void rewind() {
+        entry = 0;
+    }
+
+    /**
+     * Returns the position of the first entry in the buffer.
+     * @return Returns the offset of the entries
+     */
+    public int entriesOffset() {
+        return entriesStart;
+    }
+
+    /**
+     * Returns the buffer that the cursor is reading from.
+     * @return Returns the buffer of the current packet
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+}
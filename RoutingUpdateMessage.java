@@ -1,100 +1,324 @@
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 
 /**
  * A class that contains all information a routing update message.
- * This class is used to read and create routing update messages.
+ * This class is used to create routing update messages. Received
+ * messages are read with {@link RoutingUpdateCursor}.
+ * <p>
+ * There are two versions of the format. Version 1 sends the ip, port, id
+ * and cost of every entry in 12 bytes. Version 2 only sends the id and the
+ * cost, because every server already knows the ip and port of every other
+ * server from the topology. Its entries are sorted by id, and each entry is
+ * the difference from the previous id and the cost, both as varints. An
+ * optional bitmap after the header marks the unreachable entries, whose
+ * cost is sent as 0. The cost of the link to the receiver is in the header
+ * instead of in the receiver's entry. Both versions share the first 24
+ * bytes of the header; version 2 starts with the byte V2_MARKER, which can
+ * never start a version 1 packet, and adds the link cost and the number of
+ * entries.
+ * <p>
+ * Servers that can read version 2 say so in their version 1 packets by
+ * adding 1 to the number of update fields. Older servers ignore it, because
+ * the number of entries is (fields - 2) / 4 either way.
  */
 public class RoutingUpdateMessage {
+    public static final int HEADER_SIZE = 24;
+    public static final int ENTRY_SIZE = 12;
+    public static final int COST_OFFSET = 8;
+    public static final int ACK_OFFSET = 20;
+
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+    public static final int V2_MARKER = 0x82;
+    public static final int V2_HEADER_SIZE = 30;
+    public static final int LINK_COST_OFFSET = 24;
+    public static final int ENTRY_COUNT_OFFSET = 28;
+    public static final int FLAG_UNREACHABLE_BITMAP = 1;
+    public static final int SUPPORTS_VERSION_2 = 1;
+
+    public static final int MAX_ID = 0xFFFF;
+    public static final int MIN_PACKET_SIZE = 576 - 28;
+    /**
+     * The most segments an update can have. Servers never send datagrams
+     * smaller than MIN_PACKET_SIZE, so even a version 1 update of every id
+     * fits in this many segments.
+     */
+    public static final int MAX_SEGMENTS = (MAX_ID + 1 + entriesPerSegment(MIN_PACKET_SIZE) - 1)
+            / entriesPerSegment(MIN_PACKET_SIZE);
+
     int numberOfUpdateFields;
     int serverPort;
-    String serverIPAddress;
+    int serverIPAddress;
 
     int receiverId;
 
-    ArrayList<ServerNode> serverNodes;
+    int sequenceNumber;
+    int segmentIndex;
+    int segmentCount = 1;
+
+    int baseSequence;
+    int ackSequence;
+
+    int version = VERSION_1;
+    boolean supportsVersion2;
+    boolean alwaysSendBitmap;
+
+    private RoutingTableSnapshot table;
+    private int[] slots;
+    private int from;
+    private int to;
 
     /**
-     * A constructor to create a routing update message
+     * A constructor to create a routing update message from
+     * a range of slots in the routing table.
      * @param receiverId The id of the receiving server
-     * @param numberOfUpdateFields The number of update fields in the message
      * @param serverPort The port number of this server
-     * @param serverIPAddress The ip of this server
-     * @param routingEntries The routing table of this server
+     * @param serverIPAddress The ip of this server stored in an integer
+     * @param table A snapshot of the routing table of this server
+     * @param fromSlot The first slot of the table to send
+     * @param toSlot The slot after the last slot to send
      */
-    public RoutingUpdateMessage(int receiverId, int numberOfUpdateFields, int serverPort, String serverIPAddress, ArrayList<ServerNode> routingEntries) {
+    public RoutingUpdateMessage(int receiverId, int serverPort, int serverIPAddress, RoutingTableSnapshot table, int fromSlot, int toSlot) {
+        this(receiverId, serverPort, serverIPAddress, table, null, fromSlot, toSlot);
+    }
+
+    /**
+     * A constructor to create a routing update message from a list of
+     * slots in the routing table. This is used for delta updates, which
+     * only contain the destinations that changed.
+     * @param receiverId The id of the receiving server
+     * @param serverPort The port number of this server
+     * @param serverIPAddress The ip of this server stored in an integer
+     * @param table A snapshot of the routing table of this server
+     * @param slots The slots to send, or null to send the slots from to to
+     * @param from The index of the first slot to send
+     * @param to The index after the last slot to send
+     */
+    public RoutingUpdateMessage(int receiverId, int serverPort, int serverIPAddress, RoutingTableSnapshot table, int[] slots, int from, int to) {
         this.receiverId = receiverId;
-        this.numberOfUpdateFields = numberOfUpdateFields;
+        this.numberOfUpdateFields = 2 + (to - from)*4;
         this.serverPort = serverPort;
         this.serverIPAddress = serverIPAddress;
-        this.serverNodes = routingEntries;
+        this.table = table;
+        this.slots = slots;
+        this.from = from;
+        this.to = to;
     }
 
     /**
-     * Constructor to read a routing update packet
-     * @param packet A byte array containing the routing update message
+     * Method to determine the size of a packet
+     * @return Returns the size of this packet
      */
-    public RoutingUpdateMessage(byte[] packet) {
-        ByteBuffer buffer = ByteBuffer.wrap(packet);
-        this.numberOfUpdateFields = buffer.getShort() & 0xFFFF;
-        this.serverPort = buffer.getShort() & 0xFFFF;
-        this.serverIPAddress = intToIp(buffer.getInt());
+    public int getPacketSize() {
+        if(version == VERSION_1) return HEADER_SIZE + ((to - from) * ENTRY_SIZE);
 
-        int numOfServers = (numberOfUpdateFields - 2) / 4;
-        this.serverNodes = new ArrayList<>();
-        for(int i = 0; i < numOfServers; i++) {
-            String ip = intToIp(buffer.getInt());
-            int port = buffer.getShort() & 0xFFFF;
-            int id = buffer.getShort() & 0xFFFF;
-            int cost = buffer.getInt();
-            this.serverNodes.add(new ServerNode(ip, port, id, cost));
+        int size = V2_HEADER_SIZE;
+        int previousId = 0;
+        boolean bitmap = alwaysSendBitmap;
+        for(int i = from; i < to; i++) {
+            int slot = (slots == null) ? i : slots[i];
+            size += entrySizeV2(table.ids[slot] - previousId, table.cost[slot]);
+            previousId = table.ids[slot];
+            if(table.cost[slot] == RoutingTable.INFINITY) bitmap = true;
         }
+        return bitmap ? size + bitmapSize(to - from) : size;
     }
 
     /**
-     * Method to determine the size of a packet
-     * @return Returns the size of this packet
+     * Chooses the version of the format that writeTo uses.
+     * @param version VERSION_1 or VERSION_2
      */
-    public int getPacketSize() {
-        int headerSize = 8;
-        int serverNodeSize = 12;
-        return headerSize + (serverNodes.size() * serverNodeSize);
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    /**
+     * Marks a version 1 message as coming from a server that can read version 2.
+     * @param supportsVersion2 True if the sender can read version 2
+     */
+    public void setSupportsVersion2(boolean supportsVersion2) {
+        this.supportsVersion2 = supportsVersion2;
+    }
+
+    /**
+     * Makes a version 2 message carry the unreachable bitmap even if every
+     * entry is reachable, so that entries can be marked unreachable for one
+     * receiver after the message was written.
+     * @param alwaysSendBitmap True to always write the bitmap
+     */
+    public void setAlwaysSendBitmap(boolean alwaysSendBitmap) {
+        this.alwaysSendBitmap = alwaysSendBitmap;
     }
 
     /**
-     * Finds the id of the sender by using
-     * the ip and port in the header.
-     * @return Returns the id of the sender
+     * Marks this message as a delta update. A delta update only holds the
+     * entries that changed after the update with the base sequence number,
+     * so it can only be used by a receiver that already has that update.
+     * A base sequence of 0 means the message holds the whole table.
+     * @param baseSequence The sequence number the delta is based on
      */
-    public int getSenderID() {
-        for(ServerNode entry : serverNodes) {
-            if(entry.serverIPAddress.equals(this.serverIPAddress)
-                    && entry.serverPort == this.serverPort
-            ) return entry.serverID;
+    public void setBaseSequence(int baseSequence) {
+        this.baseSequence = baseSequence;
+    }
+
+    /**
+     * Sets the sequence number of the last update this server used from
+     * the receiver. The receiver uses it to choose what its next delta
+     * update to this server must contain.
+     * @param ackSequence The acknowledged sequence number
+     */
+    public void setAckSequence(int ackSequence) {
+        this.ackSequence = ackSequence;
+    }
+
+    /**
+     * Sets the segment fields of this message. A routing table that does not
+     * fit in one datagram is sent as several segments that share a sequence number.
+     * @param sequenceNumber The sequence number of the whole update
+     * @param segmentIndex The index of this segment starting at 0
+     * @param segmentCount The number of segments in the update
+     */
+    public void setSegment(int sequenceNumber, int segmentIndex, int segmentCount) {
+        this.sequenceNumber = sequenceNumber;
+        this.segmentIndex = segmentIndex;
+        this.segmentCount = segmentCount;
+    }
+
+    /**
+     * Finds how many routing entries fit in one segment.
+     * @param maxPacketSize The largest datagram payload that can be sent
+     * @return Returns the number of entries per segment
+     */
+    public static int entriesPerSegment(int maxPacketSize) {
+        return Math.max(1, (maxPacketSize - HEADER_SIZE) / ENTRY_SIZE);
+    }
+
+    /**
+     * Finds the largest number of entries a segment of either version can
+     * have. A version 2 entry is at least 2 bytes long.
+     * @param maxPacketSize The largest datagram that can be sent or received
+     * @return Returns the largest number of entries in a segment
+     */
+    public static int maxEntriesPerSegment(int maxPacketSize) {
+        return Math.max(entriesPerSegment(maxPacketSize), (maxPacketSize - V2_HEADER_SIZE) / 2);
+    }
+
+    /**
+     * Finds the size of a version 2 entry.
+     * @param idDelta The difference from the id of the previous entry
+     * @param cost The cost of the entry, or INFINITY
+     * @return Returns the number of bytes of the entry
+     */
+    public static int entrySizeV2(int idDelta, int cost) {
+        return varintSize(idDelta) + varintSize((cost == RoutingTable.INFINITY) ? 0 : cost);
+    }
+
+    /**
+     * Finds the size of the unreachable bitmap, which has one bit per entry.
+     * @param entries The number of entries
+     * @return Returns the number of bytes of the bitmap
+     */
+    public static int bitmapSize(int entries) {
+        return (entries + 7) / 8;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while((value & ~0x7F) != 0) {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
         }
-        return -1;
+        buffer.put((byte) value);
     }
 
     /**
      * Creates a routing update packet using a byte buffer.
-     * All values are written to this buffer, then the
-     * byte array is returned.
+     * All values are written to this buffer from the routing
+     * table, then the byte array is returned.
      * @return Returns a byte array of the message
      */
     public byte[] getRoutingUpdatePacket() {
         ByteBuffer buffer = ByteBuffer.allocate(getPacketSize());
-        buffer.putShort((short)numberOfUpdateFields);
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Writes the message at the current position of a buffer. The
+     * buffer must have getPacketSize() bytes remaining.
+     * @param buffer The buffer the message is written to
+     */
+    public void writeTo(ByteBuffer buffer) {
+        if(version == VERSION_2) {
+            writeVersion2(buffer);
+            return;
+        }
+        buffer.putShort((short)(numberOfUpdateFields + (supportsVersion2 ? SUPPORTS_VERSION_2 : 0)));
         buffer.putShort((short)serverPort);
-        buffer.putInt(ipToBytes(serverIPAddress));
+        buffer.putInt(serverIPAddress);
+        buffer.putInt(sequenceNumber);
+        buffer.putShort((short)segmentIndex);
+        buffer.putShort((short)segmentCount);
+        buffer.putInt(baseSequence);
+        buffer.putInt(ackSequence);
 
-        for(ServerNode server : serverNodes) {
-            int cost = (receiverId == server.serverID) ? server.directLinkCost : server.cost;
-            buffer.putInt(ipToBytes(server.serverIPAddress));
-            buffer.putShort((short)server.serverPort);
-            buffer.putShort((short)server.serverID);
+        for(int i = from; i < to; i++) {
+            int slot = (slots == null) ? i : slots[i];
+            int id = table.ids[slot];
+            int cost = (receiverId == id) ? table.directLinkCost[slot] : table.cost[slot];
+            buffer.putInt(table.ipAddress[slot]);
+            buffer.putShort((short)table.port[slot]);
+            buffer.putShort((short)id);
             buffer.putInt(cost);
         }
-        return buffer.array();
+    }
+
+    private void writeVersion2(ByteBuffer buffer) {
+        int count = to - from;
+        boolean bitmap = alwaysSendBitmap;
+        int linkCost = 0;
+        for(int i = from; i < to; i++) {
+            int slot = (slots == null) ? i : slots[i];
+            if(table.cost[slot] == RoutingTable.INFINITY) bitmap = true;
+            if(table.ids[slot] == receiverId) linkCost = table.directLinkCost[slot];
+        }
+
+        buffer.put((byte) V2_MARKER);
+        buffer.put((byte)(bitmap ? FLAG_UNREACHABLE_BITMAP : 0));
+        buffer.putShort((short)serverPort);
+        buffer.putInt(serverIPAddress);
+        buffer.putInt(sequenceNumber);
+        buffer.putShort((short)segmentIndex);
+        buffer.putShort((short)segmentCount);
+        buffer.putInt(baseSequence);
+        buffer.putInt(ackSequence);
+        buffer.putInt(linkCost);
+        buffer.putShort((short)count);
+
+        if(bitmap) {
+            int bitmapStart = buffer.position();
+            for(int i = 0; i < bitmapSize(count); i++) buffer.put((byte) 0);
+            for(int i = from; i < to; i++) {
+                int slot = (slots == null) ? i : slots[i];
+                if(table.cost[slot] != RoutingTable.INFINITY) continue;
+                int index = bitmapStart + (i - from) / 8;
+                buffer.put(index, (byte)(buffer.get(index) | (1 << ((i - from) % 8))));
+            }
+        }
+
+        int previousId = 0;
+        for(int i = from; i < to; i++) {
+            int slot = (slots == null) ? i : slots[i];
+            int cost = table.cost[slot];
+            putVarint(buffer, table.ids[slot] - previousId);
+            putVarint(buffer, (cost == RoutingTable.INFINITY) ? 0 : cost);
+            previousId = table.ids[slot];
+        }
     }
 
     /**
@@ -121,21 +345,10 @@ public class RoutingUpdateMessage {
      * @return Returns the ip as string
      */
     public static String intToIp(int ipAddress) {
-        return String.format("%d.%d.%d.%d",
-                (ipAddress >> 24) & 0xFF,
-                (ipAddress >> 16) & 0xFF,
-                (ipAddress >> 8) & 0xFF,
-                ipAddress & 0xFF);
-    }
-
-    public String toString() {
-        StringBuilder sb = new StringBuilder();
-        sb.append("sender id: " + getSenderID() + "\n\n");
-        for(ServerNode node : serverNodes) {
-            sb.append("ID: " + node.serverID + "\n")
-                .append("cost: " + node.cost + "\n");
-        }
-        return sb.toString();
+        return ((ipAddress >> 24) & 0xFF) + "." +
+                ((ipAddress >> 16) & 0xFF) + "." +
+                ((ipAddress >> 8) & 0xFF) + "." +
+                (ipAddress & 0xFF);
     }
 
-}
+}
\ No newline at end of file
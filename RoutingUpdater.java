@@ -1,83 +1,235 @@
 import java.io.IOException;
-import java.net.*;
-import java.util.ArrayList;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class will be used for sending messages and routing updates
- * to neighboring servers. Ignore this current implementation because it's
- * just an example for udp client.
+ * to neighboring servers. Each server has its own updater, which sends
+ * with the server's transport. Updates are sent by a scheduler: periodic
+ * updates with a random jitter so that routers do not send at the same
+ * moment, and triggered updates a short while after routes change, so that
+ * several changes go out together. Triggered updates to a neighbor are at
+ * least minTriggerGapMillis apart. When the server runs on an event loop
+ * the loop's timers are the scheduler, otherwise a ScheduledExecutorService
+ * with one thread is used.
+ * Routes are hidden from the neighbor they were learned from as chosen by
+ * splitHorizon. With poisoned reverse, which is the default, the routes
+ * are still written once per round and their costs are patched to
+ * infinity for that neighbor. Simple split horizon leaves the routes out,
+ * so the table is written again for every neighbor.
+ * Each round is written in the version of the update format that each
+ * neighbor can read, and only for the versions some neighbor needs.
  */
-public class RoutingUpdater extends Thread {
-    private static DatagramSocket socket;
-    public static boolean isRunning;
-    public static int updateInterval;
+public class RoutingUpdater {
+    private final Server server;
+    public volatile boolean isRunning;
+    public final int updateIntervalMillis;
+    private int sequenceNumber;
 
+    public int fullUpdateInterval = 10;
+    private static final int SEQUENCE_HISTORY = 64;
+    private int roundsSinceFullUpdate;
+    private final int[] sentSequences = new int[SEQUENCE_HISTORY];
+    private final int[] sentVersions = new int[SEQUENCE_HISTORY];
 
-    public RoutingUpdater(int updateInterval) {
-        try {
-            socket = new DatagramSocket();
-            this.updateInterval = updateInterval;
-        }
-        catch (SocketException e) {
-            throw new RuntimeException(e);
-        }
+    public double periodicJitter = 0.15;
+    public boolean triggeredUpdates = true;
+    public long coalesceMillis;
+    public long minTriggerGapMillis;
+    private EventLoop loop;
+    private ScheduledExecutorService executor;
+    private final AtomicBoolean triggerPending = new AtomicBoolean();
+    private long[] lastTriggeredAt = new long[0];
+    private int[] triggeredVersion = new int[0];
+
+    private int[] slotsToSend = new int[0];
+    private int encodedEntries;
+    private int encodedBase;
 
+    private ByteBuffer updateBuffer;
+    private int[] segmentOffsets = new int[0];
+    private int[] costPositions = new int[0];
+    private int encodedSegments;
+    private boolean writtenVersion1;
+
+    private ByteBuffer updateBufferV2;
+    private int[] segmentOffsetsV2 = new int[0];
+    private int[] segmentStartsV2 = new int[0];
+    private int[] bitPositions = new int[0];
+    private int encodedSegmentsV2;
+    private boolean writtenVersion2;
+
+    public SplitHorizon splitHorizon = SplitHorizon.POISONED_REVERSE;
+    private RoutingTableSnapshot encodedTable;
+    private boolean encodedPoisonLists;
+    private int[] firstViaNeighbor = new int[0];
+    private int[] nextViaSameNeighbor = new int[0];
+
+    /**
+     * Creates the updater of a server. Updates are sent with the
+     * server's transport once the updater is started.
+     * @param server The server whose routing table is sent
+     * @param updateIntervalMillis The number of milliseconds between updates
+     */
+    public RoutingUpdater(Server server, int updateIntervalMillis) {
+        this.server = server;
+        this.updateIntervalMillis = updateIntervalMillis;
+        this.coalesceMillis = Math.min(50, Math.max(1, updateIntervalMillis / 50));
+        this.minTriggerGapMillis = Math.max(1, updateIntervalMillis / 10);
     }
 
     /**
-     * A thread that loops continuously to send routing updates
-     * to this server's neighbors. The updateInterval is the number
-     * of seconds it takes to send another update.
+     * Starts sending periodic routing updates. If the server runs on an
+     * event loop the updates are sent by timers on the loop, otherwise
+     * a scheduler thread is started.
      */
-    @Override
-    public void run() {
+    public void start() {
         isRunning = true;
-        while(isRunning) {
-            try{
-                Thread.sleep(1000*updateInterval);
-            } catch(InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-            sendUpdateToNeighbors();
+        loop = server.getEventLoop();
+        if(loop == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(
+                    task -> new Thread(task, "routing-updater-" + server.serverId));
         }
+        schedule(nextPeriodicDelay(), this::sendPeriodicUpdate);
     }
 
     /**
-     * Checks if any neighbors have timed out, if they have the
-     * routing table is updated accordingly. After this, it
-     * sends routing updates to this server's neighbors.
+     * Stops sending routing updates. Updates that were already
+     * scheduled are dropped.
      */
-    public static void sendUpdateToNeighbors() {
-        ArrayList<ServerNode> neighborsToTimeout = new ArrayList<>();
+    public void stop() {
+        isRunning = false;
+        if(executor != null) executor.shutdownNow();
+    }
 
-        synchronized (Server.servers) {
-            ArrayList<ServerNode> servers = Server.servers;
-            for (ServerNode server : servers) {
-                if (!server.isNeighbor()) continue;
+    /**
+     * Asks for a triggered update because routes changed. The update is
+     * sent after the coalescing window, so changes that happen close
+     * together are sent in one update. This never blocks and can be called
+     * while holding the table's lock. Nothing is sent when triggeredUpdates
+     * is false, and the changes then wait for the next periodic update.
+     */
+    public void triggerUpdate() {
+        if(!isRunning || !triggeredUpdates || !triggerPending.compareAndSet(false, true)) return;
+        schedule(coalesceMillis, this::sendTriggeredUpdate);
+    }
 
-                if (server.isTimedOut(updateInterval)) {
-                    neighborsToTimeout.add(server);
+    /**
+     * Returns the sequence number of the last update that was sent.
+     * @return Returns the sequence number
+     */
+    public synchronized int sequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * Continues the sequence numbers of a restored routing table, so that
+     * neighbors that still remember this server accept its updates as new.
+     * @param sequenceNumber The sequence number of the next update is one more than this
+     */
+    public synchronized void restoreSequenceNumber(int sequenceNumber) {
+        this.sequenceNumber = (sequenceNumber == 0) ? 1 : sequenceNumber;
+    }
+
+    private void sendPeriodicUpdate() {
+        if(!isRunning) return;
+        sendUpdateToNeighbors();
+        server.saveTable();
+        schedule(nextPeriodicDelay(), this::sendPeriodicUpdate);
+    }
+
+    /**
+     * Sends the changes waiting for a triggered update to every neighbor
+     * that has not had a triggered update within minTriggerGapMillis. The
+     * other neighbors are sent the update when their gap has passed.
+     */
+    private void sendTriggeredUpdate() {
+        long retryMillis = -1;
+        synchronized (this) {
+            triggerPending.set(false);
+            if(!isRunning) return;
+            RoutingTableSnapshot snapshot = server.table.publishForSending();
+            if(lastTriggeredAt.length < snapshot.size) {
+                lastTriggeredAt = Arrays.copyOf(lastTriggeredAt, snapshot.size);
+                triggeredVersion = Arrays.copyOf(triggeredVersion, snapshot.size);
+            }
+
+            long now = System.nanoTime();
+            long gap = minTriggerGapMillis * 1_000_000L;
+            boolean perNeighbor = splitHorizon == SplitHorizon.SIMPLE;
+            int baseSequence = -1;
+            for (int slot = 0; slot < snapshot.size; slot++) {
+                if (!snapshot.isNeighbor(slot) || triggeredVersion[slot] == snapshot.version) continue;
+
+                long wait = lastTriggeredAt[slot] + gap - now;
+                if (lastTriggeredAt[slot] != 0 && wait > 0) {
+                    retryMillis = Math.max(retryMillis, (wait + 999_999) / 1_000_000L);
+                    continue;
+                }
+                if (baseSequence == -1) {
+                    baseSequence = chooseBaseSequence(snapshot, false);
+                    if(!perNeighbor) encodeRoutingTable(snapshot, baseSequence);
                 }
+                if(perNeighbor) encodeRoutingTable(snapshot, baseSequence, slot);
+                sendEncodedUpdate(slot, snapshot.directLinkCost[slot]);
+                lastTriggeredAt[slot] = now;
+                triggeredVersion[slot] = snapshot.version;
             }
+        }
+        if(retryMillis >= 0 && triggerPending.compareAndSet(false, true)) schedule(retryMillis, this::sendTriggeredUpdate);
+    }
+
+    private long nextPeriodicDelay() {
+        double jitter = periodicJitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(1, Math.round(updateIntervalMillis * (1 + jitter)));
+    }
 
-            for (ServerNode server : neighborsToTimeout) {
-                neighborTimeout(server);
+    /**
+     * Runs a task after a delay on the event loop or the scheduler thread.
+     */
+    private void schedule(long delayMillis, Runnable task) {
+        if(loop == null) {
+            try {
+                executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // The updater was stopped
             }
+        }
+        else if(Thread.currentThread() == loop) loop.schedule(delayMillis, task);
+        else loop.execute(() -> loop.schedule(delayMillis, task));
+    }
 
-            for (ServerNode server : servers) {
-                if (!server.isNeighbor() || server.isTimedOut(updateInterval)) continue;
+    /**
+     * Sends routing updates to this server's neighbors. Neighbors
+     * that stop sending are timed out by the server's timer wheel, so
+     * they are not looked for here. The updates are written from the
+     * latest snapshot of the routing table, so the table's lock is never
+     * held while sending.
+     */
+    public void sendUpdateToNeighbors() {
+        synchronized (this) {
+            RoutingTableSnapshot snapshot = server.table.publishForSending();
+            int baseSequence = chooseBaseSequence(snapshot, true);
+            boolean perNeighbor = splitHorizon == SplitHorizon.SIMPLE;
+            if(!perNeighbor) encodeRoutingTable(snapshot, baseSequence);
+            if(triggeredVersion.length < snapshot.size) {
+                lastTriggeredAt = Arrays.copyOf(lastTriggeredAt, snapshot.size);
+                triggeredVersion = Arrays.copyOf(triggeredVersion, snapshot.size);
+            }
+            for (int slot = 0; slot < snapshot.size; slot++) {
+                if (!snapshot.isNeighbor(slot)) continue;
 
-                try {
-                    byte[] routingUpdate = getMessageAsPacket(server.serverID);
-                    InetAddress address = InetAddress.getByName(server.serverIPAddress);
-                    DatagramPacket packet = new DatagramPacket(
-                            routingUpdate, routingUpdate.length, address, server.serverPort
-                    );
-                    socket.send(packet);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                if(perNeighbor) encodeRoutingTable(snapshot, baseSequence, slot);
+                sendEncodedUpdate(slot, snapshot.directLinkCost[slot]);
+                // A triggered update for the same version would send nothing new
+                triggeredVersion[slot] = snapshot.version;
             }
         }
     }
@@ -90,12 +242,13 @@ public class RoutingUpdater extends Thread {
      * then it removes every reference the server's routing table.
      * @param serverId id of the server link to disable
      */
-     public static void disableServerLink(int serverId){
-        synchronized (Server.servers) {
-            ServerNode serverToDisable = Server.getServer(serverId);
-            if(serverToDisable != null && serverToDisable.isNeighbor()){
-                serverToDisable.directLinkCost = Integer.MAX_VALUE;
-                Server.removePath(serverId);
+     public void disableServerLink(int serverId){
+        synchronized (server.table) {
+            int serverToDisable = server.table.slotOf(serverId);
+            if(serverToDisable != -1 && server.table.isNeighbor(serverToDisable)){
+                server.table.setDirectLinkCost(serverToDisable, RoutingTable.INFINITY);
+                server.removePath(serverId);
+                triggerUpdate();
                 System.out.println("disable SUCCESS\nServer link to " + serverId + " has been disabled.");
             }
             else{
@@ -107,61 +260,61 @@ public class RoutingUpdater extends Thread {
     /**
      * Removes direct link to this server and removes any
      * next hop path reference to this server from the routing table.
-     * @param server
+     * @param slot The slot of the server in the routing table
      */
-    public static void neighborTimeout(ServerNode server) {
-        DistanceVectorRouting.printMessageFromThread("Node " + server.serverID + " has timed out.");
-        server.directLinkCost = Integer.MAX_VALUE;
-        Server.removePath(server.serverID);
+    public void neighborTimeout(int slot) {
+        int id = server.table.ids[slot];
+        server.printEvent(LogLevel.WARN, EventLog.Event.NEIGHBOR_TIMED_OUT, id);
+        server.table.setDirectLinkCost(slot, RoutingTable.INFINITY);
+        server.removePath(id);
+        triggerUpdate();
     }
 
     /**
-     * Sends a routing update message to one neighbor
-     * @param neighbor The neighbor that will receive the routing update message
+     * Sends a full routing update message to one neighbor
+     * @param neighbor The slot of the neighbor that will receive the routing update message
+     * @param linkCost The link cost sent to the neighbor as its own entry
      */
-    private static void sendUpdateToNeighbor(ServerNode neighbor) {
-        if(neighbor.isTimedOut(updateInterval)) return;
-        try {
-            byte[] routingUpdate = getMessageAsPacket(neighbor.serverID);
-            InetAddress address = InetAddress.getByName(neighbor.serverIPAddress);
-            DatagramPacket packet = new DatagramPacket(
-                    routingUpdate, routingUpdate.length, address, neighbor.serverPort
-            );
-            socket.send(packet);
-
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    private synchronized void sendUpdateToNeighbor(int neighbor, int linkCost) {
+        if(!isRunning) return;
+        encodeRoutingTable(server.table.publishForSending(), 0, (splitHorizon == SplitHorizon.SIMPLE) ? neighbor : -1);
+        sendEncodedUpdate(neighbor, linkCost);
     }
 
     /**
      * Updates the link of a server to a new cost. If the cost is infinity,
-     * the direct link cost is set to -inf so that the server
+     * the neighbor is sent a cost of -inf so that it
      * knows that the link will be closed. If the next
      * hop to the neighbor is the direct link, the cost to the
      * neighbor is also updated. The cost is also updated if
-     * the new link cost is less than current cost.
+     * the new link cost is less than current cost. The neighbor is
+     * sent a full update by the scheduler, and the other neighbors get
+     * a triggered update.
      * @param serverId This server's id
      * @param neighborId The neighbor whose link will change
      * @param newCost The new cost of the link
      */
-    public static void updateLink(int serverId, int neighborId, String newCost) {
-        synchronized (Server.servers) {
-            if(serverId != Server.serverId) {
+    public void updateLink(int serverId, int neighborId, String newCost) {
+        RoutingTable table = server.table;
+        int serverToUpdate;
+        int sentCost;
+        synchronized (table) {
+            if(serverId != server.serverId) {
                 System.out.println("update ERROR: server id of "+ serverId + " does not match this servers id");
                 return;
             }
-            ServerNode serverToUpdate = Server.getServer(neighborId);
-            if(serverToUpdate != null && serverToUpdate.isNeighbor()) {
-                int cost = 0;
-                if(newCost.equalsIgnoreCase("inf")){
-                    serverToUpdate.directLinkCost = Integer.MIN_VALUE;
-                    sendUpdateToNeighbor(serverToUpdate);
-                    serverToUpdate.directLinkCost = Integer.MAX_VALUE;
-                    Server.removePath(neighborId);
-                    System.out.println("update SUCCESS");
-                    return;
-                }
+            serverToUpdate = table.slotOf(neighborId);
+            if(serverToUpdate == -1 || !table.isNeighbor(serverToUpdate)) {
+                System.out.println("update ERROR: Server with id " + neighborId + " was not found or is not neighbor");
+                return;
+            }
+            if(newCost.equalsIgnoreCase("inf")){
+                table.setDirectLinkCost(serverToUpdate, RoutingTable.INFINITY);
+                server.removePath(neighborId);
+                sentCost = Integer.MIN_VALUE;
+            }
+            else {
+                int cost;
                 try {
                     cost = Integer.parseInt(newCost);
                 } catch (NumberFormatException e) {
@@ -169,19 +322,20 @@ public class RoutingUpdater extends Thread {
                     return;
                 }
 
-                serverToUpdate.directLinkCost = cost;
-                if(serverToUpdate.nextHopId == neighborId) serverToUpdate.cost = cost;
-                else if(cost < serverToUpdate.cost) {
-                    serverToUpdate.cost = cost;
-                    serverToUpdate.nextHopId = neighborId;
+                table.setDirectLinkCost(serverToUpdate, cost);
+                if(table.nextHopId[serverToUpdate] == neighborId) table.setRoute(serverToUpdate, cost, neighborId);
+                else if(cost < table.cost[serverToUpdate]) {
+                    table.setRoute(serverToUpdate, cost, neighborId);
                 }
-                sendUpdateToNeighbor(serverToUpdate);
-                System.out.println("update SUCCESS");
-            }
-            else {
-                System.out.println("update ERROR: Server with id " + neighborId + " was not found or is not neighbor");
+                table.publish();
+                sentCost = cost;
             }
         }
+        int neighbor = serverToUpdate;
+        int linkCost = sentCost;
+        schedule(0, () -> sendUpdateToNeighbor(neighbor, linkCost));
+        triggerUpdate();
+        if(server.printMessages) System.out.println("update SUCCESS");
     }
 
     //Alejandro Urbano
@@ -189,10 +343,9 @@ public class RoutingUpdater extends Thread {
      * Simulates a server crash by stopping the server
      * from sending and receiving routing update messages.
      */
-    public static void CrashServer(){
-        if(isRunning && Server.running) {
-            isRunning = false;
-            Server.running = false;
+    public void CrashServer(){
+        if(isRunning && server.running) {
+            server.stop();
             System.out.println("crash SUCCESS");
         }
         else {
@@ -201,22 +354,305 @@ public class RoutingUpdater extends Thread {
     }
 
     /**
-     * Creates a routing update message for the receiver
-     * server. The Receivers id is given so that it can be
-     * used to send the direct link cost.
-     * @param id Receiving server's id
-     * @return Returns the message as a byte array
+     * Chooses what the next update will contain. A full update is sent
+     * every fullUpdateInterval periodic rounds, and whenever a neighbor has
+     * not acknowledged one of the recent updates. Otherwise a delta update
+     * is sent that is based on the oldest update acknowledged by a neighbor,
+     * so every neighbor can use it. Triggered updates are not counted as
+     * rounds, so a burst of changes does not make the next full update come
+     * sooner.
+     * @param snapshot The snapshot of the routing table that will be sent
+     * @param periodic True for a periodic round, false for a triggered update
+     * @return Returns the sequence number the delta is based on, or 0 for a full update
      */
-    public static byte[] getMessageAsPacket(int id) {
-        RoutingUpdateMessage message = new RoutingUpdateMessage(
-                id,
-                2+Server.servers.size()*4,
-                Server.port,
-                Server.ipAddress,
-                Server.servers
-        );
-        return message.getRoutingUpdatePacket();
+    private int chooseBaseSequence(RoutingTableSnapshot snapshot, boolean periodic) {
+        if(fullUpdateInterval <= 0) return 0;
+        if(periodic && ++roundsSinceFullUpdate >= fullUpdateInterval) return 0;
+
+        int base = 0;
+        for(int slot = 0; slot < snapshot.size; slot++) {
+            if(!snapshot.isNeighbor(slot)) continue;
+            int acked = snapshot.ackedSequence(slot);
+            if(acked == 0 || versionOfSequence(acked) == -1) return 0;
+            if(base == 0 || acked - base < 0) base = acked;
+        }
+        return base;
     }
 
-}
+    /**
+     * Finds the table version at the time an update was written.
+     * @param sequence The sequence number of the update
+     * @return Returns the version or -1 if the update is too old to be remembered
+     */
+    private int versionOfSequence(int sequence) {
+        int index = (sequence & 0x7FFFFFFF) % SEQUENCE_HISTORY;
+        return (sentSequences[index] == sequence) ? sentVersions[index] : -1;
+    }
+
+    /**
+     * Chooses the routes for one round of updates. A full update
+     * contains every destination. A delta update contains the destinations
+     * that changed after the base update, and every neighbor so that the
+     * direct link cost can be sent to it. The routes are taken in id order,
+     * which version 2 of the format needs. The round gets one sequence
+     * number, and is written by writeEncodedUpdate in each version of the
+     * format the first time a neighbor needs it. The cost and
+     * acknowledgement sent to each neighbor are patched in by
+     * sendEncodedUpdate, so the table is only written once per round.
+     * Callers must hold this updater's lock.
+     * @param table The snapshot of the routing table to write
+     * @param baseSequence The sequence number the delta is based on, or 0 for a full update
+     */
+    public void encodeRoutingTable(RoutingTableSnapshot table, int baseSequence) {
+        encodeRoutingTable(table, baseSequence, -1);
+    }
+
+    /**
+     * Chooses the routes for one round of updates, leaving out the
+     * routes whose next hop is one neighbor. This is used for simple
+     * split horizon, where each neighbor gets its own update.
+     * Callers must hold this updater's lock.
+     * @param table The snapshot of the routing table to write
+     * @param baseSequence The sequence number the delta is based on, or 0 for a full update
+     * @param excludedNeighbor The slot of the neighbor whose routes are left out, or -1 to send every route
+     */
+    public void encodeRoutingTable(RoutingTableSnapshot table, int baseSequence, int excludedNeighbor) {
+        if(baseSequence == 0) roundsSinceFullUpdate = 0;
+        int baseVersion = (baseSequence == 0) ? -1 : versionOfSequence(baseSequence);
+        int excludedId = (excludedNeighbor == -1) ? -1 : table.ids[excludedNeighbor];
+
+        if(slotsToSend.length < table.size) slotsToSend = new int[table.size];
+        int[] idOrder = table.slotsInIdOrder();
+        int entries = 0;
+        for(int i = 0; i < idOrder.length; i++) {
+            int slot = idOrder[i];
+            if(excludedId != -1 && slot != excludedNeighbor && table.nextHopId[slot] == excludedId) continue;
+            if(baseSequence == 0 || table.changedAt[slot] > baseVersion || table.isNeighbor(slot)) {
+                slotsToSend[entries++] = slot;
+            }
+        }
+        encodedTable = table;
+        encodedEntries = entries;
+        encodedBase = baseSequence;
+        encodedPoisonLists = splitHorizon == SplitHorizon.POISONED_REVERSE;
+        if(encodedPoisonLists) linkRoutesByNeighbor(table, entries);
+        writtenVersion1 = false;
+        writtenVersion2 = false;
+
+        if(++sequenceNumber == 0) sequenceNumber = 1;
+        int index = (sequenceNumber & 0x7FFFFFFF) % SEQUENCE_HISTORY;
+        sentSequences[index] = sequenceNumber;
+        sentVersions[index] = table.version;
+    }
+
+    /**
+     * Writes the routes chosen by encodeRoutingTable in one version of the
+     * update format, unless they were already written in it this round.
+     * Callers must hold this updater's lock.
+     * @param version VERSION_1 or VERSION_2
+     * @return Returns the buffer holding every segment of the update
+     */
+    public ByteBuffer writeEncodedUpdate(int version) {
+        if(version == RoutingUpdateMessage.VERSION_2) {
+            if(!writtenVersion2) writeVersion2();
+            writtenVersion2 = true;
+            return updateBufferV2;
+        }
+        if(!writtenVersion1) writeVersion1();
+        writtenVersion1 = true;
+        return updateBuffer;
+    }
+
+    /**
+     * Writes the round in version 1 of the format. Tables that do not fit
+     * in one datagram are split into segments with the same number of
+     * entries, which share a sequence number.
+     */
+    private void writeVersion1() {
+        RoutingTableSnapshot table = encodedTable;
+        int entries = encodedEntries;
+        if(costPositions.length < table.size) costPositions = new int[table.size];
+        int entriesPerSegment = RoutingUpdateMessage.entriesPerSegment(server.maxPacketSize);
+        int segmentCount = Math.max(1, (entries + entriesPerSegment - 1) / entriesPerSegment);
+        int serverIP = table.ipAddress[table.slotOf(server.serverId)];
+
+        int size = segmentCount * RoutingUpdateMessage.HEADER_SIZE + entries * RoutingUpdateMessage.ENTRY_SIZE;
+        if(updateBuffer == null || updateBuffer.capacity() < size) updateBuffer = ByteBuffer.allocateDirect(size);
+        if(segmentOffsets.length < segmentCount + 1) segmentOffsets = new int[segmentCount + 1];
+
+        updateBuffer.clear();
+        for(int i = 0; i < segmentCount; i++) {
+            int from = i*entriesPerSegment;
+            int to = Math.min(entries, (i+1)*entriesPerSegment);
+            segmentOffsets[i] = updateBuffer.position();
+            for(int j = from; j < to; j++) {
+                costPositions[slotsToSend[j]] = segmentOffsets[i] + RoutingUpdateMessage.HEADER_SIZE
+                        + (j - from) * RoutingUpdateMessage.ENTRY_SIZE + RoutingUpdateMessage.COST_OFFSET;
+            }
+            RoutingUpdateMessage message = new RoutingUpdateMessage(
+                    -1,
+                    server.port,
+                    serverIP,
+                    table,
+                    slotsToSend,
+                    from,
+                    to
+            );
+            message.setSegment(sequenceNumber, i, segmentCount);
+            message.setBaseSequence(encodedBase);
+            message.setSupportsVersion2(server.wireVersion >= RoutingUpdateMessage.VERSION_2);
+            message.writeTo(updateBuffer);
+        }
+        segmentOffsets[segmentCount] = updateBuffer.position();
+        encodedSegments = segmentCount;
+    }
+
+    /**
+     * Writes the round in version 2 of the format. Its entries have
+     * different sizes, so segments are filled until the next entry would
+     * not fit in a datagram. With poisoned reverse every segment has the
+     * unreachable bitmap, so routes can be poisoned by setting their bit.
+     */
+    private void writeVersion2() {
+        RoutingTableSnapshot table = encodedTable;
+        int entries = encodedEntries;
+        if(bitPositions.length < table.size) bitPositions = new int[table.size];
+        if(segmentStartsV2.length < entries + 2) segmentStartsV2 = new int[entries + 2];
+        int budget = server.maxPacketSize - RoutingUpdateMessage.V2_HEADER_SIZE;
+
+        int segmentCount = 0;
+        int from = 0;
+        int bytes = 0;
+        int totalBytes = 0;
+        int previousId = 0;
+        for(int j = 0; j < entries; j++) {
+            int slot = slotsToSend[j];
+            int entrySize = RoutingUpdateMessage.entrySizeV2(table.ids[slot] - previousId, table.cost[slot]);
+            if(j > from && bytes + entrySize + RoutingUpdateMessage.bitmapSize(j - from + 1) > budget) {
+                segmentStartsV2[++segmentCount] = j;
+                from = j;
+                bytes = 0;
+                entrySize = RoutingUpdateMessage.entrySizeV2(table.ids[slot], table.cost[slot]);
+            }
+            bytes += entrySize;
+            totalBytes += entrySize;
+            previousId = table.ids[slot];
+        }
+        segmentStartsV2[++segmentCount] = entries;
+        int serverIP = table.ipAddress[table.slotOf(server.serverId)];
+
+        int size = segmentCount * (RoutingUpdateMessage.V2_HEADER_SIZE + 1) + entries / 8 + totalBytes;
+        if(updateBufferV2 == null || updateBufferV2.capacity() < size) updateBufferV2 = ByteBuffer.allocateDirect(size);
+        if(segmentOffsetsV2.length < segmentCount + 1) segmentOffsetsV2 = new int[segmentCount + 1];
+
+        updateBufferV2.clear();
+        for(int i = 0; i < segmentCount; i++) {
+            from = segmentStartsV2[i];
+            int to = segmentStartsV2[i + 1];
+            segmentOffsetsV2[i] = updateBufferV2.position();
+            int bitmapStart = (segmentOffsetsV2[i] + RoutingUpdateMessage.V2_HEADER_SIZE) * 8;
+            for(int j = from; j < to; j++) bitPositions[slotsToSend[j]] = bitmapStart + (j - from);
+            RoutingUpdateMessage message = new RoutingUpdateMessage(-1, server.port, serverIP, table, slotsToSend, from, to);
+            message.setVersion(RoutingUpdateMessage.VERSION_2);
+            message.setAlwaysSendBitmap(encodedPoisonLists);
+            message.setSegment(sequenceNumber, i, segmentCount);
+            message.setBaseSequence(encodedBase);
+            message.writeTo(updateBufferV2);
+        }
+        segmentOffsetsV2[segmentCount] = updateBufferV2.position();
+        encodedSegmentsV2 = segmentCount;
+    }
+
+    /**
+     * Links the written routes into one list per neighbor, holding the
+     * routes whose next hop is that neighbor, so that they can be poisoned
+     * when the update is sent to it. The neighbor's own entry is not
+     * in its list because it carries the link cost.
+     * @param table The snapshot of the routing table that was written
+     * @param entries The number of routes that were written
+     */
+    private void linkRoutesByNeighbor(RoutingTableSnapshot table, int entries) {
+        if(firstViaNeighbor.length < table.size) {
+            firstViaNeighbor = new int[table.size];
+            nextViaSameNeighbor = new int[table.size];
+        }
+        Arrays.fill(firstViaNeighbor, 0, table.size, -1);
+        for(int j = 0; j < entries; j++) {
+            int slot = slotsToSend[j];
+            int nextHop = table.nextHopId[slot];
+            if(nextHop < 0 || nextHop == server.serverId) continue;
+            int neighbor = table.slotOf(nextHop);
+            if(neighbor == -1 || neighbor == slot || neighbor >= table.size) continue;
+            nextViaSameNeighbor[slot] = firstViaNeighbor[neighbor];
+            firstViaNeighbor[neighbor] = slot;
+        }
+    }
+
+    /**
+     * Sends the encoded routing table to one neighbor in the version of
+     * the format it can read. The link cost is patched into the
+     * neighbor's own entry in version 1 and into the header of every
+     * segment in version 2. With poisoned reverse the routes through the
+     * neighbor are sent with a cost of infinity, or with their unreachable
+     * bit set, and put back afterwards. Each segment also acknowledges
+     * the last update that was used from the neighbor.
+     * Callers must hold this updater's lock.
+     * @param neighbor The slot of the neighbor that will receive the segments
+     * @param linkCost The cost of the link to the neighbor
+     */
+    private void sendEncodedUpdate(int neighbor, int linkCost) {
+        RoutingTableSnapshot table = encodedTable;
+        boolean version2 = table.peerVersion(neighbor) == RoutingUpdateMessage.VERSION_2;
+        ByteBuffer buffer = writeEncodedUpdate(version2 ? RoutingUpdateMessage.VERSION_2 : RoutingUpdateMessage.VERSION_1);
+        int[] offsets = version2 ? segmentOffsetsV2 : segmentOffsets;
+        int segments = version2 ? encodedSegmentsV2 : encodedSegments;
+
+        int costPosition = version2 ? -1 : costPositions[neighbor];
+        int cost = 0;
+        if(!version2) {
+            cost = buffer.getInt(costPosition);
+            buffer.putInt(costPosition, linkCost);
+        }
+        boolean poison = encodedPoisonLists && neighbor < table.size;
+        if(poison) poisonRoutesVia(buffer, neighbor, version2, true);
+        try {
+            InetSocketAddress address = table.socketAddress(neighbor);
+            for(int i = 0; i < segments; i++) {
+                buffer.putInt(offsets[i] + RoutingUpdateMessage.ACK_OFFSET, table.receivedSequence(neighbor));
+                if(version2) buffer.putInt(offsets[i] + RoutingUpdateMessage.LINK_COST_OFFSET, linkCost);
+                buffer.limit(offsets[i + 1]).position(offsets[i]);
+                server.send(buffer, address);
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            buffer.clear();
+            if(!version2) buffer.putInt(costPosition, cost);
+            if(poison) poisonRoutesVia(buffer, neighbor, version2, false);
+        }
+    }
+
+    /**
+     * Poisons the written routes whose next hop is one neighbor, or puts
+     * back what was written for them.
+     * @param buffer The buffer holding the written update
+     * @param neighbor The slot of the neighbor
+     * @param version2 True if the buffer holds version 2 of the format
+     * @param poisoned True to poison the routes, false to put them back
+     */
+    private void poisonRoutesVia(ByteBuffer buffer, int neighbor, boolean version2, boolean poisoned) {
+        for(int slot = firstViaNeighbor[neighbor]; slot != -1; slot = nextViaSameNeighbor[slot]) {
+            boolean unreachable = poisoned || encodedTable.cost[slot] == RoutingTable.INFINITY;
+            if(!version2) {
+                buffer.putInt(costPositions[slot], unreachable ? RoutingTable.INFINITY : encodedTable.cost[slot]);
+                continue;
+            }
+            int index = bitPositions[slot] >>> 3;
+            int bit = 1 << (bitPositions[slot] & 7);
+            int bits = buffer.get(index);
+            buffer.put(index, (byte)(unreachable ? bits | bit : bits & ~bit));
+        }
+    }
 
+}
\ No newline at end of file
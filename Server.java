@@ -1,115 +1,437 @@
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.net.*;
 
 /**
  * This class is responsible for all server information and activity.
  * It handles receiving messages and calculating vector updates. It also
- * handles reading the topology file.
+ * handles reading the topology file. Datagrams are sent and received
+ * through a {@link Transport}, so several servers can run in one JVM.
  */
-public class Server extends Thread {
+public class Server {
+    private static final int DEFAULT_MTU = 1500;
+    private static final int MIN_MTU = 576;
+    private static final int MAX_MTU = 0xFFFF;
+    private static final int IP_UDP_HEADER_SIZE = 28;
 
-    private DatagramSocket socket;
-    public static ArrayList<ServerNode> servers;
-    public static boolean running;
-    private byte[] buf = new byte[256];
-    public static int port;
+    /**
+     * What relax returns when the route stays the same, and when the route
+     * stays the same but has to be sent to the neighbors again.
+     */
+    static final long KEEP_ROUTE = Long.MIN_VALUE;
+    static final long RESEND_ROUTE = Long.MIN_VALUE + 1;
+
+    public final RoutingTable table;
+    public final RoutingUpdater updater;
+    private final Transport transport;
+    public volatile boolean running;
+    public boolean printMessages;
+    public int maxPacketSize = DEFAULT_MTU - IP_UDP_HEADER_SIZE;
+    public int maxMetric = RoutingTable.INFINITY;
+    public int wireVersion = RoutingUpdateMessage.VERSION_2;
+    public RoutingTableStore store;
+    public ParallelDistanceVector parallel;
+    public EventLog log;
+    private RoutingUpdateCursor cursor;
+    private UpdateReassembler reassembler;
+    private UpdateBatch batch;
+    private TimerWheel neighborTimers;
+    private TimerWheel.Timeout[] neighborTimeouts = new TimerWheel.Timeout[0];
+    public int port;
     private int numOfServers;
     private int numOfNeighbors;
-    public static int serverId;
-    public static String ipAddress;
+    public int serverId;
+    public String ipAddress;
 
-    public static int packetCount;
+    public final RouterMetrics metrics;
 
     /**
-     * Initializes instance variables and calls a function that reads
-     * the topology file. It also validates that the user's ip is in the
-     * topology file.
+     * Initializes instance variables. The topology is read afterwards
+     * with readTopologyFile or loadNetwork.
+     * @param transport The transport used to send and receive routing updates
+     * @param updateIntervalMillis The number of milliseconds between routing updates
      */
-    public Server() {
-        servers = new ArrayList<>();
-        running = false;
-        packetCount = 0;
+    public Server(Transport transport, int updateIntervalMillis) {
+        this.table = new RoutingTable();
+        this.transport = transport;
+        this.updater = new RoutingUpdater(this, updateIntervalMillis);
+        this.running = false;
+        this.printMessages = true;
+        this.metrics = new RouterMetrics(this);
+    }
+
+    /**
+     * Opens the transport and starts sending routing updates. The server
+     * is running as soon as this method returns.
+     * @throws IOException If the transport could not be opened
+     */
+    public void start() throws IOException {
+        cursor = new RoutingUpdateCursor();
+        cursor.localId = serverId;
+        reassembler = new UpdateReassembler(updater.updateIntervalMillis, Transport.MAX_DATAGRAM_SIZE);
+        batch = new UpdateBatch();
+        neighborTimers = new TimerWheel(Math.max(1, updater.updateIntervalMillis / 10), 256);
+        if(store != null) restoreTable();
+        transport.open(this);
+        running = true;
+        metrics.register();
+        neighborTimers.start(getEventLoop(), "neighbor-timers-" + serverId);
+        updater.start();
+        if(printMessages) System.out.println("Server started successfully");
+    }
+
+    /**
+     * Loads the routing table saved by the last run of this server. The
+     * restored routes are used until the neighbors send updates, and a
+     * neighbor that does not send one is timed out as usual, which drops
+     * the routes through it. A missing or broken file is not an error,
+     * the server then starts from its links like before.
+     */
+    private void restoreTable() {
+        synchronized (table) {
+            int[] neighbors;
+            try {
+                neighbors = store.restore(table, serverId, maxMetric);
+            } catch (IOException e) {
+                System.err.println("ERROR: The routing table could not be restored from " + store.path() + ": " + e.getMessage());
+                return;
+            }
+            if(neighbors == null) return;
+            long now = System.nanoTime();
+            for(int neighbor : neighbors) {
+                table.timeStamp[neighbor] = now;
+                armNeighborTimeout(neighbor);
+            }
+            updater.restoreSequenceNumber(store.savedSequence() + RoutingTableStore.SEQUENCE_GAP);
+            table.publish();
+            int reachable = 0;
+            for(int slot = 0; slot < table.size; slot++) {
+                if(table.cost[slot] != RoutingTable.INFINITY && table.ids[slot] != serverId) reachable++;
+            }
+            if(printMessages) System.out.println("Restored the routing table: " + reachable + " servers are reachable");
+        }
     }
 
     /**
-     * This is a new thread that listens for routing update messages from this
-     * server's neighbors.
+     * Saves the routing table to the store so that it can be restored
+     * after a restart. This is called after every periodic update. The
+     * table's lock is only held while the store copies the table, and
+     * nothing is saved if no route changed since the last save.
+     * @see RoutingTableStore
      */
-    public void run() {
-        ServerNode server = getServer(serverId);
+    void saveTable() {
+        if(store == null) return;
+        int sequenceNumber = updater.sequenceNumber();
+        synchronized (table) {
+            if(!store.copy(table, sequenceNumber)) return;
+        }
         try {
-            socket = new DatagramSocket(server.serverPort);
+            store.save(serverId, sequenceNumber);
+        } catch (IOException e) {
+            printMessage(LogLevel.ERROR, "ERROR: The routing table could not be saved to " + store.path() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops sending and receiving routing updates and closes the transport.
+     */
+    public void stop() {
+        running = false;
+        updater.stop();
+        if(neighborTimers != null) neighborTimers.stop();
+        if(parallel != null) parallel.close();
+        transport.close();
+        metrics.unregister();
+    }
+
+    /**
+     * Returns the event loop that runs this server.
+     * @return Returns the event loop, or null if the server runs on its own threads
+     */
+    public EventLoop getEventLoop() {
+        return transport.getEventLoop();
+    }
+
+    /**
+     * Sends one datagram with this server's transport.
+     * @param datagram The datagram from its position to its limit
+     * @param address The address of the receiving server
+     * @throws IOException If the datagram could not be sent
+     */
+    void send(ByteBuffer datagram, InetSocketAddress address) throws IOException {
+        metrics.packetsSent.increment();
+        metrics.bytesOut.add(datagram.remaining());
+        transport.send(datagram, address);
+    }
+
+    /**
+     * Prints a message from a receiving or sending thread unless
+     * messages were turned off for this server. With an event log the
+     * message is recorded and printed by the log's thread, so the
+     * caller does not wait for the console.
+     * @param level The level of the message
+     * @param message The message to be printed
+     */
+    void printMessage(LogLevel level, String message) {
+        if(!printMessages) return;
+        if(log != null) log.record(level, message);
+        else DistanceVectorRouting.printMessageFromThread(message);
+    }
+
+    /**
+     * Prints an event with a number, such as a server id. With an event
+     * log this does not create objects, so it can be called for every packet.
+     * @param level The level of the event
+     * @param event The kind of event
+     * @param argument The number of the event
+     */
+    void printEvent(LogLevel level, EventLog.Event event, int argument) {
+        if(!printMessages) return;
+        if(log != null) log.record(level, event, argument);
+        else DistanceVectorRouting.printMessageFromThread(event.format(argument, null));
+    }
 
-        } catch (BindException e) {
-            System.err.println("ERROR: The port " + server.serverPort + " is already in use");
-            System.exit(1);
+    /**
+     * Reads one received datagram. Packets from servers that are not neighbors
+     * are dropped before the entries are read, and segments are held until the
+     * whole update has arrived. Complete updates are added to the batch, which
+     * keeps only the newest update from each sender. This is called by the
+     * transport for every datagram it has, and then applyReceivedUpdates is
+     * called once.
+     * @param buffer A buffer containing the datagram starting at position 0
+     * @param length The number of bytes that were received
+     */
+    public void receivePacket(ByteBuffer buffer, int length) {
+        if(!running) return;
+        long start = System.nanoTime();
+        metrics.packetsReceived.increment();
+        metrics.bytesIn.add(length);
+        if(!cursor.wrapPacket(buffer, length)) {
+            metrics.packetsDroppedMalformed.increment();
+            return;
         }
-        catch (SocketException e) {
-            throw new RuntimeException(e);
+        int sender = table.slotOfEndpoint(cursor.serverIPAddress, cursor.serverPort);
+        if(sender == -1 || !table.isNeighbor(sender)) {
+            metrics.packetsDroppedNotNeighbor.increment();
+            return;
         }
-        running = true;
-        System.out.println("Server started successfully");
-        while (running) {
-            DatagramPacket packet
-                    = new DatagramPacket(buf, buf.length);
-            try {
-                socket.receive(packet);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+        metrics.packetsAccepted.increment();
+        int peerVersion = (wireVersion >= RoutingUpdateMessage.VERSION_2 && cursor.supportsVersion2)
+                ? RoutingUpdateMessage.VERSION_2 : RoutingUpdateMessage.VERSION_1;
+        if(table.peerVersion[sender] != peerVersion) {
+            synchronized (table) {
+                table.setPeerVersion(sender, peerVersion);
             }
-            RoutingUpdateMessage message = new RoutingUpdateMessage(packet.getData());
-            distanceVector(message);
+        }
+
+        RoutingUpdateCursor update = reassembler.addSegment(sender, cursor);
+        if(update != null) {
+            // An update that depends on the one already queued from its sender has to wait for it
+            if(!batch.canAdd(sender, update, table.receivedSequence[sender])) applyReceivedUpdates();
+            if(batch.add(sender, update)) metrics.updatesSuperseded.increment();
+        }
+        metrics.decodeTime.record(System.nanoTime() - start);
+    }
 
+    /**
+     * Applies every update in the batch while holding the table's lock
+     * once. The snapshot is published and a triggered update is asked for
+     * once for the whole batch instead of once for every packet. This is
+     * called by the transport after it has handed over the datagrams that
+     * were waiting.
+     */
+    public void applyReceivedUpdates() {
+        if(batch == null || batch.size() == 0) return;
+        long start = System.nanoTime();
+        synchronized (table) {
+            int version = table.version;
+            for(int i = 0; i < batch.size(); i++) applyUpdate(batch.updateAt(i));
+            table.publish();
+            if(table.version != version) updater.triggerUpdate();
         }
-        socket.close();
+        batch.clear();
+        metrics.batchesApplied.increment();
+        metrics.distanceVectorTime.record(System.nanoTime() - start);
     }
 
     /**
      * Searches for better path from vector updates received from its neighbors.
-     * It works by looking through the current routing table and comparing it with
-     * the one received through the message. If it finds a better path, it will
+     * It works by looking up each entry of the message in the routing table and
+     * comparing it with the current path. If it finds a better path, it will
      * update the cost and change the next hop id. This also updates existing paths
-     * if they were changed.
-     * @param message The routing update message
-     * @see RoutingUpdateMessage
-     */
-    public void distanceVector(RoutingUpdateMessage message) {
-        synchronized (servers) {
-            int senderId = message.getSenderID();
-            ServerNode senderServer = getServer(senderId);
-
-            if(!senderServer.isNeighbor()) return;
-            senderServer.timeStamp = System.currentTimeMillis();
-            packetCount++;
-
-            ArrayList<ServerNode> updateServers = message.serverNodes;
-            if(!updateDirectPath(senderServer, updateServers)) return;
-
-            DistanceVectorRouting.printMessageFromThread("RECEIVED A MESSAGE FROM SERVER " + senderId);
-            int senderCost = senderServer.directLinkCost;
-            for(ServerNode destination : servers) {
-                if(destination.serverID == serverId) continue;
-                for(ServerNode updateServer : updateServers) {
-                    if(destination.serverID != updateServer.serverID) continue;
-
-                    int newCost = (updateServer.cost == Integer.MAX_VALUE)
-                            ? Integer.MAX_VALUE : senderCost + updateServer.cost;
-
-                    if(senderId == destination.nextHopId ) {
-                        if(destination.cost != newCost) {
-                            destination.cost = newCost;
-                            destination.nextHopId = (newCost == Integer.MAX_VALUE) ? -1 : senderId;
-                        }
-                    }
+     * if they were changed. Costs of maxMetric or more are unreachable, so
+     * routes that count up after a failure stop at maxMetric, like the
+     * 16 hops of RIP. The changes are published as one snapshot
+     * once the whole message has been used.
+     * @param update A cursor over the entries of the routing update message
+     * @see RoutingUpdateCursor
+     */
+    public void distanceVector(RoutingUpdateCursor update) {
+        synchronized (table) {
+            int version = table.version;
+            applyUpdate(update);
+            table.publish();
+            if(table.version != version) updater.triggerUpdate();
+        }
+    }
 
-                    else if (newCost < destination.cost || destination.cost == Integer.MAX_VALUE) {
-                        destination.cost = newCost;
-                        destination.nextHopId = (newCost == Integer.MAX_VALUE) ? -1 : senderId;
-                    }
-                }
+    private void applyUpdate(RoutingUpdateCursor update) {
+        int sender = table.slotOfEndpoint(update.serverIPAddress, update.serverPort);
+
+        if(sender == -1 || !table.isNeighbor(sender)) return;
+        int senderId = table.ids[sender];
+        table.timeStamp[sender] = System.nanoTime();
+        armNeighborTimeout(sender);
+        metrics.updatesReceived.increment();
+
+        table.setAckedSequence(sender, update.ackSequence);
+        if(update.baseSequence != 0) {
+            // A delta update can only be used on top of the update it is based on
+            int received = table.receivedSequence[sender];
+            if(received == 0 || received - update.baseSequence < 0
+                    || update.sequenceNumber - received <= 0) return;
+        }
+        table.setReceivedSequence(sender, update.sequenceNumber);
+
+        if(!updateDirectPath(sender, update)) return;
+
+        printEvent(LogLevel.INFO, EventLog.Event.UPDATE_RECEIVED, senderId);
+        int senderCost = table.directLinkCost[sender];
+        // A full update holds every route the sender has, so anything it leaves out is gone
+        if(update.baseSequence == 0) table.clearAdvertisedCosts(sender);
+        if(parallel != null && update.entryCount >= parallel.threshold) parallel.relax(sender, update);
+        else {
+            update.rewind();
+            while(update.next()) {
+                int destination = table.slotOf(update.id);
+                if(destination == -1 || update.id == serverId) continue;
+                int previousCost = table.advertisedCost(sender, destination);
+                table.setAdvertisedCost(sender, destination, update.cost);
+                applyDecision(destination, relax(senderId, senderCost, destination, update.cost, previousCost));
+            }
+        }
+        if(update.baseSequence == 0) dropRoutesLeftOut(sender);
+    }
+
+    /**
+     * Decides what one entry of an update does to the route of its
+     * destination, without changing the route. Only the row of the
+     * destination is read, so entries for different destinations can be
+     * decided on several threads at once. The cost must already be stored
+     * as the sender's advertised cost.
+     * @param senderId The id of the neighbor that sent the update
+     * @param senderCost The cost of the link to the neighbor
+     * @param destination The slot of the destination
+     * @param advertised The cost the neighbor sent for the destination
+     * @param previousAdvertised The cost the neighbor sent before
+     * @return Returns KEEP_ROUTE, RESEND_ROUTE or a new route made by route(cost, nextHop)
+     */
+    long relax(int senderId, int senderCost, int destination, int advertised, int previousAdvertised) {
+        int currentCost = table.cost[destination];
+        int currentHop = table.nextHopId[destination];
+        // A neighbor whose route just got worse than ours is sent ours again
+        if(advertised > previousAdvertised && currentHop != senderId
+                && (long) currentCost + senderCost < advertised) {
+            return RESEND_ROUTE;
+        }
+
+        long pathCost = (long) senderCost + advertised;
+        int newCost = (advertised == RoutingTable.INFINITY || pathCost >= maxMetric)
+                ? RoutingTable.INFINITY : (int) pathCost;
+
+        if(senderId == currentHop) {
+            // When the route gets worse another neighbor may now be cheaper
+            if(newCost > currentCost) {
+                long feasible = findFeasibleRoute(destination);
+                if(feasible != KEEP_ROUTE) return feasible;
+            }
+            if(currentCost != newCost) return route(newCost, (newCost == RoutingTable.INFINITY) ? -1 : senderId);
+        }
+        else if (newCost < currentCost || currentCost == RoutingTable.INFINITY) {
+            return route(newCost, (newCost == RoutingTable.INFINITY) ? -1 : senderId);
+        }
+        return KEEP_ROUTE;
+    }
+
+    /**
+     * Changes the route of a destination as relax decided. Callers must
+     * hold the table's lock, and decisions are applied on one thread so
+     * that every change gets its own table version.
+     * @param destination The slot of the destination
+     * @param decision The value returned by relax
+     */
+    void applyDecision(int destination, long decision) {
+        if(decision == KEEP_ROUTE) return;
+        if(decision == RESEND_ROUTE) table.markChanged(destination);
+        else table.setRoute(destination, (int) (decision >>> 32), (int) decision);
+    }
+
+    private static long route(int cost, int nextHopId) {
+        return ((long) cost << 32) | (nextHopId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Chooses a new route for the destinations that were reached through
+     * a neighbor but were left out of its last full update, which happens
+     * with simple split horizon.
+     * @param sender The slot of the neighbor that sent the full update
+     */
+    private void dropRoutesLeftOut(int sender) {
+        int senderId = table.ids[sender];
+        for(int slot = 0; slot < table.size; slot++) {
+            if(slot != sender && table.nextHopId[slot] == senderId
+                    && table.advertisedCost(sender, slot) == RoutingTable.INFINITY) {
+                if(!switchToFeasibleRoute(slot)) table.setRoute(slot, RoutingTable.INFINITY, -1);
+            }
+        }
+    }
+
+    /**
+     * Moves the timeout of a neighbor to three update intervals from now.
+     * The timeout of each neighbor is created the first time an update
+     * arrives from it and is reused after that.
+     * @param slot The slot of the neighbor
+     */
+    private void armNeighborTimeout(int slot) {
+        if(neighborTimers == null) return;
+        if(slot >= neighborTimeouts.length) {
+            neighborTimeouts = Arrays.copyOf(neighborTimeouts, Math.max(slot + 1, neighborTimeouts.length * 2));
+        }
+        if(neighborTimeouts[slot] == null) {
+            neighborTimeouts[slot] = neighborTimers.newTimeout(() -> neighborExpired(slot));
+        }
+        neighborTimers.schedule(neighborTimeouts[slot], 3L * updater.updateIntervalMillis);
+    }
+
+    /**
+     * Called by the timer wheel when a neighbor has not sent an update for
+     * three update intervals. The timestamp is checked again because an
+     * update may have arrived while the timeout was firing.
+     * @param slot The slot of the neighbor
+     */
+    private void neighborExpired(int slot) {
+        synchronized (table) {
+            if(!running || !table.isNeighbor(slot) || !table.isTimedOut(slot, updater.updateIntervalMillis)) return;
+            updater.neighborTimeout(slot);
+            table.publish();
+        }
+    }
+
+    /**
+     * Removes the paths of several servers in one pass over the routing
+     * table, like removePath does for one server. The links to the
+     * servers must already be set to infinity and their sequence numbers
+     * cleared. Callers must hold the table's lock and publish the table.
+     * @param lost The ids whose paths are removed are true
+     */
+    private void clearPaths(boolean[] lost) {
+        for (int slot = 0; slot < table.size; slot++) {
+            int id = table.ids[slot];
+            if (id == serverId) continue;
+            int nextHop = table.nextHopId[slot];
+            if (lost[id] || (nextHop != -1 && lost[nextHop])) {
+                if(!switchToFeasibleRoute(slot)) table.setRoute(slot, RoutingTable.INFINITY, -1);
             }
         }
     }
@@ -118,24 +440,25 @@ public class Server extends Thread {
      * This updates the direct link from a server. This is called within the distanceVector
      * method before values are updated. This is done so that the latest link is used when
      * comparing paths.
-     * @param senderServer The server that is updating the link
-     * @param updateServers The servers routing table to find the direct link
+     * @param sender The slot of the server that is updating the link
+     * @param update A cursor over the entries of the routing update message
      * @return Returns false if link was removed
      */
-    private static boolean updateDirectPath(ServerNode senderServer, ArrayList<ServerNode> updateServers) {
-        for(ServerNode updateServer : updateServers) {
-            if(updateServer.serverID != serverId) continue;
-            if(updateServer.cost == Integer.MIN_VALUE) {
-                senderServer.directLinkCost = Integer.MAX_VALUE;
-                removePath(senderServer.serverID);
+    private boolean updateDirectPath(int sender, RoutingUpdateCursor update) {
+        int senderId = table.ids[sender];
+        update.rewind();
+        while(update.next()) {
+            if(update.id != serverId) continue;
+            if(update.cost == Integer.MIN_VALUE) {
+                table.setDirectLinkCost(sender, RoutingTable.INFINITY);
+                removePath(senderId);
                 return false;
             }
 
-            senderServer.directLinkCost = updateServer.cost;
-            if(senderServer.nextHopId == senderServer.serverID) senderServer.cost = updateServer.cost;
-            else if(updateServer.cost < senderServer.cost) {
-                senderServer.cost = updateServer.cost;
-                senderServer.nextHopId = senderServer.serverID;
+            table.setDirectLinkCost(sender, update.cost);
+            if(table.nextHopId[sender] == senderId) table.setRoute(sender, update.cost, senderId);
+            else if(update.cost < table.cost[sender]) {
+                table.setRoute(sender, update.cost, senderId);
             }
         }
         return true;
@@ -144,60 +467,131 @@ public class Server extends Thread {
     /**
      * Removes the path of a server from the routing table. It does this
      * by looking through the routing table and comparing the next hop id
-     * with the path id. If they are equal, the path is reset to inf and the
-     * next hop is set to -1.
+     * with the path id. If they are equal, the route is switched to another
+     * neighbor right away if one of them is feasible, otherwise the path
+     * is reset to inf and the next hop is set to -1. The
+     * link to the server must already be set to infinity. The sequence
+     * numbers exchanged with the server are also cleared, so that both
+     * sides go back to full updates, and version 1 of the update format
+     * is used until the server says it can read version 2 again.
      * @param pathId The id of the server that will be removed from the routing table
      */
-    public static void removePath(int pathId) {
-        synchronized (servers) {
-            for (ServerNode server : servers) {
-                if (server.serverID == serverId) continue;
-
-                if (pathId == server.serverID || server.nextHopId == pathId) {
-                    server.cost = Integer.MAX_VALUE;
-                    server.nextHopId = -1;
+    public void removePath(int pathId) {
+        synchronized (table) {
+            int path = table.slotOf(pathId);
+            if (path != -1) table.resetNeighborState(path);
+            for (int slot = 0; slot < table.size; slot++) {
+                if (table.ids[slot] == serverId) continue;
+
+                if (pathId == table.ids[slot] || table.nextHopId[slot] == pathId) {
+                    if(!switchToFeasibleRoute(slot)) table.setRoute(slot, RoutingTable.INFINITY, -1);
                 }
             }
+            table.publish();
         }
     }
 
     /**
-     * Checks if the computers ip is found in the topology file. It
-     * also checks if the neighbor lines have the correct id.
-     * @return Returns a string that describes any error
+     * Switches a destination whose route was lost or got worse to the
+     * cheapest other route, using the direct link and the costs every
+     * neighbor advertised last. Only neighbors that advertised a cost below
+     * the current one are used, because they cannot be routing through
+     * this server, so the switch never makes a loop. Callers must hold
+     * the table's lock.
+     * @param destination The slot of the destination
+     * @return Returns true if the route was switched, false if no neighbor is feasible
      */
-    private String validateServerIP() {
-        String serverIP = getIPAddress();
-        ServerNode server = getServer(serverId);
+    private boolean switchToFeasibleRoute(int destination) {
+        long feasible = findFeasibleRoute(destination);
+        if(feasible == KEEP_ROUTE) return false;
+        applyDecision(destination, feasible);
+        return true;
+    }
 
-        if(serverIP == null) return "ERROR: Your ip is not in the topology file.";
+    /**
+     * Finds the route switchToFeasibleRoute would switch to, without
+     * changing the table.
+     * @param destination The slot of the destination
+     * @return Returns the route made by route(cost, nextHop), or KEEP_ROUTE if no neighbor is feasible
+     */
+    private long findFeasibleRoute(int destination) {
+        int feasibleCost = table.cost[destination];
+        long bestCost = table.directLinkCost[destination];
+        int bestHop = table.ids[destination];
+        for(int i = 0; i < table.neighborCount(); i++) {
+            int neighbor = table.neighborAt(i);
+            int advertised = table.advertisedCost(neighbor, destination);
+            if(advertised >= feasibleCost) continue;
+            long pathCost = (long) table.directLinkCost[neighbor] + advertised;
+            if(pathCost < bestCost) {
+                bestCost = pathCost;
+                bestHop = table.ids[neighbor];
+            }
+        }
+        if(bestCost >= maxMetric || bestCost >= RoutingTable.INFINITY) return KEEP_ROUTE;
+        return route((int) bestCost, bestHop);
+    }
 
-        if(server != null && !server.serverIPAddress.equals(serverIP))
-            return "ERROR: Server ID does not match the neighbor cost lines in topology file.";
+    /**
+     * Checks if the ip of this server in the topology file belongs to
+     * this computer, and sizes the routing update datagrams from its MTU.
+     * @return Returns a string that describes any error
+     */
+    private String validateServerIP() {
+        int server = table.slotOf(serverId);
+        String serverIP = RoutingUpdateMessage.intToIp(table.ipAddress[server]);
+        if(!getIPAddresses().contains(serverIP))
+            return "ERROR: The ip " + serverIP + " of server " + serverId + " in the topology file is not an ip of this computer.";
 
         ipAddress = serverIP;
-        port = server.serverPort;
-        server.cost = 0;
-        server.nextHopId = serverId;
+        maxPacketSize = getMTU(serverIP) - IP_UDP_HEADER_SIZE;
         return "SUCCESS";
     }
 
     /**
-     * Finds the computers ip from the topology file. It does this
-     * by comparing every ipv4 address from the computer with every ip
-     * in the topology file. This is done just in case there is
-     * more ipv4 addresses that are not currently used like wsl ip address.
-     * @return Returns the ip found in the topology file
+     * Finds the server in a topology whose ip belongs to this computer.
+     * This is done by comparing every ipv4 address from the computer with
+     * every ip in the topology, just in case there are more ipv4 addresses
+     * that are not currently used like the wsl ip address.
+     * @param topology The topology that was read
+     * @return Returns the id of the server, -1 if there is none or -2 if there are several
      */
-    private String getIPAddress() {
+    private static int findLocalServer(NetworkTopology topology) {
         ArrayList<String> ips = getIPAddresses();
-        for(ServerNode server : servers) {
-            for(int i = 0; i < ips.size(); i++) {
-                String ip = ips.get(i);
-                if(server.serverIPAddress.equals(ip)) return ip;
+        int[] localIps = new int[ips.size()];
+        for(int i = 0; i < localIps.length; i++) localIps[i] = RoutingUpdateMessage.ipToBytes(ips.get(i));
+
+        int found = -1;
+        for(int i = 0; i < topology.numOfServers; i++) {
+            for(int localIp : localIps) {
+                if(topology.ipAddress[i] != localIp) continue;
+                if(found != -1) return -2;
+                found = topology.ids[i];
             }
         }
-        return null;
+        return found;
+    }
+
+    /**
+     * Finds the MTU of the network interface that owns the given ip. The
+     * largest routing update datagram is sized from it so that segments
+     * are not fragmented. The MTU is kept from 576, the size every ipv4
+     * host must accept, to 65535, the largest ipv4 packet, so a datagram
+     * is never larger than 65507 bytes and an update never needs more than
+     * {@link RoutingUpdateMessage#MAX_SEGMENTS} segments. Loopback
+     * interfaces report an MTU of 65536.
+     * @param ip The ip of this server
+     * @return Returns the MTU of the interface or 1500 if it is unknown
+     */
+    private static int getMTU(String ip) {
+        try {
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(InetAddress.getByName(ip));
+            if(networkInterface != null && networkInterface.getMTU() > 0)
+                return Math.max(MIN_MTU, Math.min(MAX_MTU, networkInterface.getMTU()));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return DEFAULT_MTU;
     }
 
     /**
@@ -231,120 +625,240 @@ public class Server extends Thread {
 
     /**
      * Prints out the routing table for this server.
-     * The ServerNode class contains a toString method
-     * which prints out a row of the routing table.
-     * @see ServerNode
-     */
-    public static void displayRoutingTable() {
-        synchronized (servers) {
-            System.out.println("Routing Table for " +serverId+":");
-            for (ServerNode node : servers) {
-                System.out.println(node);
-            }
+     * The latest snapshot returns each row of the routing table as a
+     * string, and rows are printed in id order. No lock is held while
+     * printing, so receiving updates is never held up by the console.
+     * @see RoutingTableSnapshot
+     */
+    public void displayRoutingTable() {
+        RoutingTableSnapshot snapshot = table.snapshot();
+        System.out.println("Routing Table for " +serverId+":");
+        for (int slot : snapshot.slotsInIdOrder()) {
+            System.out.println(snapshot.rowToString(slot));
         }
     }
 
     /**
-     * Reads topology file with the Scanner class. This will read line by line
-     * and add all the data from the topology file to instance variables
-     * such as numOfServers, numOfNeighbors, servers, and neighbors.
-     * @param topologyName
+     * Returns the next hop for a destination from the forwarding table.
+     * This does not take the table's lock, so it can be called from any
+     * thread while updates are being computed.
+     * @param destinationId The id of the destination server
+     * @return Returns the id of the next hop, or -1 if the destination cannot be reached
+     */
+    public int nextHop(int destinationId) {
+        return table.forwardingTable().nextHop(destinationId);
+    }
+
+    /**
+     * Chooses the neighbor that a flow of packets to a server is forwarded
+     * to. When the destination has several next hops the flow is hashed to
+     * pick one, so packets of the same flow stay on the same path.
+     * @param destinationId The id of the destination server
+     * @param flowHash A hash of the flow
+     * @return Returns the id of the next hop, or -1 if the destination cannot be reached
+     */
+    public int forwardingHop(int destinationId, long flowHash) {
+        RoutingTableSnapshot snapshot = table.snapshot();
+        int slot = snapshot.slotOf(destinationId);
+        return (slot == -1) ? -1 : snapshot.nextHopFor(slot, flowHash);
+    }
+
+    /**
+     * Reads a topology file and finds this server in it.
+     * @param topologyName The name of the topology file
+     * @return Returns a string that describes any error
+     * @see #readTopologyFile(String, int)
      */
     public String readTopologyFile(String topologyName) {
-        File topologyFile = new File(topologyName);
-        try {
-            Scanner fileReader = new Scanner(topologyFile);
-            numOfServers = Integer.parseInt(fileReader.nextLine());
-            numOfNeighbors = Integer.parseInt(fileReader.nextLine());
-
-            for(int i = 0; i < numOfServers; i++) {
-                String[] lineEntry = fileReader.nextLine().split(" ");
-                int id = Integer.parseInt(lineEntry[0]);
-                String ip = lineEntry[1];
-                if(!ip.contains(".")) return "ERROR: Number of servers does not match server lines in the topology file";
-
-                int port = Integer.parseInt(lineEntry[2]);
-                ServerNode server = new ServerNode(ip, port, id);
-                boolean isAdded = addServer(server);
-                if(!isAdded) return "ERROR: Duplicate server ids in topology file";
-            }
+        return readTopologyFile(topologyName, -1);
+    }
 
-            int prevServerId = -1;
-            for(int i = 0; i < numOfNeighbors; i++) {
-                String[] lineValues = fileReader.nextLine().split(" ");
-                int serverId = Integer.parseInt(lineValues[0]);
-                int neighborId = Integer.parseInt(lineValues[1]);
-                int cost = Integer.parseInt(lineValues[2]);
+    /**
+     * Reads a topology file with a {@link TopologyReader} and loads it
+     * with loadNetwork. The file can have only this server's links, or the
+     * links of a whole network. In a file with only this server's links,
+     * this server is the one every link line starts at. Otherwise it is the
+     * server whose ip belongs to this computer, unless the id is given.
+     * Nothing is added to the routing table unless the whole file is correct.
+     * @param topologyName The name of the topology file
+     * @param serverId The id of this server, or -1 to find it from the file
+     * @return Returns a string that describes any error
+     */
+    public String readTopologyFile(String topologyName, int serverId) {
+        NetworkTopology topology = new NetworkTopology();
+        String status = topology.readTopologyFile(topologyName);
+        if(!status.equals("SUCCESS")) return status;
+
+        if(serverId == -1) serverId = topology.linkOwner();
+        if(serverId == -1) serverId = findLocalServer(topology);
+        if(serverId == -1) return "ERROR: Your ip is not in the topology file.";
+        if(serverId == -2) return "ERROR: Several servers in the topology file have an ip of this computer, so the server id must be given.";
+
+        status = loadNetwork(topology, serverId);
+        if(!status.equals("SUCCESS")) return status;
+        return validateServerIP();
+    }
 
-                if(prevServerId != -1 && serverId != prevServerId) {
-                    return "ERROR: Number of neighbors does not match neighbor lines in the topology file";
-                }
-                prevServerId = serverId;
-                ServerNode neighbor = getServer(neighborId);
-                neighbor.cost = cost;
-                neighbor.nextHopId = neighborId;
-                neighbor.directLinkCost = cost;
-            }
-            while(fileReader.hasNextLine())
-                if(fileReader.nextLine().trim() != "") return "ERROR: More lines than expected in topology file";
-            this.serverId = prevServerId;
-            return validateServerIP();
-        }
-        catch(NumberFormatException e) {
-            return "ERROR: Topology file expected a numeric value";
-        }
-        catch(NoSuchElementException e) {
-            return "ERROR: Topology file does not have enough lines";
+    /**
+     * Loads this server's part of a whole network topology. Every server
+     * in the network is added to the routing table, and the links that
+     * touch this server become its neighbors. This is used when many
+     * servers run in one JVM, so the ip is not checked against the computer.
+     * @param topology The topology of the whole network
+     * @param serverId The id of this server
+     * @return Returns a string that describes any error
+     * @see NetworkTopology
+     */
+    public String loadNetwork(NetworkTopology topology, int serverId) {
+        numOfServers = topology.numOfServers;
+        for(int i = 0; i < topology.numOfServers; i++) {
+            if(table.slotOfEndpoint(topology.ipAddress[i], topology.port[i]) != -1)
+                return "ERROR: Duplicate server ip and port in network topology";
+            if(table.addServer(topology.ids[i], topology.ipAddress[i], topology.port[i]) == -1)
+                return "ERROR: Duplicate server ids in network topology";
         }
-        catch (FileNotFoundException e) {
-            return "ERROR: Topology file was not found";
+        int server = table.slotOf(serverId);
+        if(server == -1) return "ERROR: Server " + serverId + " is not in the network topology";
+
+        numOfNeighbors = 0;
+        for(int i = 0; i < topology.numOfLinks; i++) {
+            int neighborId;
+            if(topology.linkFrom[i] == serverId) neighborId = topology.linkTo[i];
+            else if(topology.linkTo[i] == serverId) neighborId = topology.linkFrom[i];
+            else continue;
+
+            int neighbor = table.slotOf(neighborId);
+            if(neighbor == -1) return "ERROR: Neighbor " + neighborId + " is not a server in the network topology";
+            table.setRoute(neighbor, topology.linkCost[i], neighborId);
+            table.setDirectLinkCost(neighbor, topology.linkCost[i]);
+            table.socketAddress(neighbor);
+            numOfNeighbors++;
         }
+        this.serverId = serverId;
+        ipAddress = RoutingUpdateMessage.intToIp(table.ipAddress[server]);
+        port = table.port[server];
+        table.setRoute(server, 0, serverId);
+        table.publish();
+        return "SUCCESS";
     }
 
     /**
-     * Inserts the server in the list to maintain a sorted list.
-     * This is done so that the routing table printed in sorted order
-     * by id.
-     * @param server
-     * @return Returns a boolean signifying whether it could be inserted.
+     * Reads a topology file again while the server is running and applies
+     * only what changed, instead of restarting and losing every route.
+     * Servers that were removed are dropped from the routing table along
+     * with the routes through them, new servers are added, servers whose
+     * ip or port changed are moved, and links that were added, removed or
+     * given a new cost are changed like the update command does. One
+     * triggered update then sends every change to the neighbors. Nothing is
+     * changed if the file has an error or does not have this server with
+     * its current ip and port. The file is read on the calling thread and
+     * the changes are applied on the thread that receives updates, because
+     * that thread looks up senders by their ip and port without the lock.
+     * @param topologyName The name of the topology file
+     * @return Returns a string that lists the changes, or that starts with ERROR
      */
-    private boolean addServer(ServerNode server) {
-        synchronized (servers) {
-            int position = Collections.binarySearch(servers, server, Comparator.comparingInt(s -> s.serverID));
-            if (position < 0) {
-                position = -position - 1;
-            }
-            else {
-                return false;
-            }
-            servers.add(position, server);
-            return true;
-        }
+    public String reloadTopology(String topologyName) {
+        NetworkTopology topology = new NetworkTopology();
+        String status = topology.readTopologyFile(topologyName);
+        if(!status.equals("SUCCESS")) return status;
+
+        String[] result = new String[1];
+        transport.executeAndWait(() -> result[0] = applyTopology(topology));
+        return result[0];
     }
 
     /**
-     * Gets a server from the routing table by their id.
-     * @param id The id of the server
-     * @return Returns a ServerNode from the routing table
+     * Applies a topology file that was read again to the routing table.
+     * This is called on the thread that receives updates.
+     * @param topology The topology that was read
+     * @return Returns a string that lists the changes, or that starts with ERROR
+     * @see #reloadTopology(String)
      */
-    public static ServerNode getServer(int id) {
-        synchronized (servers) {
-            int high = servers.size()-1;
-            int low = 0;
-            while(low <= high) {
-                int mid = low + (high - low) / 2;
-                ServerNode server = servers.get(mid);
-                if(server.serverID == id) {
-                    return server;
+    private String applyTopology(NetworkTopology topology) {
+        synchronized (table) {
+            int self = table.slotOf(serverId);
+            int maxId = 0;
+            for(int i = 0; i < topology.numOfServers; i++) maxId = Math.max(maxId, topology.ids[i]);
+            int[] newIndex = new int[maxId + 1];
+            Arrays.fill(newIndex, -1);
+            for(int i = 0; i < topology.numOfServers; i++) newIndex[topology.ids[i]] = i;
+            int me = (serverId <= maxId) ? newIndex[serverId] : -1;
+            if(me == -1) return "ERROR: Server " + serverId + " is not in the topology file";
+            if(topology.ipAddress[me] != table.ipAddress[self] || topology.port[me] != table.port[self])
+                return "ERROR: The ip and port of this server cannot change without restarting it";
+
+            int[] linkCost = new int[maxId + 1];
+            Arrays.fill(linkCost, RoutingTable.INFINITY);
+            boolean hasLinks = false;
+            for(int i = 0; i < topology.numOfLinks; i++) {
+                if(topology.linkFrom[i] == serverId) linkCost[topology.linkTo[i]] = topology.linkCost[i];
+                else if(topology.linkTo[i] == serverId) linkCost[topology.linkFrom[i]] = topology.linkCost[i];
+                else continue;
+                hasLinks = true;
+            }
+            // Another server's topology file would take away every link of this one
+            int owner = topology.linkOwner();
+            if(!hasLinks && owner != -1) return "ERROR: The links in the topology file are for server " + owner;
+
+            // The routes through lost servers are cleared in one pass and published once at the end
+            boolean[] lost = new boolean[RoutingUpdateMessage.MAX_ID + 1];
+            int[] removedSlots = new int[table.size];
+            int removed = 0, added = 0, moved = 0, linksChanged = 0;
+            for(int slot : table.slotsInIdOrder()) {
+                int id = table.ids[slot];
+                if(id <= maxId && newIndex[id] != -1) continue;
+                if(table.isNeighbor(slot)) {
+                    table.setDirectLinkCost(slot, RoutingTable.INFINITY);
+                    linksChanged++;
                 }
-                if(server.serverID < id) {
-                    low = mid + 1;
+                table.resetNeighborState(slot);
+                lost[id] = true;
+                removedSlots[removed++] = slot;
+            }
+            if(removed > 0) clearPaths(lost);
+            for(int i = 0; i < removed; i++) {
+                table.removeServer(removedSlots[i]);
+                // The slot is given to the next server that is added
+                if(reassembler != null) reassembler.forget(removedSlots[i]);
+            }
+            for(int i = 0; i < topology.numOfServers; i++) {
+                int slot = table.slotOf(topology.ids[i]);
+                if(slot == -1) {
+                    table.addServer(topology.ids[i], topology.ipAddress[i], topology.port[i]);
+                    added++;
                 }
-                else {
-                    high = mid - 1;
+                else if(table.ipAddress[slot] != topology.ipAddress[i] || table.port[slot] != topology.port[i]) {
+                    table.setEndpoint(slot, topology.ipAddress[i], topology.port[i]);
+                    // It is a different process now, so both sides start again with full updates
+                    table.resetNeighborState(slot);
+                    moved++;
+                }
+            }
+            Arrays.fill(lost, false);
+            boolean linksLost = false;
+            for(int slot : table.slotsInIdOrder()) {
+                int id = table.ids[slot];
+                if(slot == self || table.directLinkCost[slot] == linkCost[id]) continue;
+                linksChanged++;
+                int cost = linkCost[id];
+                table.setDirectLinkCost(slot, cost);
+                if(cost == RoutingTable.INFINITY) {
+                    table.resetNeighborState(slot);
+                    lost[id] = true;
+                    linksLost = true;
+                    continue;
                 }
+                table.socketAddress(slot);
+                if(table.nextHopId[slot] == id || cost < table.cost[slot]) table.setRoute(slot, cost, id);
             }
-            return null;
+            if(linksLost) clearPaths(lost);
+
+            numOfServers = topology.numOfServers;
+            numOfNeighbors = table.neighborCount();
+            table.publish();
+            updater.triggerUpdate();
+            return "Servers added: " + added + ", removed: " + removed + ", moved to a new ip or port: " + moved
+                    + ". Links changed: " + linksChanged;
         }
     }
-}
\ No newline at end of file
+}
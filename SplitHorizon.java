@@ -0,0 +1,38 @@
+/**
+ * The ways a server can hide routes from the neighbor it learned them
+ * from. Without this, two servers that route to a destination through
+ * each other keep raising their costs a little every update after the
+ * destination becomes unreachable, which is called counting to infinity.
+ */
+public enum SplitHorizon {
+    /**
+     * Every route is sent to every neighbor.
+     */
+    NONE,
+
+    /**
+     * Routes are not sent to the neighbor that is their next hop.
+     */
+    SIMPLE,
+
+    /**
+     * Routes are sent to the neighbor that is their next hop with a
+     * cost of infinity, so the neighbor stops using this server for them
+     * right away instead of waiting for the route to time out.
+     */
+    POISONED_REVERSE;
+
+    /**
+     * Finds the mode for a command line name.
+     * @param name none, simple or poison
+     * @return Returns the mode, or null if the name is not a mode
+     */
+    public static SplitHorizon fromName(String name) {
+        switch(name.toLowerCase()) {
+            case "none": return NONE;
+            case "simple": return SIMPLE;
+            case "poison": return POISONED_REVERSE;
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/**
+ * A hashed timing wheel for timeouts that are moved forward all the time,
+ * like the timeout of a neighbor that is pushed back every time one of its
+ * updates arrives. The wheel is an array of buckets, each a linked list of
+ * timeouts, and a timeout is put in the bucket of the tick it expires on.
+ * Scheduling, moving and cancelling a timeout only unlinks and links one
+ * node, so they cost the same no matter how many timeouts there are. Every
+ * tick only the timeouts in one bucket are looked at. Timeouts that are
+ * more than one turn of the wheel away count the turns they still have to wait.
+ * Expired timeouts run on the thread that advances the wheel.
+ */
+public class TimerWheel {
+    private final Timeout[] buckets;
+    private final int mask;
+    private final long tickNanos;
+    final long startTime;
+    private long tick;
+    private volatile boolean running;
+
+    /**
+     * A timeout that can be scheduled again and again without creating
+     * new objects. It belongs to the wheel that created it.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private long rounds;
+        private int bucket = -1;
+        private Timeout previous;
+        private Timeout next;
+        private Timeout nextExpired;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * Checks if the timeout is waiting to expire.
+         * @return Returns true if the timeout is scheduled
+         */
+        public boolean isScheduled() {
+            return bucket != -1;
+        }
+    }
+
+    /**
+     * Creates a wheel. A timeout expires up to one tick after its delay.
+     * @param tickMillis The length of a tick in milliseconds
+     * @param wheelSize The number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(long tickMillis, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        this.tickNanos = Math.max(1, tickMillis) * 1_000_000L;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Creates a timeout that is not scheduled yet.
+     * @param task The task to run when the timeout expires
+     * @return Returns the timeout
+     */
+    public Timeout newTimeout(Runnable task) {
+        return new Timeout(task);
+    }
+
+    /**
+     * Schedules a timeout, or moves it if it is already scheduled.
+     * @param timeout A timeout created by this wheel
+     * @param delayMillis The delay in milliseconds
+     */
+    public void schedule(Timeout timeout, long delayMillis) {
+        schedule(timeout, delayMillis, System.nanoTime());
+    }
+
+    /**
+     * Schedules a timeout as if the clock read nanoTime.
+     * @param timeout A timeout created by this wheel
+     * @param delayMillis The delay in milliseconds
+     * @param nanoTime The time in the same units as System.nanoTime
+     */
+    synchronized void schedule(Timeout timeout, long delayMillis, long nanoTime) {
+        unlink(timeout);
+        long deadline = nanoTime + delayMillis * 1_000_000L;
+        long ticks = Math.max(tick, (deadline - startTime + tickNanos - 1) / tickNanos);
+        timeout.rounds = (ticks - tick) / buckets.length;
+        timeout.bucket = (int) (ticks & mask);
+        timeout.next = buckets[timeout.bucket];
+        if(timeout.next != null) timeout.next.previous = timeout;
+        buckets[timeout.bucket] = timeout;
+    }
+
+    /**
+     * Cancels a timeout if it is scheduled.
+     * @param timeout A timeout created by this wheel
+     */
+    public synchronized void cancel(Timeout timeout) {
+        unlink(timeout);
+    }
+
+    /**
+     * Moves the wheel up to the current time and runs every timeout that
+     * expired, in the order of the ticks they expired on. The timeouts run
+     * after the wheel's lock is released, so they can schedule timeouts again.
+     */
+    public void advance() {
+        advance(System.nanoTime());
+    }
+
+    /**
+     * Moves the wheel up to the time nanoTime and runs every timeout that
+     * expired until then.
+     * @param nanoTime The time in the same units as System.nanoTime
+     */
+    void advance(long nanoTime) {
+        Timeout expired = null;
+        Timeout last = null;
+        synchronized (this) {
+            long now = (nanoTime - startTime) / tickNanos;
+            for(; tick <= now; tick++) {
+                Timeout timeout = buckets[(int) (tick & mask)];
+                while(timeout != null) {
+                    Timeout next = timeout.next;
+                    if(timeout.rounds > 0) timeout.rounds--;
+                    else {
+                        unlink(timeout);
+                        if(last == null) expired = timeout;
+                        else last.nextExpired = timeout;
+                        last = timeout;
+                    }
+                    timeout = next;
+                }
+            }
+        }
+        while(expired != null) {
+            Timeout next = expired.nextExpired;
+            expired.nextExpired = null;
+            expired.task.run();
+            expired = next;
+        }
+    }
+
+    /**
+     * Starts advancing the wheel once every tick. If an event loop is given
+     * the wheel is advanced by a timer on the loop, otherwise a new
+     * thread is started that sleeps between ticks.
+     * @param loop The event loop to run on, or null to use a thread
+     * @param name The name of the thread
+     */
+    public void start(EventLoop loop, String name) {
+        running = true;
+        long tickMillis = tickNanos / 1_000_000L;
+        if(loop != null) {
+            loop.execute(() -> scheduleTick(loop, tickMillis));
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            while(running) {
+                try {
+                    Thread.sleep(tickMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                advance();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops advancing the wheel. Timeouts that have not expired never run.
+     */
+    public void stop() {
+        running = false;
+    }
+
+    private void scheduleTick(EventLoop loop, long tickMillis) {
+        loop.schedule(tickMillis, () -> {
+            if(!running) return;
+            advance();
+            scheduleTick(loop, tickMillis);
+        });
+    }
+
+    private void unlink(Timeout timeout) {
+        if(timeout.bucket == -1) return;
+        if(timeout.previous != null) timeout.previous.next = timeout.next;
+        else buckets[timeout.bucket] = timeout.next;
+        if(timeout.next != null) timeout.next.previous = timeout.previous;
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+    }
+}
@@ -0,0 +1,321 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reads topology files into a {@link NetworkTopology}. The file is mapped
+ * into memory and the numbers and ips are read straight from its bytes, so
+ * no strings are created for lines that are correct. A line with a mistake
+ * does not stop the reading: the line is skipped and the rest of the file
+ * is still checked, so every mistake is reported at once with its line
+ * number. Blank lines are ignored. Links are not directed, so a second
+ * link between the same two servers is an error in either direction.
+ * <p>
+ * The same reader is used for the topology file of one server, whose link
+ * lines all start at that server, and for the topology of a whole network,
+ * whose link lines can start at any server.
+ */
+public class TopologyReader {
+    private static final int MAX_ERRORS = 10;
+    private static final int MAX_ID = RoutingUpdateMessage.MAX_ID;
+    // The shortest link line, like "1 2 0" and its line break
+    private static final int MIN_LINK_LINE = 6;
+
+    private final ByteBuffer file;
+    private int position;
+    private int lineStart;
+    private int lineEnd;
+    private int lineNumber;
+    private boolean ipWasRead;
+    private final ArrayList<String> errors = new ArrayList<>();
+    private int errorCount;
+
+    // The links read so far, in an open addressing table, and their lines
+    private long[] linkKeys;
+    private int[] linkLines;
+
+    private TopologyReader(ByteBuffer file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads a topology file.
+     * @param fileName The name of the topology file
+     * @param topology The topology that is filled in
+     * @return Returns "SUCCESS" or a string that describes every error with its line number
+     */
+    public static String read(String fileName, NetworkTopology topology) {
+        ByteBuffer file;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE) return "ERROR: Topology file " + fileName + " is too large";
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return "ERROR: Topology file " + fileName + " was not found";
+        } catch (IOException e) {
+            return "ERROR: Topology file " + fileName + " could not be read: " + e.getMessage();
+        }
+        return new TopologyReader(file).read(topology);
+    }
+
+    private String read(NetworkTopology topology) {
+        int servers = readCount("the number of servers");
+        int links = (servers < 0) ? -1 : readCount("the number of links");
+        if(servers < 0 || links < 0) return errorString();
+        if(servers > MAX_ID + 1) {
+            error("there can be at most " + (MAX_ID + 1) + " servers because ids are sent as 16 bits");
+            return errorString();
+        }
+        // Checked before anything is allocated, so a wrong count cannot use up the memory
+        long maxLinks = (long) servers * (servers - 1) / 2;
+        if(links > maxLinks) {
+            error("there can be at most " + maxLinks + " links between " + servers + " servers");
+            return errorString();
+        }
+        if(links > file.limit() / MIN_LINK_LINE) {
+            error("the file is too short to have " + links + " link lines");
+            return errorString();
+        }
+        topology.allocate(servers, links);
+
+        int[] lineOfId = new int[MAX_ID + 1];
+        int[] serverLines = new int[servers];
+        for(int i = 0; i < servers; i++) {
+            if(!nextLine()) return endOfFile(servers + " server lines and " + links + " link lines");
+            if(!readServer(topology, i, lineOfId)) continue;
+            lineOfId[topology.ids[i]] = lineNumber;
+            serverLines[i] = lineNumber;
+        }
+        checkDuplicateEndpoints(topology, serverLines);
+
+        // links is at most a sixth of the file's size, so this cannot overflow
+        int tableSize = Integer.highestOneBit(Math.max(2, links * 2 - 1)) << 1;
+        linkKeys = new long[tableSize];
+        Arrays.fill(linkKeys, -1);
+        linkLines = new int[tableSize];
+        for(int i = 0; i < links; i++) {
+            if(!nextLine()) return endOfFile(links + " link lines");
+            readLink(topology, i, lineOfId);
+        }
+        if(nextLine()) error("there are more lines than the " + servers + " servers and " + links + " links at the top of the file");
+        return errors.isEmpty() ? "SUCCESS" : errorString();
+    }
+
+    /**
+     * Reads a line that holds one count.
+     * @return Returns the count or -1 if the line is wrong
+     */
+    private int readCount(String what) {
+        if(!nextLine()) {
+            error("expected " + what + " but the file ended");
+            return -1;
+        }
+        int count = readNumber();
+        if(count < 0 || !atEndOfLine()) {
+            error("expected " + what + " but found \"" + lineText() + "\"");
+            return -1;
+        }
+        return count;
+    }
+
+    private boolean readServer(NetworkTopology topology, int index, int[] lineOfId) {
+        int id = readNumber();
+        if(id < 0) return error("expected a server line \"id ip port\" but found \"" + lineText() + "\"");
+        if(id > MAX_ID) return error("server id " + id + " is larger than " + MAX_ID);
+        if(lineOfId[id] != 0) return error("server id " + id + " is already used on line " + lineOfId[id]);
+        int ip = readIp();
+        if(!ipWasRead) return error("expected an ip like 10.0.0.1 after server id " + id + " but found \"" + lineText() + "\"");
+        int port = readNumber();
+        if(port < 0 || port > 0xFFFF) return error("expected a port from 0 to 65535 after the ip of server " + id);
+        if(!atEndOfLine()) return error("unexpected text after the port of server " + id);
+        topology.ids[index] = id;
+        topology.ipAddress[index] = ip;
+        topology.port[index] = port;
+        return true;
+    }
+
+    private boolean readLink(NetworkTopology topology, int index, int[] lineOfId) {
+        int from = readNumber();
+        int to = readNumber();
+        int cost = readNumber();
+        if(from < 0 || to < 0 || cost < 0 || !atEndOfLine()) {
+            return error("expected a link line \"id id cost\" but found \"" + lineText() + "\"");
+        }
+        if(from > MAX_ID || lineOfId[from] == 0) return error("server " + from + " is not in the server lines");
+        if(to > MAX_ID || lineOfId[to] == 0) return error("server " + to + " is not in the server lines");
+        if(from == to) return error("server " + from + " cannot have a link to itself");
+        if(cost >= RoutingTable.INFINITY) return error("the cost " + cost + " is too large");
+        int line = addLink(from, to);
+        if(line != 0) return error("the link between " + from + " and " + to + " is already on line " + line);
+        topology.linkFrom[index] = from;
+        topology.linkTo[index] = to;
+        topology.linkCost[index] = cost;
+        return true;
+    }
+
+    /**
+     * Remembers the link on the current line.
+     * @param from The id of one server of the link
+     * @param to The id of the other server
+     * @return Returns 0, or the line of an earlier link between the same servers
+     */
+    private int addLink(int from, int to) {
+        long key = ((long) Math.min(from, to) << 16) | Math.max(from, to);
+        int mask = linkKeys.length - 1;
+        int i = Long.hashCode(key * 0x9E3779B97F4A7C15L) & mask;
+        for(; linkKeys[i] != -1; i = (i + 1) & mask) {
+            if(linkKeys[i] == key) return linkLines[i];
+        }
+        linkKeys[i] = key;
+        linkLines[i] = lineNumber;
+        return 0;
+    }
+
+    /**
+     * Reports servers that share an ip and port, which the routing table
+     * cannot tell apart. The endpoints are sorted, so this does not
+     * depend on the number of servers squared.
+     * @param serverLines The line of each server, or 0 if its line was wrong
+     */
+    private void checkDuplicateEndpoints(NetworkTopology topology, int[] serverLines) {
+        long[] endpoints = new long[topology.numOfServers];
+        int count = 0;
+        for(int i = 0; i < endpoints.length; i++) {
+            if(serverLines[i] != 0) endpoints[count++] = RoutingTable.endpointKey(topology.ipAddress[i], topology.port[i]);
+        }
+        Arrays.sort(endpoints, 0, count);
+        for(int i = 1; i < count; i++) {
+            long endpoint = endpoints[i];
+            if(endpoint != endpoints[i - 1]) continue;
+            while(i + 1 < count && endpoints[i + 1] == endpoint) i++;
+            errorCount++;
+            if(errors.size() >= MAX_ERRORS) continue;
+            // Only the few reported duplicates are looked up, to find their lines
+            StringBuilder lines = new StringBuilder();
+            for(int j = 0; j < topology.numOfServers; j++) {
+                if(serverLines[j] == 0 || RoutingTable.endpointKey(topology.ipAddress[j], topology.port[j]) != endpoint) continue;
+                lines.append(lines.length() == 0 ? "" : " and ").append(serverLines[j]);
+            }
+            errors.add("lines " + lines + ": more than one server has ip "
+                    + RoutingUpdateMessage.intToIp((int) (endpoint >>> 16)) + " and port " + (endpoint & 0xFFFF));
+        }
+    }
+
+    /**
+     * Moves to the next line that is not blank.
+     * @return Returns false at the end of the file
+     */
+    private boolean nextLine() {
+        int limit = file.limit();
+        while(position < limit) {
+            lineNumber++;
+            lineStart = position;
+            while(position < limit && file.get(position) != '\n') position++;
+            lineEnd = position;
+            if(position < limit) position++;
+            if(!atEndOfLine()) return true;
+        }
+        return false;
+    }
+
+    private void skipSpaces() {
+        while(lineStart < lineEnd) {
+            byte b = file.get(lineStart);
+            if(b != ' ' && b != '\t' && b != '\r') return;
+            lineStart++;
+        }
+    }
+
+    private boolean atEndOfLine() {
+        skipSpaces();
+        return lineStart == lineEnd;
+    }
+
+    /**
+     * Reads a number that is followed by a space or the end of the line.
+     * @return Returns the number or -1 if there is no number or it is too large
+     */
+    private int readNumber() {
+        skipSpaces();
+        long value = readDigits();
+        if(value < 0 || !atSeparator()) return -1;
+        return (int) value;
+    }
+
+    private long readDigits() {
+        long value = 0;
+        int digits = 0;
+        while(lineStart < lineEnd) {
+            int digit = file.get(lineStart) - '0';
+            if(digit < 0 || digit > 9) break;
+            value = value * 10 + digit;
+            if(value > Integer.MAX_VALUE) return -1;
+            lineStart++;
+            digits++;
+        }
+        return (digits == 0) ? -1 : value;
+    }
+
+    /**
+     * Reads an ip with four parts from 0 to 255.
+     * @return Returns the ip stored in an integer. ipWasRead is set to false if it is not an ip
+     */
+    private int readIp() {
+        skipSpaces();
+        int ip = 0;
+        ipWasRead = false;
+        for(int part = 0; part < 4; part++) {
+            if(part > 0) {
+                if(lineStart == lineEnd || file.get(lineStart) != '.') return -1;
+                lineStart++;
+            }
+            long value = readDigits();
+            if(value < 0 || value > 255) return -1;
+            ip = (ip << 8) | (int) value;
+        }
+        if(!atSeparator()) return -1;
+        ipWasRead = true;
+        return ip;
+    }
+
+    private boolean atSeparator() {
+        if(lineStart == lineEnd) return true;
+        byte b = file.get(lineStart);
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private String lineText() {
+        int start = lineEnd;
+        while(start > 0 && file.get(start - 1) != '\n') start--;
+        byte[] bytes = new byte[Math.min(lineEnd - start, 80)];
+        for(int i = 0; i < bytes.length; i++) bytes[i] = file.get(start + i);
+        return new String(bytes).trim();
+    }
+
+    private String endOfFile(String expected) {
+        error("the file ended but it should have " + expected);
+        return errorString();
+    }
+
+    /**
+     * Records an error on the current line.
+     * @return Returns false so that line readers can return it
+     */
+    private boolean error(String message) {
+        errorCount++;
+        if(errors.size() < MAX_ERRORS) errors.add("line " + lineNumber + ": " + message);
+        return false;
+    }
+
+    private String errorString() {
+        StringBuilder builder = new StringBuilder("ERROR: Topology file has ");
+        builder.append(errorCount).append(errorCount == 1 ? " error" : " errors");
+        for(String error : errors) builder.append("\n  ").append(error);
+        if(errorCount > errors.size()) builder.append("\n  and ").append(errorCount - errors.size()).append(" more");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The way a server sends and receives routing update datagrams. A transport
+ * delivers every datagram it receives to Server.receivePacket and decides
+ * which thread that happens on. Datagrams that are already waiting are
+ * handed over together, at most RECEIVE_BATCH of them, and then
+ * Server.applyReceivedUpdates is called once for the batch.
+ * @see UdpTransport
+ * @see NioTransport
+ * @see InMemoryTransport
+ */
+public interface Transport {
+    /**
+     * The most datagrams handed to a server before its batch is applied.
+     */
+    int RECEIVE_BATCH = 64;
+
+    /**
+     * The largest UDP payload. Datagrams are received into buffers of this
+     * size, because a neighbor on a link with a larger MTU can send bigger
+     * datagrams than this server does. Only what is sent is limited by the
+     * server's own MTU.
+     */
+    int MAX_DATAGRAM_SIZE = 65507;
+
+    /**
+     * Starts receiving datagrams for a server. The server's port
+     * and routing table are already set when this is called.
+     * @param server The server that receives the datagrams
+     * @throws IOException If the transport could not be opened, for example if the port is in use
+     */
+    void open(Server server) throws IOException;
+
+    /**
+     * Sends one datagram. The bytes from the position to the limit of the
+     * buffer are sent. The buffer can be reused as soon as this returns.
+     * @param datagram The datagram to send
+     * @param address The address of the receiving server
+     * @throws IOException If the datagram could not be sent
+     */
+    void send(ByteBuffer datagram, InetSocketAddress address) throws IOException;
+
+    /**
+     * Returns the event loop that runs the server, if there is one.
+     * @return Returns the event loop, or null if the transport uses its own threads
+     */
+    EventLoop getEventLoop();
+
+    /**
+     * Runs a task on the thread that applies received updates and waits
+     * until it has finished. The routing table's endpoint index is only
+     * changed on that thread, so a task that adds, removes or moves servers
+     * has to run this way. The task runs on the event loop if there is one,
+     * and on the calling thread if the transport has no thread of its own.
+     * @param task The task to run
+     */
+    default void executeAndWait(Runnable task) {
+        EventLoop loop = getEventLoop();
+        if(loop != null) loop.executeAndWait(task);
+        else task.run();
+    }
+
+    /**
+     * Stops receiving datagrams and releases the socket.
+     */
+    void close();
+}
@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends and receives routing updates over UDP with two threads. The
+ * receiving thread blocks on the server's channel and reads each datagram
+ * straight into a slot of a {@link DatagramRing}, so it keeps emptying the
+ * socket's buffer while routes are being computed. The computing thread
+ * takes the queued datagrams in batches and applies them to the routing
+ * table. What happens when the queue is full is chosen by the
+ * {@link OverloadPolicy}. Updates are sent from a separate unbound channel,
+ * so the sending thread and the receiving thread never share a socket.
+ * Tasks given to executeAndWait run on the computing thread between batches.
+ */
+public class UdpTransport implements Transport {
+    /**
+     * Every slot of the queue holds a datagram of MAX_DATAGRAM_SIZE, so
+     * the default queue takes 16 MB of direct memory, and the largest 1 GB.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final int MAX_QUEUE_CAPACITY = 16384;
+
+    private final int queueCapacity;
+    private final OverloadPolicy overloadPolicy;
+    private DatagramChannel channel;
+    private DatagramChannel sendChannel;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile Thread computer;
+    private volatile boolean open;
+
+    /**
+     * Creates a transport with a queue of DEFAULT_QUEUE_CAPACITY datagrams
+     * that drops the oldest datagrams when it is full.
+     */
+    public UdpTransport() {
+        this(DEFAULT_QUEUE_CAPACITY, OverloadPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Creates a transport.
+     * @param queueCapacity The number of datagrams that can wait to be computed, at most MAX_QUEUE_CAPACITY
+     * @param overloadPolicy What the receiving thread does when the queue is full
+     */
+    public UdpTransport(int queueCapacity, OverloadPolicy overloadPolicy) {
+        this.queueCapacity = queueCapacity;
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    /**
+     * Binds the server's port and starts the thread that listens for
+     * routing update messages from the server's neighbors and the
+     * thread that computes them.
+     * @param server The server that receives the datagrams
+     * @throws IOException If the port could not be bound
+     */
+    @Override
+    public void open(Server server) throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(server.port));
+        sendChannel = DatagramChannel.open();
+        open = true;
+
+        DatagramRing queue = new DatagramRing(queueCapacity, MAX_DATAGRAM_SIZE, overloadPolicy);
+        server.metrics.receiveQueue = queue;
+        ByteBuffer discard = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        Thread receiver = new Thread(() -> {
+            while(open) {
+                ByteBuffer slot = queue.claim(() -> open);
+                if(slot == null && !open) break;
+                try {
+                    if(slot == null) {
+                        // The queue is full and the new datagram is dropped
+                        discard.clear();
+                        channel.receive(discard);
+                        continue;
+                    }
+                    channel.receive(slot);
+                } catch (IOException e) {
+                    if(!open) break;
+                    throw new RuntimeException(e);
+                }
+                queue.publish(slot.position());
+            }
+        }, "server-" + server.serverId);
+
+        computer = new Thread(() -> {
+            while(open) {
+                runTasks();
+                int received = 0;
+                int index;
+                while(received < RECEIVE_BATCH && (index = queue.poll()) != -1) {
+                    server.receivePacket(queue.slot(index), queue.length(index));
+                    queue.release();
+                    received++;
+                }
+                if(received > 0) server.applyReceivedUpdates();
+                else if(tasks.isEmpty()) queue.awaitDatagram();
+            }
+            runTasks();
+        }, "compute-" + server.serverId);
+        receiver.start();
+        computer.start();
+    }
+
+    @Override
+    public void send(ByteBuffer datagram, InetSocketAddress address) throws IOException {
+        sendChannel.send(datagram, address);
+    }
+
+    @Override
+    public EventLoop getEventLoop() {
+        return null;
+    }
+
+    /**
+     * Runs a task on the computing thread and waits until it has finished.
+     * The task runs on the calling thread if the transport is not open.
+     * @param task The task to run
+     */
+    @Override
+    public void executeAndWait(Runnable task) {
+        Thread thread = computer;
+        if(!open || thread == null || Thread.currentThread() == thread) {
+            task.run();
+            return;
+        }
+        FutureTask<Void> future = new FutureTask<>(task, null);
+        tasks.add(future);
+        LockSupport.unpark(thread);
+        try {
+            while(true) {
+                try {
+                    future.get(100, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    // The computing thread has stopped without taking the task
+                    if(!thread.isAlive() && tasks.remove(future)) {
+                        task.run();
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Runs the tasks that are waiting for the computing thread.
+     */
+    private void runTasks() {
+        for(Runnable task = tasks.poll(); task != null; task = tasks.poll()) task.run();
+    }
+
+    @Override
+    public void close() {
+        open = false;
+        try {
+            if(channel != null) channel.close();
+            if(sendChannel != null) sendChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
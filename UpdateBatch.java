@@ -0,0 +1,136 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Holds the complete routing updates received since the last batch was
+ * applied, keeping only the newest update from each sender. An update is
+ * replaced when a newer one from the same sender carries everything it
+ * said: a full update always does, and so does a delta that is based on an
+ * update that was already applied. An update that closes the link, with
+ * an entry of Integer.MIN_VALUE, is never replaced, because the newer
+ * update does not say that the link was closed in between. The entries
+ * are copied because the buffers of received packets are reused. The
+ * buffers kept for each sender only grow, so no objects are created once
+ * every sender has sent its largest update.
+ */
+public class UpdateBatch {
+    private PendingUpdate[] pending = new PendingUpdate[16];
+    private int[] senders = new int[16];
+    private int count;
+    private final RoutingUpdateCursor cursor = new RoutingUpdateCursor();
+
+    /**
+     * Checks if an update can be added without applying the batch first.
+     * This is false when the sender already has an update in the batch
+     * that the new one does not replace, because both have to be applied
+     * in order, or when the queued update closes the link.
+     * @param sender The slot of the sender in the routing table
+     * @param update The complete update
+     * @param receivedSequence The sequence number of the last update applied from the sender
+     * @return Returns true if the update can be added
+     */
+    public boolean canAdd(int sender, RoutingUpdateCursor update, int receivedSequence) {
+        PendingUpdate queued = (sender < pending.length) ? pending[sender] : null;
+        if(queued == null || !queued.queued) return true;
+        // An older update that arrives late is dropped by add
+        if(update.sequenceNumber - queued.sequenceNumber <= 0) return true;
+        if(queued.closesLink) return false;
+        return update.baseSequence == 0 || (receivedSequence != 0 && receivedSequence - update.baseSequence >= 0);
+    }
+
+    /**
+     * Adds an update to the batch, replacing the update queued for the
+     * same sender. canAdd must have returned true for the update.
+     * @param sender The slot of the sender in the routing table
+     * @param update The complete update
+     * @return Returns true if an update that was already queued was replaced or the new one was dropped
+     */
+    public boolean add(int sender, RoutingUpdateCursor update) {
+        if(sender >= pending.length) pending = Arrays.copyOf(pending, Math.max(sender + 1, pending.length * 2));
+        PendingUpdate queued = pending[sender];
+        if(queued == null) {
+            queued = new PendingUpdate();
+            pending[sender] = queued;
+        }
+        boolean superseded = queued.queued;
+        if(superseded && update.sequenceNumber - queued.sequenceNumber <= 0) return true;
+        if(!superseded) {
+            if(count == senders.length) senders = Arrays.copyOf(senders, count * 2);
+            senders[count++] = sender;
+            queued.queued = true;
+        }
+        queued.copy(update);
+        return superseded;
+    }
+
+    /**
+     * Returns the number of senders with an update in the batch.
+     * @return Returns the number of queued updates
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Points the batch's cursor at one of the queued updates. The cursor
+     * is reused, so it is only valid until the next call.
+     * @param index A number from 0 to size() - 1, in the order the senders were first queued
+     * @return Returns a cursor over the update
+     */
+    public RoutingUpdateCursor updateAt(int index) {
+        PendingUpdate queued = pending[senders[index]];
+        cursor.serverPort = queued.serverPort;
+        cursor.serverIPAddress = queued.serverIPAddress;
+        cursor.sequenceNumber = queued.sequenceNumber;
+        cursor.segmentIndex = 0;
+        cursor.segmentCount = 1;
+        cursor.baseSequence = queued.baseSequence;
+        cursor.ackSequence = queued.ackSequence;
+        cursor.wrapEntries(queued.buffer, 0, queued.entryCount);
+        return cursor;
+    }
+
+    /**
+     * Empties the batch after it was applied.
+     */
+    public void clear() {
+        for(int i = 0; i < count; i++) pending[senders[i]].queued = false;
+        count = 0;
+    }
+
+    /**
+     * The newest update from one sender. The entry array is kept
+     * between batches and only grows.
+     */
+    private static class PendingUpdate {
+        boolean queued;
+        int serverPort;
+        int serverIPAddress;
+        int sequenceNumber;
+        int baseSequence;
+        int ackSequence;
+        int entryCount;
+        boolean closesLink;
+        byte[] entries = new byte[0];
+        ByteBuffer buffer = ByteBuffer.wrap(entries);
+
+        void copy(RoutingUpdateCursor update) {
+            serverPort = update.serverPort;
+            serverIPAddress = update.serverIPAddress;
+            sequenceNumber = update.sequenceNumber;
+            baseSequence = update.baseSequence;
+            ackSequence = update.ackSequence;
+            entryCount = update.entryCount;
+            int size = entryCount * RoutingUpdateMessage.ENTRY_SIZE;
+            if(entries.length < size) {
+                entries = new byte[size];
+                buffer = ByteBuffer.wrap(entries);
+            }
+            update.buffer().get(update.entriesOffset(), entries, 0, size);
+            closesLink = false;
+            for(int i = 0; i < entryCount && !closesLink; i++) {
+                closesLink = update.costAt(i) == Integer.MIN_VALUE;
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Collects the segments of routing updates until every segment of an
+ * update has arrived. Segments are grouped by the slot of the sender in the
+ * routing table and by the sequence number of the update. A partial update
+ * is dropped when a newer update from the same sender starts arriving or
+ * when it has not completed within the timeout. The entries of each segment
+ * are copied into a buffer that is kept for the sender and reused, so no
+ * objects are created once every sender has sent its largest update.
+ */
+public class UpdateReassembler {
+    private PartialUpdate[] partialUpdates;
+    private final long timeoutMillis;
+    private final int entriesPerSegment;
+    private final RoutingUpdateCursor combined;
+
+    /**
+     * Creates an empty reassembler.
+     * @param timeoutMillis How long a partial update is kept before it is dropped
+     * @param maxPacketSize The size of the receive buffer, which bounds the size of a segment.
+     * Servers use Transport.MAX_DATAGRAM_SIZE, since neighbors may send larger segments than they do
+     */
+    public UpdateReassembler(long timeoutMillis, int maxPacketSize) {
+        this.partialUpdates = new PartialUpdate[16];
+        this.timeoutMillis = timeoutMillis;
+        this.entriesPerSegment = RoutingUpdateMessage.maxEntriesPerSegment(maxPacketSize);
+        this.combined = new RoutingUpdateCursor();
+    }
+
+    /**
+     * Drops the partly received update of a sender, for a
+     * slot that is about to be given to another server.
+     * @param sender The slot of the sender in the routing table
+     */
+    public void forget(int sender) {
+        if(sender < partialUpdates.length && partialUpdates[sender] != null) partialUpdates[sender].active = false;
+    }
+
+    /**
+     * Adds a segment to the update it belongs to. Single segment updates
+     * are returned right away.
+     * @param sender The slot of the sender in the routing table
+     * @param segment A cursor pointing at a received segment
+     * @return Returns a cursor over the complete update, or null if segments are still missing
+     */
+    public RoutingUpdateCursor addSegment(int sender, RoutingUpdateCursor segment) {
+        if(segment.segmentCount == 1) return segment;
+
+        if(sender >= partialUpdates.length) {
+            partialUpdates = Arrays.copyOf(partialUpdates, Math.max(sender + 1, partialUpdates.length * 2));
+        }
+        PartialUpdate partial = partialUpdates[sender];
+        if(partial == null) {
+            partial = new PartialUpdate();
+            partialUpdates[sender] = partial;
+        }
+
+        long now = System.currentTimeMillis();
+        if(partial.active) {
+            if(now - partial.startTime >= timeoutMillis) {
+                partial.active = false;
+            }
+            else if(partial.sequenceNumber != segment.sequenceNumber) {
+                // Sequence numbers wrap around, so compare them by their difference
+                if(segment.sequenceNumber - partial.sequenceNumber < 0) return null;
+                partial.active = false;
+            }
+            else if(partial.segmentCount != segment.segmentCount) {
+                partial.active = false;
+            }
+        }
+        if(!partial.active) partial.start(segment.sequenceNumber, segment.segmentCount, now);
+
+        int index = segment.segmentIndex;
+        if(!partial.received[index]) {
+            if(segment.entryCount > entriesPerSegment) return null;
+            if(!partial.add(index, segment)) {
+                partial.active = false;
+                return null;
+            }
+        }
+        if(partial.receivedCount < partial.segmentCount) return null;
+
+        partial.active = false;
+        int total = partial.order();
+        combined.serverPort = segment.serverPort;
+        combined.serverIPAddress = segment.serverIPAddress;
+        combined.sequenceNumber = segment.sequenceNumber;
+        combined.segmentIndex = 0;
+        combined.segmentCount = 1;
+        combined.baseSequence = segment.baseSequence;
+        combined.ackSequence = segment.ackSequence;
+        combined.wrapEntries(partial.buffer, 0, total);
+        return combined;
+    }
+
+    /**
+     * The segments received so far for one update. The entries of each
+     * segment are added after the ones that arrived before it, and are put
+     * in the order of the segments once all of them have arrived. An update
+     * can have at most one entry per id, so one that grows past
+     * MAX_UPDATE_SIZE bytes is dropped. The arrays are kept between updates
+     * and only grow.
+     */
+    private static class PartialUpdate {
+        static final long MAX_UPDATE_SIZE = (RoutingUpdateMessage.MAX_ID + 1L) * RoutingUpdateMessage.ENTRY_SIZE;
+
+        boolean active;
+        int sequenceNumber;
+        int segmentCount;
+        int receivedCount;
+        int entryCount;
+        long startTime;
+        boolean[] received = new boolean[0];
+        int[] entryCounts = new int[0];
+        int[] offsets = new int[0];
+        byte[] entries = new byte[0];
+        byte[] ordered = new byte[0];
+        ByteBuffer buffer = ByteBuffer.wrap(ordered);
+
+        /**
+         * Clears the partial update so that a new update can be collected.
+         */
+        void start(int sequenceNumber, int segmentCount, long startTime) {
+            this.active = true;
+            this.sequenceNumber = sequenceNumber;
+            this.segmentCount = segmentCount;
+            this.receivedCount = 0;
+            this.entryCount = 0;
+            this.startTime = startTime;
+            if(received.length < segmentCount) {
+                received = new boolean[segmentCount];
+                entryCounts = new int[segmentCount];
+                offsets = new int[segmentCount];
+            }
+            Arrays.fill(received, 0, segmentCount, false);
+        }
+
+        /**
+         * Copies the entries of a segment after the entries received so far.
+         * @param index The index of the segment
+         * @param segment A cursor pointing at the segment
+         * @return Returns false if the update would be larger than MAX_UPDATE_SIZE
+         */
+        boolean add(int index, RoutingUpdateCursor segment) {
+            long size = (long) (entryCount + segment.entryCount) * RoutingUpdateMessage.ENTRY_SIZE;
+            if(size > MAX_UPDATE_SIZE) return false;
+            if(entries.length < size) {
+                entries = Arrays.copyOf(entries, (int) Math.min(MAX_UPDATE_SIZE, Math.max(size, 2L * entries.length)));
+            }
+            segment.buffer().get(segment.entriesOffset(), entries, entryCount * RoutingUpdateMessage.ENTRY_SIZE,
+                    segment.entryCount * RoutingUpdateMessage.ENTRY_SIZE);
+            offsets[index] = entryCount;
+            entryCounts[index] = segment.entryCount;
+            entryCount += segment.entryCount;
+            received[index] = true;
+            receivedCount++;
+            return true;
+        }
+
+        /**
+         * Copies the entries of every segment into buffer in the order of
+         * the segments.
+         * @return Returns the number of entries in the update
+         */
+        int order() {
+            if(ordered.length < entries.length) {
+                ordered = new byte[entries.length];
+                buffer = ByteBuffer.wrap(ordered);
+            }
+            int total = 0;
+            for(int i = 0; i < segmentCount; i++) {
+                System.arraycopy(entries, offsets[i] * RoutingUpdateMessage.ENTRY_SIZE,
+                        ordered, total * RoutingUpdateMessage.ENTRY_SIZE,
+                        entryCounts[i] * RoutingUpdateMessage.ENTRY_SIZE);
+                total += entryCounts[i];
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import java.nio.ByteBuffer;
+import java.util.function.BooleanSupplier;
+
+import routerbench.RingFixture;
+
+/**
+ * Runs a {@link DatagramRing} for the benchmarks in routerbench. Offering
+ * writes the length into the first bytes of the slot, like a datagram read
+ * from the socket, and taking reads them back.
+ */
+public class DatagramRingFixture implements RingFixture {
+    private static final BooleanSupplier RUNNING = () -> true;
+
+    private DatagramRing ring;
+
+    @Override
+    public void setUp(int capacity, int slotSize, String policy) {
+        OverloadPolicy overloadPolicy = OverloadPolicy.fromName(policy);
+        if(overloadPolicy == null) throw new IllegalArgumentException("Unknown overload policy " + policy);
+        ring = new DatagramRing(capacity, slotSize, overloadPolicy);
+    }
+
+    @Override
+    public boolean offer(int length) {
+        ByteBuffer slot = ring.claim(RUNNING);
+        if(slot == null) return false;
+        slot.putInt(0, length);
+        ring.publish(length);
+        return true;
+    }
+
+    @Override
+    public int take() {
+        int index = ring.poll();
+        if(index == -1) return -1;
+        int first = ring.slot(index).get(0);
+        ring.release();
+        return first;
+    }
+}
@@ -0,0 +1,220 @@
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import routerbench.RouterFixture;
+
+/**
+ * Runs the router's update path for the benchmarks in routerbench. The
+ * network is generated, server 2 is given a route to every server and its
+ * updates to server 1 are recorded, once with the costs the routes start
+ * with and once with every cost changed.
+ */
+public class UpdatePathFixture implements RouterFixture {
+    private static final int LOOKUPS = 1024;
+
+    private NetworkTopology topology;
+    private Server receiver;
+    private Server sender;
+    private RecordingTransport senderTransport;
+    private ArrayList<ByteBuffer> steadySegments;
+    private ArrayList<ByteBuffer> churnSegments;
+    private ArrayList<ByteBuffer> steadySegmentsV2;
+    private RoutingUpdateCursor steadyUpdate;
+    private RoutingUpdateCursor churnUpdate;
+    private RoutingUpdateCursor cursor;
+    private UpdateReassembler reassembler;
+    private EventLog log;
+    private int[] lookupIds;
+    private int[] lookupIps;
+    private int[] lookupPorts;
+    private int churn;
+
+    @Override
+    public void setUp(int servers) {
+        topology = NetworkTopology.generate(servers, 4, 10, 1);
+        senderTransport = new RecordingTransport();
+        receiver = createServer(new RecordingTransport(), 1);
+        sender = createServer(senderTransport, 2);
+
+        // Give the sender a route to every server so that every entry has a cost
+        RoutingTable table = sender.table;
+        int nextHop = table.ids[table.slotOf(1)];
+        for(int slot = 0; slot < table.size; slot++) {
+            if(table.ids[slot] != 2 && !table.isNeighbor(slot)) table.setRoute(slot, 1 + slot % 10, nextHop);
+        }
+        table.publish();
+        senderTransport.recordAddress = table.socketAddress(table.slotOf(1));
+        steadySegments = recordUpdate();
+        for(int slot = 0; slot < table.size; slot++) {
+            if(table.ids[slot] != 2 && !table.isNeighbor(slot)) table.setRoute(slot, 2 + slot % 10, nextHop);
+        }
+        table.publish();
+        churnSegments = recordUpdate();
+        table.setPeerVersion(table.slotOf(1), RoutingUpdateMessage.VERSION_2);
+        steadySegmentsV2 = recordUpdate();
+        table.setPeerVersion(table.slotOf(1), RoutingUpdateMessage.VERSION_1);
+
+        steadyUpdate = reassemble(steadySegments);
+        churnUpdate = reassemble(churnSegments);
+        cursor = new RoutingUpdateCursor();
+        cursor.localId = 1;
+        reassembler = new UpdateReassembler(1000, Transport.MAX_DATAGRAM_SIZE);
+        log = new EventLog(LogLevel.INFO, EventLog.DEFAULT_CAPACITY, Writer.nullWriter());
+        log.start();
+
+        Random random = new Random(servers);
+        lookupIds = new int[LOOKUPS];
+        lookupIps = new int[LOOKUPS];
+        lookupPorts = new int[LOOKUPS];
+        for(int i = 0; i < LOOKUPS; i++) {
+            int slot = random.nextInt(receiver.table.size);
+            lookupIds[i] = receiver.table.ids[slot];
+            lookupIps[i] = receiver.table.ipAddress[slot];
+            lookupPorts[i] = receiver.table.port[slot];
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        log.close();
+        setParallelism(0);
+    }
+
+    @Override
+    public int encode(int version) {
+        synchronized (sender.updater) {
+            sender.updater.encodeRoutingTable(sender.table.snapshot(), 0);
+            return sender.updater.writeEncodedUpdate(version).remaining();
+        }
+    }
+
+    @Override
+    public int encodePacket() {
+        RoutingTableSnapshot table = sender.table.snapshot();
+        int entries = Math.min(table.size, RoutingUpdateMessage.entriesPerSegment(sender.maxPacketSize));
+        RoutingUpdateMessage message = new RoutingUpdateMessage(1, sender.port,
+                table.ipAddress[sender.table.slotOf(2)], table, 0, entries);
+        return message.getRoutingUpdatePacket().length;
+    }
+
+    @Override
+    public long decode(int version) {
+        ArrayList<ByteBuffer> segments = (version == RoutingUpdateMessage.VERSION_2) ? steadySegmentsV2 : steadySegments;
+        long costs = 0;
+        for(int i = 0; i < segments.size(); i++) {
+            ByteBuffer segment = segments.get(i);
+            if(!cursor.wrapPacket(segment, segment.limit())) continue;
+            RoutingUpdateCursor update = reassembler.addSegment(1, cursor);
+            if(update == null) continue;
+            while(update.next()) costs += update.cost;
+        }
+        return costs;
+    }
+
+    @Override
+    public void relax(boolean churn) {
+        receiver.distanceVector((churn && (this.churn++ & 1) == 1) ? churnUpdate : steadyUpdate);
+    }
+
+    @Override
+    public void setParallelism(int threads) {
+        if(receiver.parallel != null) receiver.parallel.close();
+        receiver.parallel = (threads == 0) ? null : new ParallelDistanceVector(receiver, threads, 1);
+    }
+
+    @Override
+    public int lookupId(int lookup) {
+        return receiver.table.slotOf(lookupIds[lookup & (LOOKUPS - 1)]);
+    }
+
+    @Override
+    public int lookupEndpoint(int lookup) {
+        int i = lookup & (LOOKUPS - 1);
+        return receiver.table.slotOfEndpoint(lookupIps[i], lookupPorts[i]);
+    }
+
+    @Override
+    public int nextHop(int lookup) {
+        return receiver.nextHop(lookupIds[lookup & (LOOKUPS - 1)]);
+    }
+
+    @Override
+    public int lockedNextHop(int lookup) {
+        RoutingTable table = receiver.table;
+        synchronized (table) {
+            return table.nextHopId[table.slotOf(lookupIds[lookup & (LOOKUPS - 1)])];
+        }
+    }
+
+    @Override
+    public void sendUpdate() {
+        receiver.updater.sendUpdateToNeighbors();
+    }
+
+    @Override
+    public void recordEvent(int lookup) {
+        log.record(LogLevel.INFO, EventLog.Event.UPDATE_RECEIVED, lookupIds[lookup & (LOOKUPS - 1)]);
+    }
+
+    private Server createServer(Transport transport, int id) {
+        Server server = new Server(transport, 1000);
+        server.printMessages = false;
+        String status = server.loadNetwork(topology, id);
+        if(!status.equals("SUCCESS")) throw new IllegalStateException(status);
+        return server;
+    }
+
+    private ArrayList<ByteBuffer> recordUpdate() {
+        senderTransport.recorded = new ArrayList<>();
+        sender.updater.sendUpdateToNeighbors();
+        return senderTransport.recorded;
+    }
+
+    private RoutingUpdateCursor reassemble(ArrayList<ByteBuffer> segments) {
+        RoutingUpdateCursor segmentCursor = new RoutingUpdateCursor();
+        UpdateReassembler updateReassembler = new UpdateReassembler(1000, Transport.MAX_DATAGRAM_SIZE);
+        for(ByteBuffer segment : segments) {
+            if(!segmentCursor.wrapPacket(segment, segment.limit())) continue;
+            RoutingUpdateCursor update = updateReassembler.addSegment(1, segmentCursor);
+            if(update != null) return update;
+        }
+        throw new IllegalStateException("The recorded update is not complete");
+    }
+
+    /**
+     * A transport that does not send anything. It counts the bytes and
+     * keeps a copy of the datagrams sent to one address.
+     */
+    private static class RecordingTransport implements Transport {
+        InetSocketAddress recordAddress;
+        ArrayList<ByteBuffer> recorded = new ArrayList<>();
+        long byteCount;
+
+        @Override
+        public void open(Server server) {
+        }
+
+        @Override
+        public void send(ByteBuffer datagram, InetSocketAddress address) {
+            byteCount += datagram.remaining();
+            if(recordAddress != null && recordAddress.equals(address)) {
+                ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+                copy.put(datagram).flip();
+                recorded.add(copy);
+            }
+            else datagram.position(datagram.limit());
+        }
+
+        @Override
+        public EventLoop getEventLoop() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package routerbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the receive queue. transfer queues and takes one datagram on
+ * one thread, which is the cost of the queue itself with each overload
+ * policy. handoff runs a receiving and a computing thread at the same
+ * time, like the transport does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatagramRingBenchmark {
+    private static final int CAPACITY = 1024;
+    private static final int SLOT_SIZE = 1472;
+    private static final int LENGTH = 512;
+
+    /**
+     * A queue used by one thread.
+     */
+    @State(Scope.Thread)
+    public static class Transfer {
+        @Param({"block", "drop-newest", "drop-oldest"})
+        public String policy;
+
+        RingFixture ring;
+
+        @Setup
+        public void setUp() {
+            ring = Fixtures.create(RingFixture.class, "DatagramRingFixture");
+            ring.setUp(CAPACITY, SLOT_SIZE, policy);
+        }
+    }
+
+    /**
+     * A queue shared by the two threads of handoff. It always drops new
+     * datagrams when it is full, because a receiving thread that waited
+     * for room could not be stopped once the computing thread has ended
+     * its iteration.
+     */
+    @State(Scope.Group)
+    public static class Handoff {
+        RingFixture ring;
+
+        @Setup
+        public void setUp() {
+            ring = Fixtures.create(RingFixture.class, "DatagramRingFixture");
+            ring.setUp(CAPACITY, SLOT_SIZE, "drop-newest");
+        }
+    }
+
+    @Benchmark
+    public int transfer(Transfer state) {
+        state.ring.offer(LENGTH);
+        return state.ring.take();
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public boolean receive(Handoff state) {
+        return state.ring.offer(LENGTH);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public int compute(Handoff state) {
+        return state.ring.take();
+    }
+}
@@ -0,0 +1,25 @@
+package routerbench;
+
+/**
+ * Loads the fixtures that run the router's code. The router's classes are
+ * in the default package, which code in a named package cannot name, so
+ * the fixtures are also in the default package and are found by name.
+ */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    /**
+     * Creates a fixture of the default package.
+     * @param type The interface the fixture implements
+     * @param className The name of the fixture's class
+     * @return Returns the new fixture
+     */
+    static <T> T create(Class<T> type, String className) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("The fixture " + className + " could not be created", e);
+        }
+    }
+}
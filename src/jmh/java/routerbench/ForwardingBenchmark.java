@@ -0,0 +1,104 @@
+package routerbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures next hop lookups from several threads, with the forwarding
+ * table and with the routing table's lock. nextHop and lockedNextHop only
+ * look up; run them with -t to choose the number of threads. The groups
+ * look up while one more thread runs the distance vector calculation with
+ * routes that change every time, which publishes a new forwarding table
+ * while holding the lock; run them with -tg to choose the number of
+ * lookup threads, such as -tg 4,1.
+ * <pre>
+ * mvn -B -Pjmh verify -Djmh.args="ForwardingBenchmark.nextHop -t 4"
+ * mvn -B -Pjmh verify -Djmh.args="ForwardingBenchmark.whileRelaxing -tg 4,1"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForwardingBenchmark {
+    /**
+     * The number of servers in the network.
+     */
+    @Param({"1000", "65000"})
+    public int servers;
+
+    private RouterFixture fixture;
+
+    /**
+     * The lookup counter of one thread.
+     */
+    @State(Scope.Thread)
+    public static class Lookup {
+        int next;
+    }
+
+    @Setup
+    public void setUp() {
+        fixture = Fixtures.create(RouterFixture.class, "UpdatePathFixture");
+        fixture.setUp(servers);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.tearDown();
+    }
+
+    @Benchmark
+    public int nextHop(Lookup lookup) {
+        return fixture.nextHop(lookup.next++);
+    }
+
+    @Benchmark
+    public int lockedNextHop(Lookup lookup) {
+        return fixture.lockedNextHop(lookup.next++);
+    }
+
+    @Benchmark
+    @Group("whileRelaxing")
+    @GroupThreads(1)
+    public int lookup(Lookup lookup) {
+        return fixture.nextHop(lookup.next++);
+    }
+
+    @Benchmark
+    @Group("whileRelaxing")
+    @GroupThreads(1)
+    public void relax() {
+        fixture.relax(true);
+    }
+
+    @Benchmark
+    @Group("lockedWhileRelaxing")
+    @GroupThreads(1)
+    public int lockedLookup(Lookup lookup) {
+        return fixture.lockedNextHop(lookup.next++);
+    }
+
+    @Benchmark
+    @Group("lockedWhileRelaxing")
+    @GroupThreads(1)
+    public void lockedRelax() {
+        fixture.relax(true);
+    }
+}
@@ -0,0 +1,71 @@
+package routerbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the speedup of computing large updates on several threads.
+ * With threads 0 the update is computed on the server's own thread like
+ * any update below the threshold, and the other counts use a
+ * ParallelDistanceVector with that many threads. The speedup is the time
+ * with threads 0 divided by the time with more threads, and it can only
+ * be seen on a machine with at least that many CPUs.
+ * <pre>
+ * mvn -B -Pjmh verify -Djmh.args="ParallelBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParallelBenchmark {
+    /**
+     * The number of servers in the network, which is the number of entries in each update.
+     */
+    @Param({"10000", "65000"})
+    public int servers;
+
+    /**
+     * The number of threads the update is computed on.
+     */
+    @Param({"0", "1", "2", "4"})
+    public int threads;
+
+    private RouterFixture fixture;
+
+    @Setup
+    public void setUp() {
+        fixture = Fixtures.create(RouterFixture.class, "UpdatePathFixture");
+        fixture.setUp(servers);
+        fixture.setParallelism(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.tearDown();
+    }
+
+    @Benchmark
+    public void relaxSteady() {
+        fixture.relax(false);
+    }
+
+    @Benchmark
+    public void relaxChurn() {
+        fixture.relax(true);
+    }
+}
@@ -0,0 +1,28 @@
+package routerbench;
+
+/**
+ * The receive queue between the receiving thread and the computing thread.
+ * @see DatagramRingBenchmark
+ */
+public interface RingFixture {
+    /**
+     * Allocates the queue.
+     * @param capacity The number of slots
+     * @param slotSize The size of each slot
+     * @param policy The name of the overload policy
+     */
+    void setUp(int capacity, int slotSize, String policy);
+
+    /**
+     * Queues a datagram of the given length, as the receiving thread does.
+     * @param length The length of the datagram
+     * @return Returns false if the datagram was dropped
+     */
+    boolean offer(int length);
+
+    /**
+     * Takes the oldest datagram, as the computing thread does.
+     * @return Returns its first byte, or -1 if the queue was empty
+     */
+    int take();
+}
@@ -0,0 +1,99 @@
+package routerbench;
+
+/**
+ * The code that runs for every routing update, on two servers of a
+ * generated network. Server 2 sends its routing table to server 1, and
+ * the updates it sends are recorded so they can be decoded.
+ * @see UpdatePathBenchmark
+ */
+public interface RouterFixture {
+    /**
+     * Builds the network and the two servers.
+     * @param servers The number of servers in the network
+     */
+    void setUp(int servers);
+
+    /**
+     * Stops the threads the fixture started.
+     */
+    void tearDown();
+
+    /**
+     * Writes the sender's whole routing table into its update buffer.
+     * @param version The version of the update format
+     * @return Returns the number of bytes written
+     */
+    int encode(int version);
+
+    /**
+     * Writes one segment of the sender's routing table into a new array,
+     * like the packets that are built for a single neighbor.
+     * @return Returns the length of the packet
+     */
+    int encodePacket();
+
+    /**
+     * Reads every segment of a recorded update, puts them back together
+     * and reads every entry of the complete update.
+     * @param version The version of the update format the update was sent in
+     * @return Returns the sum of the costs
+     */
+    long decode(int version);
+
+    /**
+     * Runs the distance vector calculation on the receiver.
+     * @param churn False for an update that changes nothing, true to switch
+     *              between two updates so most routes are replaced every time
+     */
+    void relax(boolean churn);
+
+    /**
+     * Chooses how many threads the receiver's distance vector calculation
+     * runs on. Every update is computed on them, whatever its size.
+     * @param threads The number of threads, or 0 to compute on the calling thread
+     */
+    void setParallelism(int threads);
+
+    /**
+     * Finds the slot of a server by its id.
+     * @param lookup A counter that chooses the server
+     * @return Returns the slot
+     */
+    int lookupId(int lookup);
+
+    /**
+     * Finds the slot of a server by its ip and port, like a received packet.
+     * @param lookup A counter that chooses the server
+     * @return Returns the slot
+     */
+    int lookupEndpoint(int lookup);
+
+    /**
+     * Finds the next hop of a server in the receiver's forwarding table,
+     * which does not take the routing table's lock.
+     * @param lookup A counter that chooses the server
+     * @return Returns the id of the next hop
+     */
+    int nextHop(int lookup);
+
+    /**
+     * Finds the next hop of a server in the receiver's routing table while
+     * holding its lock, which is how lookups were done before the
+     * forwarding table.
+     * @param lookup A counter that chooses the server
+     * @return Returns the id of the next hop
+     */
+    int lockedNextHop(int lookup);
+
+    /**
+     * Sends one round of routing updates to every neighbor of the receiver.
+     * The transport only counts the bytes.
+     */
+    void sendUpdate();
+
+    /**
+     * Records an event in an event log that writes to nowhere.
+     * @param lookup A counter that chooses the id in the event
+     */
+    void recordEvent(int lookup);
+}
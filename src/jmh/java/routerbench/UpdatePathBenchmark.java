@@ -0,0 +1,112 @@
+package routerbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the code that runs for every routing update: encoding the
+ * routing table, decoding received segments, the distance vector
+ * calculation, routing table lookups and sending a round of updates.
+ * Run it with the gc profiler, which the jmh profile always adds, to see
+ * the bytes allocated per operation as gc.alloc.rate.norm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UpdatePathBenchmark {
+    private static final int VERSION_1 = 1;
+    private static final int VERSION_2 = 2;
+
+    /**
+     * The number of servers in the network.
+     */
+    @Param({"100", "1000", "10000", "65000"})
+    public int servers;
+
+    private RouterFixture fixture;
+    private int lookup;
+
+    @Setup
+    public void setUp() {
+        fixture = Fixtures.create(RouterFixture.class, "UpdatePathFixture");
+        fixture.setUp(servers);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.tearDown();
+    }
+
+    @Benchmark
+    public int encode() {
+        return fixture.encode(VERSION_1);
+    }
+
+    @Benchmark
+    public int encodeV2() {
+        return fixture.encode(VERSION_2);
+    }
+
+    @Benchmark
+    public int encodePacket() {
+        return fixture.encodePacket();
+    }
+
+    @Benchmark
+    public long decode() {
+        return fixture.decode(VERSION_1);
+    }
+
+    @Benchmark
+    public long decodeV2() {
+        return fixture.decode(VERSION_2);
+    }
+
+    @Benchmark
+    public void relaxSteady() {
+        fixture.relax(false);
+    }
+
+    @Benchmark
+    public void relaxChurn() {
+        fixture.relax(true);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int lookupId() {
+        return fixture.lookupId(lookup++);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int lookupEndpoint() {
+        return fixture.lookupEndpoint(lookup++);
+    }
+
+    @Benchmark
+    public void sendUpdate() {
+        fixture.sendUpdate();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void logEvent() {
+        fixture.recordEvent(lookup++);
+    }
+}
@@ -0,0 +1,61 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks on network-count-to-infinity.txt that the split horizon modes and
+ * the max metric stop the servers from counting to infinity. The network
+ * is run in rounds with only full periodic updates, which is how RIP
+ * without triggered updates behaves, so every run gives the same result.
+ * After link 3-4 fails, three links are left and every round sends one
+ * datagram each way on them. Poisoned reverse has to converge in the
+ * first round, a max metric of 16 within MAX_ROUNDS but later than
+ * poisoned reverse, and plain distance vector not within MAX_ROUNDS.
+ */
+public class CountToInfinityTest {
+    private static final String TOPOLOGY = "network-count-to-infinity.txt";
+    private static final int INTERVAL_MILLIS = 1000;
+    private static final int MAX_ROUNDS = 100;
+    private static final int MAX_METRIC = 16;
+    private static final int DATAGRAMS_PER_ROUND = 6;
+
+    @Test
+    public void poisonedReverseConvergesInOneRound() {
+        int[] result = failLink(SplitHorizon.POISONED_REVERSE, RoutingTable.INFINITY);
+        assertEquals(1, result[0]);
+        assertEquals(DATAGRAMS_PER_ROUND, result[1]);
+    }
+
+    @Test
+    public void maxMetricCountsToTheMaxMetric() {
+        int[] result = failLink(SplitHorizon.NONE, MAX_METRIC);
+        assertTrue(result[0] > 1 && result[0] <= MAX_ROUNDS, "max metric " + MAX_METRIC + " took " + result[0] + " rounds");
+        assertEquals(result[0] * DATAGRAMS_PER_ROUND, result[1]);
+    }
+
+    @Test
+    public void plainDistanceVectorCountsToInfinity() {
+        int[] result = failLink(SplitHorizon.NONE, RoutingTable.INFINITY);
+        assertEquals(-1, result[0], "plain distance vector converged in " + result[0] + " rounds");
+    }
+
+    /**
+     * Fails link 3-4 in a new network once it has converged.
+     * @param splitHorizon The split horizon mode of the servers
+     * @param maxMetric The cost at which routes become unreachable
+     * @return Returns the rounds until the network converged again, or -1, and the datagrams sent in them
+     */
+    private static int[] failLink(SplitHorizon splitHorizon, int maxMetric) {
+        NetworkTopology topology = new NetworkTopology();
+        assertEquals("SUCCESS", topology.readTopologyFile(TOPOLOGY));
+        ClusterHarness harness = new ClusterHarness(topology, INTERVAL_MILLIS, maxMetric, splitHorizon);
+        try {
+            assertTrue(harness.runRounds(MAX_ROUNDS) != -1, "the network did not converge before the failure");
+            int rounds = harness.failLinkRounds(3, 4, MAX_ROUNDS);
+            return new int[] {rounds, (int) harness.convergenceDatagrams()};
+        } finally {
+            harness.stop();
+        }
+    }
+}
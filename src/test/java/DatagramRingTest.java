@@ -0,0 +1,72 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that DROP_OLDEST only drops datagrams of the sender that holds
+ * more than its share of the queue. Server A fills the queue, and then
+ * server B sends one datagram while nothing is being computed, so A is cut
+ * back to half of the queue. Once the queue is full again, a new datagram
+ * from A is dropped instead of one of B's.
+ */
+public class DatagramRingTest {
+    private static final int CAPACITY = 8;
+    private static final int SLOT_SIZE = 64;
+    private static final int SENDER_A = 1;
+    private static final int SENDER_B = 2;
+    private static final BooleanSupplier RUNNING = () -> true;
+
+    @Test
+    public void dropOldestDropsOnlyFromTheSenderOverItsShare() throws InterruptedException {
+        DatagramRing ring = new DatagramRing(CAPACITY, SLOT_SIZE, OverloadPolicy.DROP_OLDEST);
+        for(int i = 0; i < CAPACITY; i++) offer(ring, SENDER_A, i);
+        assertEquals(CAPACITY, ring.depth());
+
+        // The queue is full, so B waits until the consumer has cut A back to half of it
+        Thread producer = new Thread(() -> offer(ring, SENDER_B, 100));
+        producer.start();
+        while(producer.isAlive()) {
+            ring.poll();
+            producer.join(1);
+        }
+        assertEquals(CAPACITY / 2, ring.droppedOldest());
+        assertEquals(CAPACITY / 2 + 1, ring.depth());
+
+        // A may fill the queue again, but once it is full A's new datagram is dropped
+        for(int i = 0; i < CAPACITY / 2 - 1; i++) offer(ring, SENDER_A, 200 + i);
+        offer(ring, SENDER_A, 300);
+        assertEquals(1, ring.droppedNewest());
+        assertEquals(CAPACITY / 2, ring.droppedOldest());
+        assertEquals(CAPACITY, ring.depth());
+
+        for(int i = CAPACITY / 2; i < CAPACITY; i++) assertEquals(i, take(ring));
+        assertEquals(100, take(ring));
+        for(int i = 0; i < CAPACITY / 2 - 1; i++) assertEquals(200 + i, take(ring));
+        assertEquals(-1, ring.poll());
+    }
+
+    /**
+     * Queues a datagram with the header fields the ring reads the sender from.
+     * @param ring The queue
+     * @param sender The port of the sending server
+     * @param number A number written after the header
+     */
+    private static void offer(DatagramRing ring, int sender, int number) {
+        ByteBuffer slot = ring.claim(RUNNING);
+        slot.putShort(2, (short) sender);
+        slot.putInt(4, 0x0A000001);
+        slot.putInt(8, number);
+        slot.position(12);
+        ring.publish(12);
+    }
+
+    private static int take(DatagramRing ring) {
+        int index = ring.poll();
+        int number = ring.slot(index).getInt(8);
+        ring.release();
+        return number;
+    }
+}
@@ -0,0 +1,49 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a task or timer that throws does not stop the event loop.
+ * The exceptions are counted and written to the loop's event log, and the
+ * tasks and timers after them still run.
+ */
+public class EventLoopTest {
+
+    @Test
+    public void loopKeepsRunningAfterAnException() throws InterruptedException {
+        StringWriter text = new StringWriter();
+        EventLog log = new EventLog(LogLevel.ERROR, 16, text);
+        log.start();
+        EventLoop loop = new EventLoop();
+        loop.setEventLog(log);
+        loop.start();
+        try {
+            boolean[] ran = new boolean[1];
+            loop.execute(() -> {
+                throw new IllegalStateException("task");
+            });
+            loop.executeAndWait(() -> ran[0] = true);
+            assertTrue(ran[0]);
+
+            CountDownLatch timerRan = new CountDownLatch(1);
+            loop.execute(() -> {
+                loop.schedule(0, () -> {
+                    throw new IllegalStateException("timer");
+                });
+                loop.schedule(0, timerRan::countDown);
+            });
+            assertTrue(timerRan.await(5, TimeUnit.SECONDS), "the timer after the one that threw did not run");
+            assertEquals(2, loop.errors());
+        } finally {
+            loop.shutdown();
+            log.close();
+        }
+        assertTrue(text.toString().contains("task on the event loop threw java.lang.IllegalStateException: task"), text.toString());
+        assertTrue(text.toString().contains("timer on the event loop threw java.lang.IllegalStateException: timer"), text.toString());
+    }
+}
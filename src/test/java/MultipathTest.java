@@ -0,0 +1,110 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks how flows are spread over several next hops. Server 1 has
+ * neighbors 2, 3 and 4, which all advertise destination 5 at cost 1 over
+ * links of cost 1, so all three are next hops of the route through 2.
+ * Every flow has to keep its next hop, the flows have to be spread over
+ * all of them, and when a next hop is lost only its flows may move.
+ */
+public class MultipathTest {
+    private static final int DESTINATION = 5;
+    private static final int FLOWS = 3000;
+
+    private RoutingTable table;
+
+    @BeforeEach
+    public void setUp() {
+        table = new RoutingTable();
+        for(int id = 1; id <= DESTINATION; id++) table.addServer(id, 0x7F000001, 6000 + id);
+        table.setRoute(table.slotOf(1), 0, 1);
+        for(int neighbor = 2; neighbor <= 4; neighbor++) {
+            int slot = table.slotOf(neighbor);
+            table.setDirectLinkCost(slot, 1);
+            table.setRoute(slot, 1, neighbor);
+            table.setAdvertisedCost(slot, table.slotOf(DESTINATION), 1);
+        }
+        table.setRoute(table.slotOf(DESTINATION), 2, 2);
+        table.setMultipath(4, 0);
+    }
+
+    @Test
+    public void routesNextHopComesFirst() {
+        RoutingTableSnapshot snapshot = table.publish();
+        int slot = table.slotOf(DESTINATION);
+        assertEquals(3, snapshot.pathCount(slot));
+        assertEquals(2, snapshot.pathAt(slot, 0));
+        assertEquals(3, snapshot.pathAt(slot, 1));
+        assertEquals(4, snapshot.pathAt(slot, 2));
+    }
+
+    @Test
+    public void flowsAreSpreadAndKeepTheirNextHop() {
+        RoutingTableSnapshot snapshot = table.publish();
+        int slot = table.slotOf(DESTINATION);
+        int[] flowsByHop = new int[DESTINATION];
+        for(long flow = 0; flow < FLOWS; flow++) {
+            int hop = snapshot.nextHopFor(slot, flow);
+            assertEquals(hop, snapshot.nextHopFor(slot, flow));
+            flowsByHop[hop]++;
+        }
+        for(int hop = 2; hop <= 4; hop++) {
+            assertTrue(flowsByHop[hop] > FLOWS / 5, "next hop " + hop + " got " + flowsByHop[hop] + " of " + FLOWS + " flows");
+        }
+    }
+
+    @Test
+    public void onlyTheFlowsOfALostNextHopMove() {
+        RoutingTableSnapshot before = table.publish();
+        int slot = table.slotOf(DESTINATION);
+        table.setDirectLinkCost(table.slotOf(4), RoutingTable.INFINITY);
+        RoutingTableSnapshot after = table.publish();
+        assertEquals(2, after.pathCount(slot));
+
+        int moved = 0;
+        for(long flow = 0; flow < FLOWS; flow++) {
+            int hop = before.nextHopFor(slot, flow);
+            int newHop = after.nextHopFor(slot, flow);
+            if(hop != 4) assertEquals(hop, newHop);
+            else {
+                assertTrue(newHop == 2 || newHop == 3);
+                moved++;
+            }
+        }
+        assertTrue(moved > 0);
+    }
+
+    @Test
+    public void longerPathsNeedTolerance() {
+        table.setDirectLinkCost(table.slotOf(4), 2);
+        int slot = table.slotOf(DESTINATION);
+        assertEquals(2, table.publish().pathCount(slot));
+
+        table.setMultipath(4, 1);
+        RoutingTableSnapshot snapshot = table.publish();
+        assertEquals(3, snapshot.pathCount(slot));
+        assertEquals(4, snapshot.pathAt(slot, 2));
+    }
+
+    @Test
+    public void oneNextHopWithoutMultipath() {
+        table.setMultipath(1, 0);
+        RoutingTableSnapshot snapshot = table.publish();
+        int slot = table.slotOf(DESTINATION);
+        assertEquals(1, snapshot.pathCount(slot));
+        for(long flow = 0; flow < 100; flow++) assertEquals(2, snapshot.nextHopFor(slot, flow));
+    }
+
+    @Test
+    public void noNextHopWithoutARoute() {
+        int slot = table.slotOf(DESTINATION);
+        table.setRoute(slot, RoutingTable.INFINITY, -1);
+        RoutingTableSnapshot snapshot = table.publish();
+        assertEquals(0, snapshot.pathCount(slot));
+        assertEquals(-1, snapshot.nextHopFor(slot, 42));
+    }
+}
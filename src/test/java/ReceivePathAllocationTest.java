@@ -0,0 +1,120 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that receiving routing updates does not create objects once the
+ * server has seen its largest update. Server 2 of a generated network
+ * records the updates it sends to server 1, in both versions of the
+ * format, and server 1 receives them over and over like the transport
+ * would hand them over. The updates do not change any route, which is the
+ * case for almost every update a stable network sends.
+ */
+public class ReceivePathAllocationTest {
+    private static final int SERVERS = 2000;
+    private static final int WARMUP_ROUNDS = 20_000;
+    private static final int MEASURED_ROUNDS = 2_000;
+
+    private Server receiver;
+    private ArrayList<ByteBuffer> segments;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        NetworkTopology topology = NetworkTopology.generate(SERVERS, 4, 10, 1);
+        RecordingTransport senderTransport = new RecordingTransport();
+        Server sender = createServer(topology, senderTransport, 2);
+        receiver = createServer(topology, new RecordingTransport(), 1);
+
+        RoutingTable table = sender.table;
+        int neighbor = table.slotOf(1);
+        for(int slot = 0; slot < table.size; slot++) {
+            if(table.ids[slot] != 2 && !table.isNeighbor(slot)) table.setRoute(slot, 1 + slot % 10, 1);
+        }
+        table.publish();
+        senderTransport.recordAddress = table.socketAddress(neighbor);
+        sender.updater.sendUpdateToNeighbors();
+        table.setPeerVersion(neighbor, RoutingUpdateMessage.VERSION_2);
+        sender.updater.sendUpdateToNeighbors();
+        segments = senderTransport.recorded;
+
+        receiver.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        receiver.stop();
+    }
+
+    @Test
+    public void receivingUpdatesDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean, "The JVM does not count allocated bytes");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+
+        for(int i = 0; i < WARMUP_ROUNDS; i++) receiveAll();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for(int i = 0; i < MEASURED_ROUNDS; i++) receiveAll();
+        long allocated = threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertEquals(MEASURED_ROUNDS * 2L, receiver.metrics.getUpdatesReceived() - WARMUP_ROUNDS * 2L,
+                "Every recorded update should have been applied");
+        assertEquals(0, allocated,
+                allocated + " bytes were allocated for " + MEASURED_ROUNDS * segments.size() + " packets");
+    }
+
+    private void receiveAll() {
+        for(int i = 0; i < segments.size(); i++) {
+            ByteBuffer segment = segments.get(i);
+            receiver.receivePacket(segment, segment.limit());
+            receiver.applyReceivedUpdates();
+        }
+    }
+
+    private static Server createServer(NetworkTopology topology, Transport transport, int id) {
+        Server server = new Server(transport, 1000);
+        server.printMessages = false;
+        String status = server.loadNetwork(topology, id);
+        if(!status.equals("SUCCESS")) throw new IllegalStateException(status);
+        return server;
+    }
+
+    /**
+     * A transport that does not send anything. It keeps a copy of the
+     * datagrams sent to one address.
+     */
+    private static class RecordingTransport implements Transport {
+        InetSocketAddress recordAddress;
+        ArrayList<ByteBuffer> recorded = new ArrayList<>();
+
+        @Override
+        public void open(Server server) {
+        }
+
+        @Override
+        public void send(ByteBuffer datagram, InetSocketAddress address) {
+            if(recordAddress != null && recordAddress.equals(address)) {
+                ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+                copy.put(datagram).flip();
+                recorded.add(copy);
+            }
+            else datagram.position(datagram.limit());
+        }
+
+        @Override
+        public EventLoop getEventLoop() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that the routing table store restores the newest record that is
+ * whole. Server 1 has neighbors 2 and 3 and reaches server 4 through them.
+ * The first record routes to 4 through 2 at cost 3, and the second through
+ * 3 at cost 5. When the second record is broken, by a wrong checksum or by
+ * being cut off, the first one is restored, and the next save goes where
+ * the broken one was.
+ */
+public class RoutingTableStoreTest {
+    private static final int SELF = 1;
+    private static final int DESTINATION = 4;
+
+    @TempDir
+    Path directory;
+
+    private Path path;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        path = directory.resolve("routes.db");
+        RoutingTableStore store = new RoutingTableStore(path);
+        RoutingTable table = newTable();
+        advertise(table, 2, 100, 2);
+        advertise(table, 3, 200, 9);
+        table.setRoute(table.slotOf(DESTINATION), 3, 2);
+        save(store, table, 10);
+
+        advertise(table, 2, 101, RoutingTable.INFINITY);
+        advertise(table, 3, 201, 1);
+        table.setRoute(table.slotOf(DESTINATION), 5, 3);
+        save(store, table, 11);
+    }
+
+    @Test
+    public void restoresTheNewestRecord() throws IOException {
+        RoutingTable table = newTable();
+        RoutingTableStore store = new RoutingTableStore(path);
+        int[] neighbors = store.restore(table, SELF, RoutingTable.INFINITY);
+        assertArrayEquals(new int[] {table.slotOf(2), table.slotOf(3)}, neighbors);
+        assertRoute(table, 5, 3);
+        assertEquals(11, store.savedSequence());
+        assertEquals(101, table.receivedSequence[table.slotOf(2)]);
+        assertEquals(201, table.receivedSequence[table.slotOf(3)]);
+    }
+
+    @Test
+    public void wrongChecksumFallsBackToTheRecordBefore() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int second = secondRecord(channel);
+            // The last byte of the second record's body is an advertised cost
+            int last = second + 12 + recordLength(channel, second) - 1;
+            ByteBuffer value = ByteBuffer.allocate(1);
+            channel.read(value, last);
+            value.put(0, (byte)(value.get(0) ^ 1)).rewind();
+            channel.write(value, last);
+        }
+        assertFallsBackAndAppends();
+    }
+
+    @Test
+    public void cutOffRecordFallsBackToTheRecordBefore() throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            int second = secondRecord(channel);
+            channel.truncate(second + 12 + recordLength(channel, second) / 2);
+        }
+        assertFallsBackAndAppends();
+    }
+
+    @Test
+    public void recordOfAnotherServerIsNotRestored() throws IOException {
+        RoutingTable table = newTable();
+        assertNull(new RoutingTableStore(path).restore(table, 2, RoutingTable.INFINITY));
+        assertEquals(RoutingTable.INFINITY, table.cost[table.slotOf(DESTINATION)]);
+    }
+
+    private void assertFallsBackAndAppends() throws IOException {
+        RoutingTable table = newTable();
+        RoutingTableStore store = new RoutingTableStore(path);
+        store.restore(table, SELF, RoutingTable.INFINITY);
+        assertRoute(table, 3, 2);
+        assertEquals(10, store.savedSequence());
+
+        // The next record replaces the broken one
+        advertise(table, 2, 102, RoutingTable.INFINITY);
+        advertise(table, 3, 202, 0);
+        table.setRoute(table.slotOf(DESTINATION), 4, 3);
+        save(store, table, 12);
+        RoutingTable restored = newTable();
+        RoutingTableStore again = new RoutingTableStore(path);
+        again.restore(restored, SELF, RoutingTable.INFINITY);
+        assertRoute(restored, 4, 3);
+        assertEquals(12, again.savedSequence());
+    }
+
+    /**
+     * Creates the table of server 1 with links to 2 and 3 as if
+     * the topology file had just been loaded.
+     */
+    private static RoutingTable newTable() {
+        RoutingTable table = new RoutingTable();
+        for(int id = 1; id <= DESTINATION; id++) table.addServer(id, 0x7F000001, 6000 + id);
+        table.setRoute(table.slotOf(SELF), 0, SELF);
+        table.setDirectLinkCost(table.slotOf(2), 1);
+        table.setRoute(table.slotOf(2), 1, 2);
+        table.setDirectLinkCost(table.slotOf(3), 4);
+        table.setRoute(table.slotOf(3), 4, 3);
+        table.publish();
+        return table;
+    }
+
+    private static void advertise(RoutingTable table, int neighbor, int sequence, int cost) {
+        int slot = table.slotOf(neighbor);
+        table.setReceivedSequence(slot, sequence);
+        table.setAdvertisedCost(slot, table.slotOf(DESTINATION), cost);
+    }
+
+    private static void save(RoutingTableStore store, RoutingTable table, int sequence) throws IOException {
+        if(store.copy(table, sequence)) store.save(SELF, sequence);
+    }
+
+    private static void assertRoute(RoutingTable table, int cost, int nextHop) {
+        int slot = table.slotOf(DESTINATION);
+        assertEquals(cost, table.cost[slot]);
+        assertEquals(nextHop, table.nextHopId[slot]);
+    }
+
+    private static int recordLength(FileChannel channel, int position) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        channel.read(length, position + 4);
+        return length.getInt(0);
+    }
+
+    private static int secondRecord(FileChannel channel) throws IOException {
+        return 12 + recordLength(channel, 0);
+    }
+}
@@ -0,0 +1,119 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks when timeouts expire and in what order. The wheel has ticks of
+ * 10 ms and only 4 buckets, so a timeout more than 40 ms away has to wait
+ * for more than one turn of the wheel. The test moves the wheel's clock
+ * itself instead of sleeping, so nothing depends on how fast it runs.
+ */
+public class TimerWheelTest {
+    private static final long TICK_MILLIS = 10;
+    private static final int BUCKETS = 4;
+
+    private TimerWheel wheel;
+    private List<String> ran;
+
+    @BeforeEach
+    public void setUp() {
+        wheel = new TimerWheel(TICK_MILLIS, BUCKETS);
+        ran = new ArrayList<>();
+    }
+
+    @Test
+    public void timeoutsExpireInOrderOfTheirDeadlines() {
+        schedule("a", 55, 0);
+        schedule("b", 15, 0);
+        // More than two turns of the wheel away, in the same bucket as b
+        schedule("c", 100, 0);
+        schedule("d", 30, 0);
+
+        advance(20);
+        assertEquals(List.of("b"), ran);
+        advance(90);
+        assertEquals(List.of("b", "d", "a"), ran);
+        advance(99);
+        assertEquals(List.of("b", "d", "a"), ran);
+        advance(100);
+        assertEquals(List.of("b", "d", "a", "c"), ran);
+    }
+
+    @Test
+    public void cancelledTimeoutsNeverRun() {
+        TimerWheel.Timeout first = schedule("first", 20, 0);
+        TimerWheel.Timeout second = schedule("second", 20, 0);
+        TimerWheel.Timeout third = schedule("third", 20, 0);
+        assertTrue(second.isScheduled());
+
+        // The middle of a bucket is cancelled, and the ones around it stay
+        wheel.cancel(second);
+        assertFalse(second.isScheduled());
+        wheel.cancel(second);
+        advance(20);
+        assertEquals(2, ran.size());
+        assertTrue(ran.contains("first") && ran.contains("third"), ran.toString());
+        assertFalse(first.isScheduled());
+        assertFalse(third.isScheduled());
+
+        advance(200);
+        assertEquals(2, ran.size());
+    }
+
+    @Test
+    public void movedTimeoutsRunOnceAtTheirNewDeadline() {
+        TimerWheel.Timeout neighbor = schedule("neighbor", 30, 0);
+        schedule("other", 40, 0);
+
+        // Every update from the neighbor pushes its timeout back
+        for(long now = 10; now <= 50; now += 10) {
+            advance(now);
+            wheel.schedule(neighbor, 30, millis(now));
+        }
+        assertEquals(List.of("other"), ran);
+        advance(79);
+        assertEquals(List.of("other"), ran);
+        advance(80);
+        assertEquals(List.of("other", "neighbor"), ran);
+        advance(300);
+        assertEquals(List.of("other", "neighbor"), ran);
+    }
+
+    @Test
+    public void expiredTimeoutCanScheduleItselfAgain() {
+        long[] now = new long[1];
+        TimerWheel.Timeout[] timeout = new TimerWheel.Timeout[1];
+        timeout[0] = wheel.newTimeout(() -> {
+            ran.add("tick " + now[0]);
+            if(ran.size() < 3) wheel.schedule(timeout[0], TICK_MILLIS, millis(now[0]));
+        });
+        wheel.schedule(timeout[0], TICK_MILLIS, millis(0));
+
+        for(now[0] = 0; now[0] <= 100; now[0] += TICK_MILLIS) advance(now[0]);
+        assertEquals(List.of("tick 10", "tick 20", "tick 30"), ran);
+        assertFalse(timeout[0].isScheduled());
+    }
+
+    private TimerWheel.Timeout schedule(String name, long delayMillis, long nowMillis) {
+        TimerWheel.Timeout timeout = wheel.newTimeout(() -> ran.add(name));
+        wheel.schedule(timeout, delayMillis, millis(nowMillis));
+        return timeout;
+    }
+
+    private void advance(long nowMillis) {
+        wheel.advance(millis(nowMillis));
+    }
+
+    /**
+     * Returns the wheel's clock reading a number of milliseconds after it was created.
+     */
+    private long millis(long millis) {
+        return wheel.startTime + millis * 1_000_000L;
+    }
+}
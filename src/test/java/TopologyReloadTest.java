@@ -0,0 +1,115 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that reloading a topology many times does not make the routing
+ * table grow. Server 1 switches between two files that share servers 1
+ * to 3 and have different servers after that, so every reload removes
+ * SWAPPED servers and adds as many new ones, which get the removed slots.
+ */
+public class TopologyReloadTest {
+    private static final int SHARED = 3;
+    private static final int SWAPPED = 17;
+    private static final int RELOADS = 200;
+
+    @TempDir
+    Path directory;
+
+    private Server server;
+    private Path first;
+    private Path second;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        first = writeTopology("first.txt", SHARED + 1);
+        second = writeTopology("second.txt", SHARED + SWAPPED + 1);
+
+        NetworkTopology topology = new NetworkTopology();
+        assertEquals("SUCCESS", topology.readTopologyFile(first.toString()));
+        server = new Server(new SilentTransport(), 1000);
+        server.printMessages = false;
+        assertEquals("SUCCESS", server.loadNetwork(topology, 1));
+        server.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void removedSlotsAreReused() {
+        int size = server.table.size;
+        for(int i = 0; i < RELOADS; i++) {
+            Path file = (i % 2 == 0) ? second : first;
+            String status = server.reloadTopology(file.toString());
+            assertTrue(status.startsWith("Servers added: " + SWAPPED + ", removed: " + SWAPPED), status);
+            assertEquals(size, server.table.size);
+        }
+
+        // The last file was the first one again, and each of its servers can be
+        // found by its id and by the ip and port it sends from
+        RoutingTable table = server.table;
+        assertEquals(SHARED + SWAPPED, table.slotsInIdOrder().length);
+        for(int id = 1; id <= SHARED + SWAPPED; id++) {
+            int slot = table.slotOf(id);
+            assertTrue(slot != -1, "server " + id + " is missing");
+            assertEquals(slot, table.slotOfEndpoint(table.ipAddress[slot], table.port[slot]));
+        }
+        assertEquals(-1, table.slotOf(SHARED + SWAPPED + 1));
+    }
+
+    /**
+     * Writes a topology with servers 1 to SHARED and SWAPPED servers
+     * starting at firstSwapped, where server 1 has a link to server 2.
+     * @param name The name of the file
+     * @param firstSwapped The id of the first server after the shared ones
+     * @return Returns the path of the file
+     */
+    private Path writeTopology(String name, int firstSwapped) throws IOException {
+        StringBuilder text = new StringBuilder();
+        text.append(SHARED + SWAPPED).append('\n').append(1).append('\n');
+        for(int id = 1; id <= SHARED; id++) text.append(server(id));
+        for(int id = firstSwapped; id < firstSwapped + SWAPPED; id++) text.append(server(id));
+        text.append("1 2 5\n");
+        return Files.writeString(directory.resolve(name), text);
+    }
+
+    private static String server(int id) {
+        return id + " 127.0.0.1 " + (6000 + id) + "\n";
+    }
+
+    /**
+     * A transport that drops every datagram and has no thread of its own.
+     */
+    private static class SilentTransport implements Transport {
+        @Override
+        public void open(Server server) {
+        }
+
+        @Override
+        public void send(ByteBuffer datagram, InetSocketAddress address) {
+            datagram.position(datagram.limit());
+        }
+
+        @Override
+        public EventLoop getEventLoop() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
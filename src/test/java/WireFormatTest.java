@@ -0,0 +1,191 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks the version 2 update format and how servers agree on it. A
+ * version 2 packet with varints of every length and an unreachable bitmap
+ * has to read back as the same entries. Then server 1, which reads
+ * version 2, talks to server 2, which only reads version 1, and to server
+ * 3, which reads version 2: it has to keep sending version 1 to server 2
+ * and switch to version 2 for server 3 once server 3 has said it can.
+ */
+public class WireFormatTest {
+    private static final int IP = 0x7F000001;
+    private static final int RECEIVER = 2;
+    private static final int[] IDS = {1, 2, 200, 20_000, 65_535};
+    private static final int[] COSTS = {0, 7, 300, RoutingTable.INFINITY, 5_000_000};
+    private static final int LINK_COST = 9;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void version2RoundTrip() {
+        RoutingTable table = new RoutingTable();
+        for(int i = 0; i < IDS.length; i++) {
+            int slot = table.addServer(IDS[i], IP, 6000 + i);
+            table.setRoute(slot, COSTS[i], (COSTS[i] == RoutingTable.INFINITY) ? -1 : 1);
+        }
+        table.setDirectLinkCost(table.slotOf(RECEIVER), LINK_COST);
+        RoutingTableSnapshot snapshot = table.publish();
+
+        RoutingUpdateMessage message = new RoutingUpdateMessage(RECEIVER, 6000, IP, snapshot, 0, IDS.length);
+        message.setVersion(RoutingUpdateMessage.VERSION_2);
+        message.setSegment(41, 0, 1);
+        message.setBaseSequence(40);
+        message.setAckSequence(17);
+        int size = message.getPacketSize();
+        byte[] packet = message.getRoutingUpdatePacket();
+        assertEquals(size, packet.length);
+        assertTrue(size < RoutingUpdateMessage.HEADER_SIZE + IDS.length * RoutingUpdateMessage.ENTRY_SIZE);
+        assertEquals(RoutingUpdateMessage.V2_MARKER, packet[0] & 0xFF);
+        assertEquals(RoutingUpdateMessage.FLAG_UNREACHABLE_BITMAP, packet[1]);
+
+        RoutingUpdateCursor cursor = new RoutingUpdateCursor();
+        cursor.localId = RECEIVER;
+        assertTrue(cursor.wrapPacket(ByteBuffer.wrap(packet), packet.length));
+        assertEquals(RoutingUpdateMessage.VERSION_2, cursor.version);
+        assertEquals(6000, cursor.serverPort);
+        assertEquals(IP, cursor.serverIPAddress);
+        assertEquals(41, cursor.sequenceNumber);
+        assertEquals(40, cursor.baseSequence);
+        assertEquals(17, cursor.ackSequence);
+        assertEquals(IDS.length, cursor.entryCount);
+        for(int i = 0; i < IDS.length; i++) {
+            assertTrue(cursor.next());
+            assertEquals(IDS[i], cursor.id);
+            // The receiver's own entry carries the cost of the link from the header
+            assertEquals((IDS[i] == RECEIVER) ? LINK_COST : COSTS[i], cursor.cost);
+        }
+        assertFalse(cursor.next());
+
+        // A packet that is cut off in the middle of a varint is malformed
+        assertFalse(cursor.wrapPacket(ByteBuffer.wrap(packet), packet.length - 1));
+    }
+
+    @Test
+    public void serversUseVersion2OnlyWithServersThatReadIt() throws IOException {
+        Path file = directory.resolve("network.txt");
+        Files.writeString(file, "3\n2\n"
+                + "1 127.0.0.1 6001\n2 127.0.0.1 6002\n3 127.0.0.1 6003\n"
+                + "1 2 1\n1 3 1\n");
+        NetworkTopology topology = new NetworkTopology();
+        assertEquals("SUCCESS", topology.readTopologyFile(file.toString()));
+
+        RecordingTransport network = new RecordingTransport();
+        Server first = createServer(topology, network, 1, RoutingUpdateMessage.VERSION_2);
+        Server second = createServer(topology, network, 2, RoutingUpdateMessage.VERSION_1);
+        Server third = createServer(topology, network, 3, RoutingUpdateMessage.VERSION_2);
+        Server[] servers = {first, second, third};
+        try {
+            // Nobody has heard from anyone yet, so server 1 starts with version 1
+            first.updater.sendUpdateToNeighbors();
+            assertEquals(RoutingUpdateMessage.VERSION_1, network.lastVersion(second));
+            assertEquals(RoutingUpdateMessage.VERSION_1, network.lastVersion(third));
+
+            for(int round = 0; round < 2; round++) {
+                for(Server server : servers) server.updater.sendUpdateToNeighbors();
+                network.deliver(servers);
+            }
+            first.updater.sendUpdateToNeighbors();
+            assertEquals(RoutingUpdateMessage.VERSION_1, network.lastVersion(second));
+            assertEquals(RoutingUpdateMessage.VERSION_2, network.lastVersion(third));
+            third.updater.sendUpdateToNeighbors();
+            assertEquals(RoutingUpdateMessage.VERSION_2, network.lastVersion(first));
+            second.updater.sendUpdateToNeighbors();
+            assertEquals(RoutingUpdateMessage.VERSION_1, network.lastVersion(first));
+
+            assertEquals(RoutingUpdateMessage.VERSION_1, first.table.peerVersion[first.table.slotOf(2)]);
+            assertEquals(RoutingUpdateMessage.VERSION_2, first.table.peerVersion[first.table.slotOf(3)]);
+            assertEquals(RoutingUpdateMessage.VERSION_1, second.table.peerVersion[second.table.slotOf(1)]);
+            // Both versions were read correctly, so every server found its routes
+            assertEquals(2, second.table.cost[second.table.slotOf(3)]);
+            assertEquals(2, third.table.cost[third.table.slotOf(2)]);
+        } finally {
+            for(Server server : servers) server.stop();
+        }
+    }
+
+    /**
+     * Creates and starts a server that only sends when the test asks it
+     * to. The update interval is long enough that no periodic update is
+     * sent while the test runs, and triggered updates are turned off.
+     */
+    private static Server createServer(NetworkTopology topology, Transport transport, int id, int wireVersion)
+            throws IOException {
+        Server server = new Server(transport, 600_000);
+        server.printMessages = false;
+        server.wireVersion = wireVersion;
+        server.updater.triggeredUpdates = false;
+        String status = server.loadNetwork(topology, id);
+        if(!status.equals("SUCCESS")) throw new IllegalStateException(status);
+        server.start();
+        return server;
+    }
+
+    /**
+     * A transport shared by every server of the test. It keeps the
+     * datagrams sent to each address until they are delivered.
+     */
+    private static class RecordingTransport implements Transport {
+        final HashMap<InetSocketAddress, ArrayList<byte[]>> sent = new HashMap<>();
+
+        @Override
+        public void open(Server server) {
+        }
+
+        @Override
+        public synchronized void send(ByteBuffer datagram, InetSocketAddress address) {
+            byte[] copy = new byte[datagram.remaining()];
+            datagram.get(copy);
+            sent.computeIfAbsent(address, key -> new ArrayList<>()).add(copy);
+        }
+
+        /**
+         * Returns the version of the last datagram sent to a server.
+         */
+        synchronized int lastVersion(Server server) {
+            ArrayList<byte[]> datagrams = sent.get(addressOf(server));
+            byte[] last = datagrams.get(datagrams.size() - 1);
+            return ((last[0] & 0xFF) == RoutingUpdateMessage.V2_MARKER)
+                    ? RoutingUpdateMessage.VERSION_2 : RoutingUpdateMessage.VERSION_1;
+        }
+
+        /**
+         * Hands every datagram that was sent to the server it was sent to.
+         */
+        synchronized void deliver(Server[] servers) {
+            for(Server server : servers) {
+                ArrayList<byte[]> datagrams = sent.remove(addressOf(server));
+                if(datagrams == null) continue;
+                for(byte[] datagram : datagrams) server.receivePacket(ByteBuffer.wrap(datagram), datagram.length);
+                server.applyReceivedUpdates();
+            }
+        }
+
+        private static InetSocketAddress addressOf(Server server) {
+            return server.table.socketAddress(server.table.slotOf(server.serverId));
+        }
+
+        @Override
+        public EventLoop getEventLoop() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}